@@ -0,0 +1,296 @@
+import java.math.BigDecimal;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.StampedLock;
+
+/**
+ * Account balances as long minor units per currency.
+ *
+ * Addresses and currencies are interned to int ids; a balance lives under
+ * the packed key (accountId, currencyId) in an open-addressing long-to-long
+ * map, so reading or updating a balance neither boxes nor allocates. The
+ * map is split into lock-striped segments: updates to accounts in
+ * different segments run in parallel, every read-modify-write (including
+ * the check-and-debit) is atomic within its segment, and reads use an
+ * optimistic stamp instead of taking the lock.
+ */
+public class AccountStore {
+    private static final int SEGMENTS = 64; // power of two
+
+    private final Map<String, Integer> accountIds;
+    private final Map<String, Integer> currencyIds;
+    private final Segment[] segments;
+    private volatile String[] addresses;
+
+    public AccountStore() {
+        this.accountIds = new ConcurrentHashMap<>();
+        this.currencyIds = new ConcurrentHashMap<>();
+        this.addresses = new String[1024];
+        this.segments = new Segment[SEGMENTS];
+        for (int i = 0; i < SEGMENTS; i++) {
+            segments[i] = new Segment();
+        }
+    }
+
+    /**
+     * Balance in minor units, zero for unknown accounts
+     */
+    public long getBalance(String address, String currency) {
+        Integer account = accountIds.get(address);
+        Integer currencyId = currencyIds.get(currency);
+        if (account == null || currencyId == null) return 0;
+        long key = key(account, currencyId);
+        return segmentFor(key).get(key);
+    }
+
+    public BigDecimal getBalanceDecimal(String address, String currency) {
+        return Money.toDecimal(getBalance(address, currency), currency);
+    }
+
+    /**
+     * Add minor units to the account
+     */
+    public void credit(String address, String currency, long minor) {
+        long key = key(accountId(address), currencyId(currency));
+        segmentFor(key).add(key, minor);
+    }
+
+    /**
+     * Atomically debit the account if it holds at least the amount
+     *
+     * @return false, leaving the balance unchanged, if funds are insufficient
+     */
+    public boolean tryDebit(String address, String currency, long minor) {
+        long key = key(accountId(address), currencyId(currency));
+        return segmentFor(key).tryDebit(key, minor);
+    }
+
+    /**
+     * An account's non-zero balances in minor units, by currency
+     */
+    public Map<String, Long> getBalances(String address) {
+        Map<String, Long> result = new HashMap<>();
+        Integer account = accountIds.get(address);
+        if (account == null) return result;
+        for (Map.Entry<String, Integer> currency : currencyIds.entrySet()) {
+            long key = key(account, currency.getValue());
+            long minor = segmentFor(key).get(key);
+            if (minor != 0) result.put(currency.getKey(), minor);
+        }
+        return result;
+    }
+
+    /**
+     * Copy of all non-zero balances in one currency
+     */
+    public Map<String, BigDecimal> snapshot(String currency) {
+        Map<String, BigDecimal> result = new HashMap<>();
+        Integer currencyId = currencyIds.get(currency);
+        if (currencyId == null) return result;
+
+        for (Segment segment : segments) {
+            segment.forEach((key, value) -> {
+                if ((int) key == currencyId && value != 0) {
+                    result.put(addresses[(int) (key >>> 32)], Money.toDecimal(value, currency));
+                }
+            });
+        }
+        return result;
+    }
+
+    /**
+     * Visit every non-zero balance. Each segment is read under its lock, so
+     * callers that need a point-in-time view must hold off writers themselves.
+     */
+    public void forEachBalance(BalanceVisitor visitor) {
+        String[] currencyNames = new String[currencyIds.size()];
+        for (Map.Entry<String, Integer> entry : currencyIds.entrySet()) {
+            if (entry.getValue() < currencyNames.length) currencyNames[entry.getValue()] = entry.getKey();
+        }
+        for (Segment segment : segments) {
+            segment.forEach((key, value) -> {
+                if (value != 0) {
+                    visitor.visit(addresses[(int) (key >>> 32)], currencyNames[(int) key], value);
+                }
+            });
+        }
+    }
+
+    /**
+     * Intern an address to its account id
+     */
+    public int accountId(String address) {
+        Integer id = accountIds.get(address);
+        if (id != null) return id;
+        synchronized (accountIds) {
+            id = accountIds.get(address);
+            if (id == null) {
+                id = accountIds.size() + 1; // 0 is reserved for empty slots
+                String[] names = addresses;
+                if (id >= names.length) {
+                    String[] grown = new String[names.length * 2];
+                    System.arraycopy(names, 0, grown, 0, names.length);
+                    names = grown;
+                }
+                names[id] = address;
+                addresses = names;
+                accountIds.put(address, id);
+            }
+            return id;
+        }
+    }
+
+    /**
+     * Whether the address was ever credited or debited, even if it holds nothing now
+     */
+    public boolean hasAccount(String address) {
+        return accountIds.containsKey(address);
+    }
+
+    public int getAccountCount() {
+        return accountIds.size();
+    }
+
+    private int currencyId(String currency) {
+        Integer id = currencyIds.get(currency);
+        if (id != null) return id;
+        synchronized (currencyIds) {
+            id = currencyIds.get(currency);
+            if (id == null) {
+                id = currencyIds.size();
+                currencyIds.put(currency, id);
+            }
+            return id;
+        }
+    }
+
+    private static long key(int account, int currency) {
+        return ((long) account << 32) | (currency & 0xffffffffL);
+    }
+
+    private Segment segmentFor(long key) {
+        return segments[(int) mix(key) & (SEGMENTS - 1)];
+    }
+
+    private static long mix(long key) {
+        key ^= key >>> 33;
+        key *= 0xff51afd7ed558ccdL;
+        key ^= key >>> 33;
+        key *= 0xc4ceb9fe1a85ec53L;
+        key ^= key >>> 33;
+        return key;
+    }
+
+    public interface BalanceVisitor {
+        void visit(String address, String currency, long minor);
+    }
+
+    interface EntryVisitor {
+        void visit(long key, long value);
+    }
+
+    /**
+     * Open-addressing long-to-long map with linear probing; key 0 marks an empty slot
+     */
+    private static final class Segment {
+        private final StampedLock lock = new StampedLock();
+        private long[] keys = new long[64];
+        private long[] values = new long[64];
+        private int size;
+
+        long get(long key) {
+            long stamp = lock.tryOptimisticRead();
+            long value = find(keys, values, key);
+            if (!lock.validate(stamp)) {
+                stamp = lock.readLock();
+                try {
+                    value = find(keys, values, key);
+                } finally {
+                    lock.unlockRead(stamp);
+                }
+            }
+            return value;
+        }
+
+        void add(long key, long delta) {
+            long stamp = lock.writeLock();
+            try {
+                int slot = slotFor(key);
+                values[slot] = Math.addExact(values[slot], delta);
+            } finally {
+                lock.unlockWrite(stamp);
+            }
+        }
+
+        boolean tryDebit(long key, long amount) {
+            long stamp = lock.writeLock();
+            try {
+                int slot = slotFor(key);
+                if (values[slot] < amount) return false;
+                values[slot] -= amount;
+                return true;
+            } finally {
+                lock.unlockWrite(stamp);
+            }
+        }
+
+        void forEach(EntryVisitor visitor) {
+            long stamp = lock.readLock();
+            try {
+                for (int i = 0; i < keys.length; i++) {
+                    if (keys[i] != 0) visitor.visit(keys[i], values[i]);
+                }
+            } finally {
+                lock.unlockRead(stamp);
+            }
+        }
+
+        private static long find(long[] keys, long[] values, long key) {
+            int mask = keys.length - 1;
+            // Arrays may be mid-resize during an optimistic read; bound the probe
+            for (int i = (int) (mix(key) >>> 32) & mask, probes = 0; probes <= mask; i = (i + 1) & mask, probes++) {
+                long k = keys[i];
+                if (k == key) return i < values.length ? values[i] : 0;
+                if (k == 0) return 0;
+            }
+            return 0;
+        }
+
+        /**
+         * Slot holding the key, inserting it with a zero balance if absent; call with the write lock held
+         */
+        private int slotFor(long key) {
+            int mask = keys.length - 1;
+            int i = (int) (mix(key) >>> 32) & mask;
+            while (keys[i] != 0) {
+                if (keys[i] == key) return i;
+                i = (i + 1) & mask;
+            }
+            if ((size + 1) * 4 > keys.length * 3) {
+                resize();
+                return slotFor(key);
+            }
+            keys[i] = key;
+            size++;
+            return i;
+        }
+
+        private void resize() {
+            long[] oldKeys = keys;
+            long[] oldValues = values;
+            long[] newKeys = new long[oldKeys.length * 2];
+            long[] newValues = new long[oldKeys.length * 2];
+            int mask = newKeys.length - 1;
+            for (int j = 0; j < oldKeys.length; j++) {
+                if (oldKeys[j] == 0) continue;
+                int i = (int) (mix(oldKeys[j]) >>> 32) & mask;
+                while (newKeys[i] != 0) i = (i + 1) & mask;
+                newKeys[i] = oldKeys[j];
+                newValues[i] = oldValues[j];
+            }
+            values = newValues;
+            keys = newKeys;
+        }
+    }
+}
@@ -1,4 +1,3 @@
-import java.security.MessageDigest;
 import java.util.Date;
 import java.util.ArrayList;
 import java.util.List;
@@ -12,6 +11,9 @@ public class Block {
     private List<Transaction> transactions;
     private long timestamp;
     private int nonce;
+    private byte[] headerPrefix;
+    private MerkleTree merkleTree;
+    private int merkleVersion = MerkleTree.VERSION;
     
     public Block(String previousHash) {
         this.previousHash = previousHash;
@@ -21,43 +23,121 @@ public class Block {
         this.hash = calculateHash();
     }
     
+    /**
+     * Create a block over transactions that were already validated, with
+     * their Merkle tree computed ahead of time
+     */
+    Block(String previousHash, List<Transaction> transactions, MerkleTree merkleTree) {
+        this.previousHash = previousHash;
+        this.transactions = new ArrayList<>(transactions);
+        this.merkleTree = merkleTree;
+        this.timestamp = new Date().getTime();
+        this.nonce = 0;
+        this.hash = calculateHash();
+    }
+    
+    /**
+     * Restore a mined block read back from storage, whose header commits to
+     * a Merkle tree of the given version
+     */
+    Block(String previousHash, long timestamp, int nonce, String hash, List<Transaction> transactions,
+          int merkleVersion) {
+        this.merkleVersion = merkleVersion;
+        this.previousHash = previousHash;
+        this.transactions = transactions;
+        this.timestamp = timestamp;
+        this.nonce = nonce;
+        this.hash = hash;
+    }
+    
     /**
      * Calculate the hash of this block using SHA-256
      */
     public String calculateHash() {
-        try {
-            String data = previousHash + 
-                         Long.toString(timestamp) + 
-                         Integer.toString(nonce) + 
-                         transactionsToString();
-            
-            MessageDigest digest = MessageDigest.getInstance("SHA-256");
-            byte[] hashBytes = digest.digest(data.getBytes("UTF-8"));
-            
-            StringBuilder hexString = new StringBuilder();
-            for (byte b : hashBytes) {
-                String hex = Integer.toHexString(0xff & b);
-                if (hex.length() == 1) hexString.append('0');
-                hexString.append(hex);
-            }
-            return hexString.toString();
-        } catch (Exception e) {
-            throw new RuntimeException(e);
+        return calculateHash(nonce);
+    }
+    
+    /**
+     * Calculate the hash this block would have with the given nonce
+     */
+    public String calculateHash(int nonce) {
+        return HashEngine.sha256Hex(getHeaderPrefix(), nonce);
+    }
+    
+    /**
+     * Recalculate the hash from the transactions, bypassing the cached
+     * Merkle tree and header
+     */
+    public String recalculateHash() {
+        StringBuilder sb = HashEngine.builder();
+        sb.append(previousHash).append(timestamp).append(MerkleTree.of(transactions, merkleVersion).getRoot());
+        return HashEngine.sha256Hex(HashEngine.utf8(sb), nonce);
+    }
+    
+    /**
+     * Serialized header without the nonce, which is appended last so the
+     * prefix can be hashed once per mining run. The header commits to the
+     * transactions only through the Merkle root, so its size does not
+     * depend on how many transactions the block holds.
+     */
+    byte[] getHeaderPrefix() {
+        byte[] prefix = headerPrefix;
+        if (prefix == null) {
+            StringBuilder sb = HashEngine.builder();
+            sb.append(previousHash).append(timestamp).append(getMerkleRoot());
+            prefix = HashEngine.utf8(sb);
+            headerPrefix = prefix;
         }
+        return prefix;
+    }
+    
+    /**
+     * Merkle tree over the hashes of this block's transactions
+     */
+    public MerkleTree getMerkleTree() {
+        MerkleTree tree = merkleTree;
+        if (tree == null) {
+            tree = MerkleTree.of(transactions, merkleVersion);
+            merkleTree = tree;
+        }
+        return tree;
+    }
+    
+    public String getMerkleRoot() {
+        return getMerkleTree().getRoot();
+    }
+    
+    public int getMerkleVersion() {
+        return merkleVersion;
     }
     
     /**
      * Mine the block with proof-of-work (simplified for fast processing)
      */
     public void mineBlock(int difficulty) {
-        String target = new String(new char[difficulty]).replace('\0', '0');
-        while (!hash.substring(0, difficulty).equals(target)) {
-            nonce++;
-            hash = calculateHash();
+        HashEngine.NonceSearch search = new HashEngine.NonceSearch(getHeaderPrefix());
+        int zeroBits = difficulty * 4;
+        int candidate = 0;
+        while (!search.tryNonce(candidate, zeroBits)) {
+            candidate++;
         }
+        nonce = candidate;
+        hash = search.hashHex();
         System.out.println("Block mined: " + hash);
     }
     
+    /**
+     * Mine the block with proof-of-work across the miner's worker pool
+     */
+    public ParallelMiner.MiningResult mineBlock(int difficulty, ParallelMiner miner) {
+        ParallelMiner.MiningResult result = miner.mine(this, difficulty);
+        this.nonce = result.getNonce();
+        this.hash = result.getHash();
+        System.out.println("Block mined: " + hash + " (" +
+                           Math.round(result.getHashesPerSecond()) + " H/s)");
+        return result;
+    }
+    
     /**
      * Add a transaction to this block
      */
@@ -73,17 +153,8 @@ public class Block {
         }
         
         transactions.add(transaction);
-    }
-    
-    /**
-     * Convert all transactions to a string
-     */
-    private String transactionsToString() {
-        StringBuilder sb = new StringBuilder();
-        for (Transaction t : transactions) {
-            sb.append(t.toString());
-        }
-        return sb.toString();
+        headerPrefix = null;
+        merkleTree = null;
     }
     
     // Getters and setters
@@ -0,0 +1,594 @@
+import java.math.BigDecimal;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * Versioned binary encoding of blocks and transactions, for the ledger
+ * log, replication and the application/octet-stream API.
+ *
+ * Every encoding starts with a format version byte and a dictionary of the
+ * distinct strings it uses (addresses, currencies, countries, FX rates),
+ * each written once; records then refer to strings by varint index.
+ * Hashes are stored as their raw 32 bytes and transaction ids as the 16
+ * bytes of their UUID; a value not in that form is written out as text. Amounts and quote legs are fixed-width big-endian
+ * integers, as wide as the largest one in the block needs; timestamps are
+ * varint offsets from the previous transaction's, or the block's. A same-currency quote that follows from
+ * the amount is not stored at all. Since version 2 each transaction ends
+ * with its signer's public key, a dictionary entry shared by the sender's
+ * transactions, and its raw DER signature; version 1 encodings, which have
+ * neither, still decode. Version 3 is laid out as version 2 and marks a
+ * block whose header commits to the current {@link MerkleTree} version;
+ * blocks of earlier versions commit to the paired tree and are still
+ * encoded as version 2, so their hashes check out wherever they are sent.
+ * Version 4, again laid out as version 2, marks transactions hashed with
+ * the current {@link Transaction#HASH_VERSION}; those of earlier versions
+ * keep the concatenated hash.
+ *
+ * Decoding reads straight from the buffer, heap or direct, without copying
+ * the encoding first, and builds one String per dictionary entry however
+ * many transactions share it.
+ */
+public final class BlockCodec {
+    public static final byte VERSION = 4;
+    private static final byte FIRST_VERSION = 1;
+    private static final byte PAIRED_TREE_VERSION = 2;       // latest version whose blocks use the paired Merkle tree
+    private static final byte CONCATENATED_HASH_VERSION = 3; // latest version whose transactions use the concatenated hash
+    public static final String CONTENT_TYPE = "application/octet-stream";
+
+    // Block flags
+    private static final int PREVIOUS_HASH_TEXT = 1;
+    private static final int HASH_TEXT = 1 << 1;
+    private static final int HAS_MINER = 1 << 2;
+
+    // Transaction flags: bits 0-2 flag fields held in other forms, 3-4 the status, 5-7 how the quote is stored
+    private static final int ID_TEXT = 1;
+    private static final int TX_HASH_TEXT = 1 << 1;
+    private static final int FUNDING_DIFFERS = 1 << 2;
+    private static final int STATUS_SHIFT = 3;
+    private static final int QUOTE_SHIFT = 5;
+
+    // Quote forms, from most to least derivable
+    private static final int NO_QUOTE = 0;
+    private static final int SAME_CURRENCY = 1;          // follows from the amount, base fee equal to the fee
+    private static final int SAME_CURRENCY_BASE_FEE = 2; // follows from the amount but for the base fee
+    private static final int CONVERSION = 3;             // the transaction's currencies; debit, fee, base fee and rate
+    private static final int FULL_QUOTE = 4;             // every field
+
+    private static final int HASH_BYTES = 32;
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+    private static final Transaction.TransactionStatus[] STATUSES = Transaction.TransactionStatus.values();
+
+    private BlockCodec() {
+    }
+
+    /**
+     * Encode a block with the address its reward was paid to, or null
+     */
+    public static byte[] encode(Block block, String minerAddress) {
+        List<Transaction> transactions = block.getTransactions();
+        Dictionary dictionary = new Dictionary();
+        boolean previousText = !isHash(block.getPreviousHash());
+        boolean hashText = !isHash(block.getHash());
+        if (minerAddress != null) dictionary.add(minerAddress);
+        for (Transaction transaction : transactions) {
+            dictionary.addStrings(transaction);
+        }
+
+        Writer out = new Writer(64 + dictionary.bytes + transactions.size() * 80);
+        out.writeByte(block.getMerkleVersion() != MerkleTree.VERSION ? PAIRED_TREE_VERSION : version(transactions));
+        out.writeByte((previousText ? PREVIOUS_HASH_TEXT : 0) | (hashText ? HASH_TEXT : 0) |
+                      (minerAddress != null ? HAS_MINER : 0));
+        dictionary.writeTo(out);
+        if (minerAddress != null) out.writeVarint(dictionary.indexOf(minerAddress));
+        writeHash(out, block.getPreviousHash(), previousText);
+        out.writeLong(block.getTimestamp());
+        out.writeInt(block.getNonce());
+        writeHash(out, block.getHash(), hashText);
+        out.writeByte(dictionary.width);
+        out.writeVarint(transactions.size());
+        long previousTimestamp = block.getTimestamp();
+        for (Transaction transaction : transactions) {
+            writeTransaction(out, transaction, previousTimestamp, dictionary.width, dictionary);
+            previousTimestamp = transaction.getTimestamp();
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * Decode a block; the miner address, or null, is returned through minerAddress[0]
+     *
+     * @throws IllegalArgumentException if the encoding is of an unknown version
+     */
+    public static Block decode(ByteBuffer in, String[] minerAddress) {
+        int version = readVersion(in);
+        int flags = in.get() & 0xff;
+        String[] dictionary = readDictionary(in);
+        String miner = (flags & HAS_MINER) != 0 ? dictionary[readVarint(in)] : null;
+        if (minerAddress != null) minerAddress[0] = miner;
+        String previousHash = readHash(in, (flags & PREVIOUS_HASH_TEXT) != 0);
+        long timestamp = in.getLong();
+        int nonce = in.getInt();
+        String hash = readHash(in, (flags & HASH_TEXT) != 0);
+        int width = readWidth(in);
+        int count = readVarint(in);
+        List<Transaction> transactions = new ArrayList<>(count);
+        long previousTimestamp = timestamp;
+        for (int i = 0; i < count; i++) {
+            Transaction transaction = readTransaction(in, version, previousTimestamp, width, dictionary);
+            transactions.add(transaction);
+            previousTimestamp = transaction.getTimestamp();
+        }
+        return new Block(previousHash, timestamp, nonce, hash, transactions,
+                         version > PAIRED_TREE_VERSION ? MerkleTree.VERSION : MerkleTree.VERSION_PAIRED);
+    }
+
+    /**
+     * Encode one transaction, with its status and quote
+     */
+    public static byte[] encode(Transaction transaction) {
+        Dictionary dictionary = new Dictionary();
+        dictionary.addStrings(transaction);
+        Writer out = new Writer(96 + dictionary.bytes);
+        out.writeByte(version(Collections.singletonList(transaction)));
+        dictionary.writeTo(out);
+        out.writeByte(dictionary.width);
+        writeTransaction(out, transaction, 0, dictionary.width, dictionary);
+        return out.toByteArray();
+    }
+
+    /**
+     * @throws IllegalArgumentException if the encoding is of an unknown version
+     */
+    public static Transaction decodeTransaction(ByteBuffer in) {
+        int version = readVersion(in);
+        String[] dictionary = readDictionary(in);
+        return readTransaction(in, version, 0, readWidth(in), dictionary);
+    }
+
+    @SuppressWarnings("fallthrough") // A full quote is a conversion plus its currencies and credit
+    private static void writeTransaction(Writer out, Transaction transaction, long baseTimestamp, int width,
+                                         Dictionary dictionary) {
+        FxEngine.Quote quote = transaction.getQuote();
+        String id = transaction.getTransactionId();
+        boolean idText = !isUuid(id);
+        boolean hashText = !isHash(transaction.getHash());
+        boolean fundingDiffers = !transaction.getFundingCurrency().equals(transaction.getCurrency());
+        int quoteForm = quoteForm(transaction, quote);
+        out.writeByte((idText ? ID_TEXT : 0) | (hashText ? TX_HASH_TEXT : 0) | (fundingDiffers ? FUNDING_DIFFERS : 0) |
+                      (transaction.getStatus().ordinal() << STATUS_SHIFT) | (quoteForm << QUOTE_SHIFT));
+
+        if (idText) {
+            out.writeString(id);
+        } else {
+            out.writeLong(hexLong(id, 0, 8) << 32 | hexLong(id, 9, 4) << 16 | hexLong(id, 14, 4));
+            out.writeLong(hexLong(id, 19, 4) << 48 | hexLong(id, 24, 12));
+        }
+        out.writeVarint(dictionary.indexOf(transaction.getSender()));
+        out.writeVarint(dictionary.indexOf(transaction.getReceiver()));
+        out.writeFixed(transaction.getAmountMinor(), width);
+        out.writeVarint(dictionary.indexOf(transaction.getCurrency()));
+        if (fundingDiffers) out.writeVarint(dictionary.indexOf(transaction.getFundingCurrency()));
+        out.writeVarint(dictionary.indexOf(transaction.getSenderCountry()));
+        out.writeVarint(dictionary.indexOf(transaction.getReceiverCountry()));
+        out.writeVarlong(transaction.getTimestamp() - baseTimestamp);
+        writeHash(out, transaction.getHash(), hashText);
+
+        switch (quoteForm) {
+            case SAME_CURRENCY_BASE_FEE:
+                out.writeFixed(quote.getBaseFee(), width);
+                break;
+            case FULL_QUOTE:
+                out.writeVarint(dictionary.indexOf(quote.getFundingCurrency()));
+                out.writeVarint(dictionary.indexOf(quote.getSettlementCurrency()));
+                out.writeFixed(quote.getCredit(), width);
+                // fall through
+            case CONVERSION:
+                out.writeFixed(quote.getDebit(), width);
+                out.writeFixed(quote.getFee(), width);
+                out.writeFixed(quote.getBaseFee(), width);
+                out.writeVarint(dictionary.indexOf(quote.getRate()));
+                break;
+            default:
+                break;
+        }
+        
+        out.writeVarint(dictionary.indexOf(transaction.getPublicKey())); // 0 if unsigned
+        if (transaction.getPublicKey() != null) {
+            out.writeBytes(Base64.getDecoder().decode(transaction.getSignature()));
+        }
+    }
+
+    private static Transaction readTransaction(ByteBuffer in, int version, long baseTimestamp, int width,
+                                               String[] dictionary) {
+        int flags = in.get() & 0xff;
+        String transactionId = (flags & ID_TEXT) != 0 ? readString(in) :
+                               new UUID(in.getLong(), in.getLong()).toString();
+        String sender = dictionary[readVarint(in)];
+        String receiver = dictionary[readVarint(in)];
+        long amount = readFixed(in, width);
+        String currency = dictionary[readVarint(in)];
+        String fundingCurrency = (flags & FUNDING_DIFFERS) != 0 ? dictionary[readVarint(in)] : currency;
+        String senderCountry = dictionary[readVarint(in)];
+        String receiverCountry = dictionary[readVarint(in)];
+        long timestamp = baseTimestamp + readVarlong(in);
+        String hash = readHash(in, (flags & TX_HASH_TEXT) != 0);
+        Transaction.TransactionStatus status = STATUSES[(flags >>> STATUS_SHIFT) & 3];
+        Transaction transaction = new Transaction(transactionId, sender, receiver, amount, currency, fundingCurrency,
+                                                  senderCountry, receiverCountry, timestamp, hash,
+                                                  version > CONCATENATED_HASH_VERSION ? Transaction.HASH_VERSION :
+                                                  Transaction.HASH_VERSION_CONCATENATED, status);
+
+        int quoteForm = flags >>> QUOTE_SHIFT;
+        if (quoteForm == SAME_CURRENCY || quoteForm == SAME_CURRENCY_BASE_FEE) {
+            long fee = Money.fee(amount, currency);
+            long baseFee = quoteForm == SAME_CURRENCY ? fee : readFixed(in, width);
+            transaction.setQuote(new FxEngine.Quote(currency, amount + fee, fee, currency, amount, baseFee,
+                                                    BigDecimal.ONE));
+        } else if (quoteForm == CONVERSION || quoteForm == FULL_QUOTE) {
+            String quoteFunding = fundingCurrency;
+            String quoteSettlement = currency;
+            long credit = amount;
+            if (quoteForm == FULL_QUOTE) {
+                quoteFunding = dictionary[readVarint(in)];
+                quoteSettlement = dictionary[readVarint(in)];
+                credit = readFixed(in, width);
+            }
+            long debit = readFixed(in, width);
+            long fee = readFixed(in, width);
+            long baseFee = readFixed(in, width);
+            transaction.setQuote(new FxEngine.Quote(quoteFunding, debit, fee, quoteSettlement, credit, baseFee,
+                                                    new BigDecimal(dictionary[readVarint(in)])));
+        } else if (quoteForm != NO_QUOTE) {
+            throw new IllegalArgumentException("Unknown quote form " + quoteForm);
+        }
+        
+        if (version >= 2) {
+            String publicKey = dictionary[readVarint(in)];
+            if (publicKey != null) {
+                byte[] signature = new byte[readVarint(in)];
+                in.get(signature);
+                transaction.setSignature(publicKey, Base64.getEncoder().encodeToString(signature));
+            }
+        }
+        return transaction;
+    }
+
+    /**
+     * How much of a quote has to be stored: a same-currency transfer at
+     * rate 1 paying the standard fee follows from the amount, and a
+     * conversion between the transaction's own currencies crediting the
+     * amount needs no currencies or credit
+     */
+    private static int quoteForm(Transaction transaction, FxEngine.Quote quote) {
+        if (quote == null) return NO_QUOTE;
+        String currency = transaction.getCurrency();
+        long amount = transaction.getAmountMinor();
+        if (!quote.getFundingCurrency().equals(transaction.getFundingCurrency()) ||
+            !quote.getSettlementCurrency().equals(currency) || quote.getCredit() != amount) {
+            return FULL_QUOTE;
+        }
+        if (!quote.isConversion()) {
+            long fee = transaction.calculateFeeMinor();
+            if (quote.getFee() == fee && quote.getDebit() == amount + fee &&
+                quote.getRate().compareTo(BigDecimal.ONE) == 0) {
+                return quote.getBaseFee() == fee ? SAME_CURRENCY : SAME_CURRENCY_BASE_FEE;
+            }
+        }
+        return CONVERSION;
+    }
+
+    private static int readWidth(ByteBuffer in) {
+        int width = in.get();
+        if (width < 1 || width > 8) {
+            throw new IllegalArgumentException("Invalid amount width " + width);
+        }
+        return width;
+    }
+
+    /**
+     * Read a big-endian two's complement integer of width bytes
+     */
+    private static long readFixed(ByteBuffer in, int width) {
+        long value = in.get(); // sign-extends the top byte
+        for (int i = 1; i < width; i++) {
+            value = value << 8 | (in.get() & 0xff);
+        }
+        return value;
+    }
+
+    /**
+     * Version to encode transactions with the current Merkle tree in; a
+     * block's transactions all share one hash version, as it is fixed when
+     * they are created or read
+     */
+    private static byte version(List<Transaction> transactions) {
+        for (Transaction transaction : transactions) {
+            if (transaction.getHashVersion() == Transaction.HASH_VERSION_CONCATENATED) return CONCATENATED_HASH_VERSION;
+        }
+        return VERSION;
+    }
+
+    private static int readVersion(ByteBuffer in) {
+        byte version = in.get();
+        if (version < FIRST_VERSION || version > VERSION) {
+            throw new IllegalArgumentException("Unsupported block encoding version " + version);
+        }
+        return version;
+    }
+
+    // Strings
+
+    private static String[] readDictionary(ByteBuffer in) {
+        int count = readVarint(in);
+        String[] strings = new String[count + 1]; // index 0 is null
+        for (int i = 1; i <= count; i++) {
+            strings[i] = readString(in);
+        }
+        return strings;
+    }
+
+    /**
+     * A varint length and that many UTF-8 bytes, decoded in place from a heap buffer
+     */
+    private static String readString(ByteBuffer in) {
+        int length = readVarint(in);
+        if (in.hasArray()) {
+            String value = new String(in.array(), in.arrayOffset() + in.position(), length, StandardCharsets.UTF_8);
+            in.position(in.position() + length);
+            return value;
+        }
+        byte[] bytes = new byte[length];
+        in.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Distinct strings of one encoding in first-use order; null is index 0
+     */
+    private static final class Dictionary {
+        private final Map<String, Integer> indexes = new HashMap<>();
+        private final Map<BigDecimal, Integer> rates = new IdentityHashMap<>(); // quotes share their table's rate
+        private final List<byte[]> encoded = new ArrayList<>();
+        int bytes;
+        int width = 1; // bytes of the widest amount
+
+        void add(String value) {
+            if (value == null || indexes.containsKey(value)) return;
+            byte[] utf8 = value.getBytes(StandardCharsets.UTF_8);
+            encoded.add(utf8);
+            indexes.put(value, encoded.size());
+            bytes += utf8.length + 2;
+        }
+
+        void addStrings(Transaction transaction) {
+            add(transaction.getSender());
+            add(transaction.getReceiver());
+            add(transaction.getCurrency());
+            add(transaction.getFundingCurrency());
+            add(transaction.getSenderCountry());
+            fit(transaction.getAmountMinor());
+            add(transaction.getReceiverCountry());
+            add(transaction.getPublicKey());
+            FxEngine.Quote quote = transaction.getQuote();
+            if (quote != null) {
+                fit(quote.getDebit());
+                fit(quote.getBaseFee());
+                fit(quote.getCredit());
+            }
+            if (quote != null && quoteForm(transaction, quote) >= CONVERSION) {
+                add(quote.getFundingCurrency());
+                add(quote.getSettlementCurrency());
+                if (!rates.containsKey(quote.getRate())) {
+                    String rate = quote.getRate().toString();
+                    add(rate);
+                    rates.put(quote.getRate(), indexes.get(rate));
+                }
+            }
+        }
+
+        private void fit(long value) {
+            int bits = 65 - Long.numberOfLeadingZeros(value < 0 ? ~value : value); // with the sign bit
+            width = Math.max(width, (bits + 7) / 8);
+        }
+
+        int indexOf(BigDecimal rate) {
+            return rates.get(rate);
+        }
+
+        int indexOf(String value) {
+            return value == null ? 0 : indexes.get(value);
+        }
+
+        void writeTo(Writer out) {
+            out.writeVarint(encoded.size());
+            for (byte[] utf8 : encoded) {
+                out.writeBytes(utf8);
+            }
+        }
+    }
+
+    // Hashes and ids
+
+    /**
+     * Whether a value is a 64-character lowercase hex hash, which is stored as raw bytes
+     */
+    private static boolean isHash(String value) {
+        if (value == null || value.length() != HASH_BYTES * 2) return false;
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if ((c < '0' || c > '9') && (c < 'a' || c > 'f')) return false;
+        }
+        return true;
+    }
+
+    private static void writeHash(Writer out, String hash, boolean text) {
+        if (text) {
+            out.writeString(hash);
+            return;
+        }
+        for (int i = 0; i < HASH_BYTES; i++) {
+            out.writeByte(hexDigit(hash.charAt(2 * i)) << 4 | hexDigit(hash.charAt(2 * i + 1)));
+        }
+    }
+
+    private static String readHash(ByteBuffer in, boolean text) {
+        if (text) return readString(in);
+        char[] chars = new char[HASH_BYTES * 2];
+        for (int i = 0; i < HASH_BYTES; i++) {
+            int b = in.get();
+            chars[2 * i] = HEX[(b >>> 4) & 0xf];
+            chars[2 * i + 1] = HEX[b & 0xf];
+        }
+        return new String(chars);
+    }
+
+    /**
+     * Whether an id is a UUID in canonical lowercase form, which is stored
+     * as its 16 bytes and decodes back to the same string
+     */
+    private static boolean isUuid(String id) {
+        if (id == null || id.length() != 36) return false;
+        for (int i = 0; i < 36; i++) {
+            char c = id.charAt(i);
+            if (i == 8 || i == 13 || i == 18 || i == 23) {
+                if (c != '-') return false;
+            } else if ((c < '0' || c > '9') && (c < 'a' || c > 'f')) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Value of a lowercase hex digit already checked by isHash or isUuid
+     */
+    private static int hexDigit(char c) {
+        return c <= '9' ? c - '0' : c - 'a' + 10;
+    }
+
+    private static long hexLong(String value, int offset, int digits) {
+        long result = 0;
+        for (int i = offset; i < offset + digits; i++) {
+            result = result << 4 | hexDigit(value.charAt(i));
+        }
+        return result;
+    }
+
+    // Varints: 7 bits per byte, low group first; varlongs are zigzag encoded
+
+    private static int readVarint(ByteBuffer in) {
+        int value = 0;
+        for (int shift = 0; shift < 35; shift += 7) {
+            byte b = in.get();
+            value |= (b & 0x7f) << shift;
+            if (b >= 0) return value;
+        }
+        throw new IllegalArgumentException("Malformed varint");
+    }
+
+    private static long readVarlong(ByteBuffer in) {
+        long value = 0;
+        for (int shift = 0; shift < 70; shift += 7) {
+            byte b = in.get();
+            value |= (long) (b & 0x7f) << shift;
+            if (b >= 0) return (value >>> 1) ^ -(value & 1);
+        }
+        throw new IllegalArgumentException("Malformed varint");
+    }
+
+    /**
+     * Growable big-endian output buffer
+     */
+    private static final class Writer {
+        private byte[] buffer;
+        private int size;
+
+        Writer(int capacity) {
+            buffer = new byte[capacity];
+        }
+
+        void writeByte(int value) {
+            ensure(1);
+            buffer[size++] = (byte) value;
+        }
+
+        void writeInt(int value) {
+            ensure(4);
+            for (int shift = 24; shift >= 0; shift -= 8) {
+                buffer[size++] = (byte) (value >>> shift);
+            }
+        }
+
+        void writeLong(long value) {
+            ensure(8);
+            for (int shift = 56; shift >= 0; shift -= 8) {
+                buffer[size++] = (byte) (value >>> shift);
+            }
+        }
+
+        void writeFixed(long value, int width) {
+            ensure(width);
+            for (int shift = (width - 1) * 8; shift >= 0; shift -= 8) {
+                buffer[size++] = (byte) (value >>> shift);
+            }
+        }
+
+        void writeVarint(int value) {
+            ensure(5);
+            byte[] out = buffer;
+            int position = size;
+            while ((value & ~0x7f) != 0) {
+                out[position++] = (byte) ((value & 0x7f) | 0x80);
+                value >>>= 7;
+            }
+            out[position++] = (byte) value;
+            size = position;
+        }
+
+        void writeVarlong(long value) {
+            ensure(10);
+            byte[] out = buffer;
+            int position = size;
+            long zigzag = (value << 1) ^ (value >> 63);
+            while ((zigzag & ~0x7fL) != 0) {
+                out[position++] = (byte) ((zigzag & 0x7f) | 0x80);
+                zigzag >>>= 7;
+            }
+            out[position++] = (byte) zigzag;
+            size = position;
+        }
+
+        void writeString(String value) {
+            writeBytes(value.getBytes(StandardCharsets.UTF_8));
+        }
+
+        /**
+         * A varint length followed by the bytes
+         */
+        void writeBytes(byte[] bytes) {
+            writeVarint(bytes.length);
+            ensure(bytes.length);
+            System.arraycopy(bytes, 0, buffer, size, bytes.length);
+            size += bytes.length;
+        }
+
+        private void ensure(int bytes) {
+            if (size + bytes > buffer.length) {
+                buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, size + bytes));
+            }
+        }
+
+        byte[] toByteArray() {
+            return size == buffer.length ? buffer : Arrays.copyOf(buffer, size);
+        }
+    }
+}
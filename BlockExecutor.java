@@ -0,0 +1,230 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Applies a block's balance changes across cores.
+ *
+ * Transactions are split with a union-find over their sender and receiver
+ * into groups that share no account, and whole groups are handed to
+ * workers, so no two workers ever touch the same balance and each
+ * account's updates keep block order. The miner, who earns a fee from
+ * every transaction, and the FX exchange account, which is the other side
+ * of every conversion, are left out of the grouping: each worker sums
+ * their amounts per currency and the sums are credited once at the end.
+ * Balance updates are additions, so the result is exactly the serial one.
+ */
+public class BlockExecutor {
+    private static final int MIN_PARALLEL = 256;
+
+    private final int workers;
+    private final ExecutorService pool;
+
+    public BlockExecutor() {
+        this(Integer.getInteger("crosspay.blockexec.threads", Runtime.getRuntime().availableProcessors()));
+    }
+
+    public BlockExecutor(int workers) {
+        if (workers < 1) {
+            throw new IllegalArgumentException("Block executor needs at least one worker");
+        }
+        this.workers = workers;
+        this.pool = Executors.newFixedThreadPool(workers, runnable -> {
+            Thread thread = new Thread(runnable, "block-executor");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Credit receivers, and with debitSenders also debit senders, at each
+     * transaction's quote, settle conversions against the exchange account,
+     * then pay the miner every fee plus the base currency reward per
+     * transaction. Transactions are marked COMPLETED.
+     */
+    public void apply(AccountStore balances, List<Transaction> transactions, String minerAddress,
+                      long rewardPerTransaction, boolean debitSenders) {
+        int count = transactions.size();
+        if (count == 0) return;
+        Totals totals = new Totals();
+        if (count < MIN_PARALLEL || workers == 1) {
+            applyRange(balances, transactions, null, 0, count, debitSenders, totals);
+        } else {
+            applyParallel(balances, transactions, debitSenders, totals);
+        }
+
+        totals.add(totals.fees, Money.BASE_CURRENCY, rewardPerTransaction * count);
+        for (Map.Entry<String, long[]> fee : totals.fees.entrySet()) {
+            balances.credit(minerAddress, fee.getKey(), fee.getValue()[0]);
+        }
+        for (Map.Entry<String, long[]> position : totals.exchange.entrySet()) {
+            if (position.getValue()[0] != 0) {
+                balances.credit(FxEngine.EXCHANGE_ACCOUNT, position.getKey(), position.getValue()[0]);
+            }
+        }
+    }
+
+    private void applyParallel(AccountStore balances, List<Transaction> transactions, boolean debitSenders,
+                               Totals totals) {
+        int count = transactions.size();
+        int[] order = new int[count];
+        int[] groupStarts = group(transactions, order);
+
+        // Deal whole groups to workers, largest first, each to the least loaded worker
+        int groups = groupStarts.length - 1;
+        Integer[] bySize = new Integer[groups];
+        for (int g = 0; g < groups; g++) bySize[g] = g;
+        Arrays.sort(bySize, (a, b) -> Integer.compare(groupStarts[b + 1] - groupStarts[b],
+                                                      groupStarts[a + 1] - groupStarts[a]));
+        List<List<Integer>> assignments = new ArrayList<>(workers);
+        int[] load = new int[workers];
+        for (int w = 0; w < workers; w++) assignments.add(new ArrayList<>());
+        for (int g : bySize) {
+            int target = 0;
+            for (int w = 1; w < workers; w++) {
+                if (load[w] < load[target]) target = w;
+            }
+            assignments.get(target).add(g);
+            load[target] += groupStarts[g + 1] - groupStarts[g];
+        }
+
+        List<Future<Totals>> futures = new ArrayList<>(workers);
+        for (List<Integer> assigned : assignments) {
+            if (assigned.isEmpty()) continue;
+            futures.add(pool.submit(() -> {
+                Totals workerTotals = new Totals();
+                for (int g : assigned) {
+                    applyRange(balances, transactions, order, groupStarts[g], groupStarts[g + 1], debitSenders,
+                               workerTotals);
+                }
+                return workerTotals;
+            }));
+        }
+
+        for (Future<Totals> future : futures) {
+            try {
+                totals.merge(future.get());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("Interrupted while applying block", e);
+            } catch (ExecutionException e) {
+                throw new RuntimeException(e.getCause());
+            }
+        }
+    }
+
+    /**
+     * Apply the transactions at order[from..to), or at from..to when order
+     * is null, adding what they owe the miner and the exchange account to totals
+     */
+    private void applyRange(AccountStore balances, List<Transaction> transactions, int[] order, int from, int to,
+                            boolean debitSenders, Totals totals) {
+        for (int i = from; i < to; i++) {
+            Transaction transaction = transactions.get(order == null ? i : order[i]);
+            FxEngine.Quote quote = FxEngine.Quote.of(transaction);
+            if (debitSenders) {
+                balances.credit(transaction.getSender(), quote.getFundingCurrency(), -quote.getDebit());
+            }
+            balances.credit(transaction.getReceiver(), quote.getSettlementCurrency(), quote.getCredit());
+            totals.add(totals.fees, quote.getFundingCurrency(), quote.getFee());
+            if (quote.isConversion()) {
+                totals.add(totals.exchange, quote.getFundingCurrency(), quote.getDebit() - quote.getFee());
+                totals.add(totals.exchange, quote.getSettlementCurrency(), -quote.getCredit());
+            }
+            transaction.setStatus(Transaction.TransactionStatus.COMPLETED);
+        }
+    }
+
+    /**
+     * Fill order with the transaction indexes grouped by connected accounts,
+     * keeping block order within a group, and return where each group starts
+     * (with the total count as a final entry)
+     */
+    private static int[] group(List<Transaction> transactions, int[] order) {
+        int count = transactions.size();
+        Map<String, Integer> accounts = new HashMap<>(count * 2);
+        int[] parent = new int[count * 2];
+        int[] senderOf = new int[count];
+        for (int i = 0; i < count; i++) {
+            Transaction transaction = transactions.get(i);
+            int sender = accountIndex(accounts, parent, transaction.getSender());
+            int receiver = accountIndex(accounts, parent, transaction.getReceiver());
+            union(parent, sender, receiver);
+            senderOf[i] = sender;
+        }
+
+        // Sort by (root, position); the position breaks ties, so block order survives
+        long[] keyed = new long[count];
+        for (int i = 0; i < count; i++) {
+            keyed[i] = ((long) find(parent, senderOf[i]) << 32) | i;
+        }
+        Arrays.sort(keyed);
+
+        int[] starts = new int[count + 1];
+        int groups = 0;
+        for (int i = 0; i < count; i++) {
+            order[i] = (int) keyed[i];
+            if (i == 0 || (keyed[i] >>> 32) != (keyed[i - 1] >>> 32)) {
+                starts[groups++] = i;
+            }
+        }
+        starts[groups] = count;
+        return Arrays.copyOf(starts, groups + 1);
+    }
+
+    /**
+     * Per-currency sums owed to the miner and the exchange account
+     */
+    private static final class Totals {
+        final Map<String, long[]> fees = new HashMap<>(4);
+        final Map<String, long[]> exchange = new HashMap<>(4);
+
+        void add(Map<String, long[]> sums, String currency, long minor) {
+            long[] sum = sums.get(currency);
+            if (sum == null) {
+                sum = new long[1];
+                sums.put(currency, sum);
+            }
+            sum[0] = Math.addExact(sum[0], minor);
+        }
+
+        void merge(Totals other) {
+            for (Map.Entry<String, long[]> fee : other.fees.entrySet()) {
+                add(fees, fee.getKey(), fee.getValue()[0]);
+            }
+            for (Map.Entry<String, long[]> position : other.exchange.entrySet()) {
+                add(exchange, position.getKey(), position.getValue()[0]);
+            }
+        }
+    }
+
+    private static int accountIndex(Map<String, Integer> accounts, int[] parent, String address) {
+        Integer index = accounts.get(address);
+        if (index == null) {
+            index = accounts.size();
+            accounts.put(address, index);
+            parent[index] = index;
+        }
+        return index;
+    }
+
+    private static int find(int[] parent, int node) {
+        while (parent[node] != node) {
+            parent[node] = parent[parent[node]]; // path halving
+            node = parent[node];
+        }
+        return node;
+    }
+
+    private static void union(int[] parent, int a, int b) {
+        int rootA = find(parent, a);
+        int rootB = find(parent, b);
+        if (rootA != rootB) parent[Math.max(rootA, rootB)] = Math.min(rootA, rootB);
+    }
+}
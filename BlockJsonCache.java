@@ -0,0 +1,189 @@
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import org.json.JSONObject;
+import org.json.JSONWriter;
+
+/**
+ * Cache of mined blocks pre-encoded as UTF-8 JSON.
+ *
+ * A mined block never changes, so it is encoded once, when it is appended
+ * or first requested, and responses are assembled by copying byte slices:
+ * the whole block, the block without its transactions, or one transaction.
+ * Entries are evicted least-recently-used once the cache holds more than
+ * its byte budget.
+ */
+public class BlockJsonCache implements Blockchain.BlockListener {
+    private static final int ENTRY_OVERHEAD = 96;
+
+    private final long maxBytes;
+    private final LinkedHashMap<Integer, Entry> entries;
+    private long bytes;
+
+    public BlockJsonCache() {
+        this(Long.getLong("crosspay.cache.blockBytes", 64L * 1024 * 1024));
+    }
+
+    public BlockJsonCache(long maxBytes) {
+        this.maxBytes = maxBytes;
+        this.entries = new LinkedHashMap<>(1024, 0.75f, true);
+    }
+
+    @Override
+    public void blockAppended(int height, Block block) {
+        put(height, encode(height, block));
+    }
+
+    /**
+     * Encoded block at a height, encoding it on a miss
+     */
+    public Entry get(int height, Block block) {
+        Entry entry;
+        synchronized (entries) {
+            entry = entries.get(height);
+        }
+        if (entry == null || !entry.hash.equals(block.getHash())) {
+            entry = encode(height, block);
+            put(height, entry);
+        }
+        return entry;
+    }
+
+    private void put(int height, Entry entry) {
+        synchronized (entries) {
+            Entry previous = entries.put(height, entry);
+            if (previous != null) bytes -= previous.weight();
+            bytes += entry.weight();
+
+            Iterator<Map.Entry<Integer, Entry>> eldest = entries.entrySet().iterator();
+            while (bytes > maxBytes && eldest.hasNext()) {
+                Map.Entry<Integer, Entry> candidate = eldest.next();
+                if (candidate.getValue() == entry) break;
+                bytes -= candidate.getValue().weight();
+                eldest.remove();
+            }
+        }
+    }
+
+    public long getBytes() {
+        synchronized (entries) {
+            return bytes;
+        }
+    }
+
+    static Entry encode(int height, Block block) {
+        StringBuilder fields = new StringBuilder(256);
+        fields.append("{\"height\":").append(height)
+              .append(",\"hash\":").append(JSONObject.quote(block.getHash()))
+              .append(",\"previousHash\":").append(JSONObject.quote(block.getPreviousHash()))
+              .append(",\"timestamp\":").append(block.getTimestamp())
+              .append(",\"nonce\":").append(block.getNonce())
+              .append(",\"merkleRoot\":").append(JSONObject.quote(block.getMerkleRoot()));
+        int fieldsLength = fields.toString().getBytes(StandardCharsets.UTF_8).length;
+
+        // Encode each transaction on its own so its byte range is known
+        int count = block.getTransactions().size();
+        byte[][] encoded = new byte[count][];
+        for (int i = 0; i < count; i++) {
+            StringBuilder tx = new StringBuilder(256);
+            writeTransaction(new JSONWriter(tx), block.getTransactions().get(i));
+            encoded[i] = tx.toString().getBytes(StandardCharsets.UTF_8);
+        }
+
+        byte[] head = fields.append(",\"transactions\":[").toString().getBytes(StandardCharsets.UTF_8);
+        int total = head.length + Math.max(0, count - 1) + 2;
+        for (byte[] tx : encoded) total += tx.length;
+        byte[] out = new byte[total];
+        System.arraycopy(head, 0, out, 0, head.length);
+        int position = head.length;
+        int[] ranges = new int[2 * count];
+        for (int i = 0; i < count; i++) {
+            if (i > 0) out[position++] = ',';
+            ranges[2 * i] = position;
+            System.arraycopy(encoded[i], 0, out, position, encoded[i].length);
+            position += encoded[i].length;
+            ranges[2 * i + 1] = position;
+        }
+        out[position++] = ']';
+        out[position] = '}';
+
+        byte[] countSuffix = (",\"transactionCount\":" + count + "}").getBytes(StandardCharsets.UTF_8);
+        return new Entry(block.getHash(), out, fieldsLength, countSuffix, ranges);
+    }
+
+    public static void writeTransaction(JSONWriter writer, Transaction tx) {
+        writer.object()
+              .key("transactionId").value(tx.getTransactionId())
+              .key("sender").value(tx.getSender())
+              .key("receiver").value(tx.getReceiver())
+              .key("amount").value(tx.getAmount())
+              .key("currency").value(tx.getCurrency())
+              .key("senderCountry").value(tx.getSenderCountry())
+              .key("receiverCountry").value(tx.getReceiverCountry())
+              .key("timestamp").value(tx.getTimestamp())
+              .key("status").value(tx.getStatus().toString())
+              .key("fee").value(tx.calculateFee())
+              .key("fundingCurrency").value(tx.getFundingCurrency());
+        FxEngine.Quote quote = tx.getQuote();
+        if (quote != null) {
+            writer.key("fundingAmount").value(Money.toDecimal(quote.getDebit(), quote.getFundingCurrency()))
+                  .key("fxRate").value(quote.getRate());
+        }
+        if (tx.getSignature() != null) {
+            writer.key("publicKey").value(tx.getPublicKey())
+                  .key("signature").value(tx.getSignature());
+        }
+        writer.endObject();
+    }
+
+    /**
+     * One encoded block: the full JSON object, with the byte range of each
+     * transaction and the length of the header fields that precede them
+     */
+    public static class Entry {
+        private final String hash;
+        private final byte[] json;
+        private final int fieldsLength;
+        private final byte[] countSuffix;
+        private final int[] ranges; // start and end of each transaction
+
+        Entry(String hash, byte[] json, int fieldsLength, byte[] countSuffix, int[] ranges) {
+            this.hash = hash;
+            this.json = json;
+            this.fieldsLength = fieldsLength;
+            this.countSuffix = countSuffix;
+            this.ranges = ranges;
+        }
+
+        /**
+         * Write the block, or with headersOnly its header fields and transaction count
+         */
+        public void writeTo(OutputStream out, boolean headersOnly) throws IOException {
+            if (headersOnly) {
+                out.write(json, 0, fieldsLength);
+                out.write(countSuffix);
+            } else {
+                out.write(json);
+            }
+        }
+
+        public byte[] getJson() {
+            return json;
+        }
+
+        public int getTransactionOffset(int index) {
+            return ranges[2 * index];
+        }
+
+        public int getTransactionLength(int index) {
+            return ranges[2 * index + 1] - ranges[2 * index];
+        }
+
+        private long weight() {
+            return json.length + countSuffix.length + 4L * ranges.length + ENTRY_OVERHEAD;
+        }
+    }
+}
@@ -0,0 +1,183 @@
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Background block production.
+ *
+ * A block is sealed when maxPending transactions are waiting or
+ * intervalMillis have passed since the last seal, whichever comes first,
+ * and never while the mempool is empty. Assembly and mining are
+ * pipelined: while one block is mined on the mining thread, the producer
+ * thread waits for the next trigger and assembles the next block (selects,
+ * debits and builds its Merkle tree), so it is ready the moment the
+ * previous proof-of-work is found.
+ *
+ * Settlement latency, from admission to the mempool, by this node's clock,
+ * to the transaction's block being appended, is recorded for every mined
+ * block, including blocks mined through the API. The client-set timestamp
+ * is not used, as it says nothing about how long the node took.
+ */
+public class BlockProducer implements Blockchain.BlockListener {
+    private final Blockchain blockchain;
+    private final String minerAddress;
+    private final int maxPending;
+    private final long intervalMillis;
+    private final ExecutorService miningThread;
+    private final LatencyHistogram settlementMillis = new LatencyHistogram();
+    private final AtomicLong blocksProduced = new AtomicLong();
+    private final AtomicLong transactionsSettled = new AtomicLong();
+    private volatile long lastAssemblyNanos;
+    private volatile long lastMiningNanos;
+    private volatile int lastBlockSize;
+    private volatile boolean running;
+    private Thread producer;
+
+    public BlockProducer(Blockchain blockchain, String minerAddress) {
+        this(blockchain, minerAddress,
+             Integer.getInteger("crosspay.producer.maxPending", 1000),
+             Long.getLong("crosspay.producer.intervalMs", 2000));
+    }
+
+    public BlockProducer(Blockchain blockchain, String minerAddress, int maxPending, long intervalMillis) {
+        if (maxPending < 1 || intervalMillis < 1) {
+            throw new IllegalArgumentException("Block producer needs a positive size and interval trigger");
+        }
+        this.blockchain = blockchain;
+        this.minerAddress = minerAddress;
+        this.maxPending = maxPending;
+        this.intervalMillis = intervalMillis;
+        this.miningThread = Executors.newSingleThreadExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "block-producer-miner");
+            thread.setDaemon(true);
+            return thread;
+        });
+        blockchain.addBlockListener(this);
+    }
+
+    public synchronized void start() {
+        if (running) return;
+        running = true;
+        producer = new Thread(this::produce, "block-producer");
+        producer.setDaemon(true);
+        producer.start();
+    }
+
+    public synchronized void stop() {
+        running = false;
+        if (producer != null) producer.interrupt();
+    }
+
+    private void produce() {
+        Future<?> mining = null;
+        long lastSeal = System.currentTimeMillis();
+
+        while (running) {
+            try {
+                // Wait for a full block's worth of transactions or the end of the interval
+                long remaining = lastSeal + intervalMillis - System.currentTimeMillis();
+                int pending = blockchain.getMempool().awaitTransactions(maxPending, Math.max(0, remaining));
+                if (pending == 0) {
+                    lastSeal = System.currentTimeMillis();
+                    blockchain.getMempool().awaitTransactions(1, intervalMillis);
+                    continue;
+                }
+                if (pending < maxPending && System.currentTimeMillis() < lastSeal + intervalMillis) {
+                    continue;
+                }
+                lastSeal = System.currentTimeMillis();
+
+                // Assemble the next block while the previous one may still be mining
+                long start = System.nanoTime();
+                Blockchain.BlockTemplate template = blockchain.assembleBlock();
+                lastAssemblyNanos = System.nanoTime() - start;
+                if (template.isEmpty()) {
+                    blockchain.releaseBlock(template);
+                    continue;
+                }
+
+                awaitMined(mining);
+                mining = miningThread.submit(() -> mine(template));
+            } catch (InterruptedException e) {
+                break;
+            }
+        }
+    }
+
+    private void mine(Blockchain.BlockTemplate template) {
+        long start = System.nanoTime();
+        try {
+            blockchain.mineBlock(template, minerAddress);
+            lastMiningNanos = System.nanoTime() - start;
+            lastBlockSize = template.getTransactions().size();
+            blocksProduced.incrementAndGet();
+        } catch (CancellationException e) {
+            System.out.println("Block production cancelled; transactions returned to the mempool");
+        } catch (RuntimeException e) {
+            System.out.println("Block production failed: " + e.getMessage());
+        }
+    }
+
+    private static void awaitMined(Future<?> mining) throws InterruptedException {
+        if (mining == null) return;
+        try {
+            mining.get();
+        } catch (ExecutionException e) {
+            // mine() reports its own failures
+        }
+    }
+
+    @Override
+    public void blockAppended(int height, Block block) {
+        long now = System.currentTimeMillis();
+        for (Transaction transaction : block.getTransactions()) {
+            long admittedAt = transaction.getAdmittedAt();
+            if (admittedAt != 0) {
+                settlementMillis.record(Math.max(0, now - admittedAt)); // Replicated blocks were admitted elsewhere
+            }
+        }
+        transactionsSettled.addAndGet(block.getTransactions().size());
+    }
+
+    public boolean isRunning() {
+        return running;
+    }
+
+    public int getMaxPending() {
+        return maxPending;
+    }
+
+    public long getIntervalMillis() {
+        return intervalMillis;
+    }
+
+    /**
+     * Time from admission until a transaction's block was appended, in milliseconds
+     */
+    public LatencyHistogram getSettlementMillis() {
+        return settlementMillis;
+    }
+
+    public long getBlocksProduced() {
+        return blocksProduced.get();
+    }
+
+    public long getTransactionsSettled() {
+        return transactionsSettled.get();
+    }
+
+    public double getLastAssemblyMillis() {
+        return lastAssemblyNanos / 1_000_000.0;
+    }
+
+    public double getLastMiningMillis() {
+        return lastMiningNanos / 1_000_000.0;
+    }
+
+    public int getLastBlockSize() {
+        return lastBlockSize;
+    }
+}
@@ -1,50 +1,240 @@
+import com.sun.net.httpserver.Filter;
 import com.sun.net.httpserver.HttpServer;
 import com.sun.net.httpserver.HttpHandler;
 import com.sun.net.httpserver.HttpExchange;
 import java.io.*;
+import java.math.BigDecimal;
 import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeParseException;
+import java.util.Base64;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.zip.GZIPOutputStream;
 import org.json.JSONObject;
 import org.json.JSONArray;
+import org.json.JSONException;
 
 /**
  * REST API Server for the Cross-Border Payment Blockchain
  */
 public class BlockchainServer {
     private static Blockchain blockchain;
-    private static final int PORT = 8080;
+    private static ServerExecutors executors;
+    private static BlockJsonCache blockCache;
+    private static TransactionBatchProcessor batchProcessor;
+    private static BlockProducer blockProducer;
+    private static FxEngine fxEngine;
+    private static ReplicationServer replicationServer;
+    private static ReplicationClient replicationClient;
+    private static EventHub eventHub;
+    private static final int PORT = Integer.getInteger("crosspay.port", 8080);
+    private static final String MINER_ADDRESS = "miner@system.com";
+    private static final int STREAM_BUFFER_BYTES = 16 * 1024;
     
     public static void main(String[] args) throws IOException {
-        // Initialize blockchain
-        blockchain = new Blockchain();
+        // Initialize blockchain from the ledger log
+        Path dataDir = Paths.get(System.getProperty("crosspay.data.dir", "data"));
+        LedgerLog log = new LedgerLog(dataDir);
+        fxEngine = new FxEngine(Paths.get(System.getProperty("crosspay.fx.file",
+                                                              dataDir.resolve("fx-rates.properties").toString())));
+        fxEngine.start();
+        KeyRegistry keys = new KeyRegistry(Paths.get(System.getProperty("crosspay.keys.file",
+                                                                         dataDir.resolve("keys.properties").toString())));
+        String leader = System.getProperty("crosspay.replication.leader");
+        blockchain = new Blockchain(log, new LedgerSnapshots(dataDir.resolve("snapshots")), fxEngine, leader == null);
+        blockchain.setKeyRegistry(keys);
+        blockchain.reserveAddress(MINER_ADDRESS);
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            try {
+                log.close();
+            } catch (IOException e) {
+                System.out.println("Error closing ledger log: " + e.getMessage());
+            }
+        }));
         
-        // Create some test accounts with initial balances
-        blockchain.deposit("alice@email.com", 10000.0);
-        blockchain.deposit("bob@email.com", 5000.0);
-        blockchain.deposit("miner@system.com", 0.0);
+        // A follower takes every block from its leader and serves reads only
+        if (leader != null) {
+            replicationClient = new ReplicationClient(blockchain, parseAddress(leader));
+            replicationClient.start();
+            awaitGenesis();
+        }
+        String replicationPort = System.getProperty("crosspay.replication.port");
+        if (replicationPort != null) {
+            replicationServer = new ReplicationServer(blockchain, new InetSocketAddress(Integer.parseInt(replicationPort)));
+            replicationServer.start();
+        }
+        
+        // Create some test accounts with initial balances on a fresh ledger
+        if (leader == null && blockchain.getChain().size() == 1 && blockchain.getAllBalances().isEmpty()) {
+            blockchain.deposit("alice@email.com", new BigDecimal("10000.00"));
+            blockchain.deposit("bob@email.com", new BigDecimal("5000.00"));
+            blockchain.deposit(MINER_ADDRESS, BigDecimal.ZERO);
+        }
         
         // Create HTTP server
         HttpServer server = HttpServer.create(new InetSocketAddress(PORT), 0);
+        executors = new ServerExecutors();
+        blockCache = new BlockJsonCache();
+        blockchain.addBlockListener(blockCache);
+        eventHub = new EventHub(blockchain.getMetrics().getRegistry());
+        blockchain.addBlockListener(eventHub);
+        blockchain.addTransactionListener(eventHub);
+        batchProcessor = new TransactionBatchProcessor(blockchain);
+        blockProducer = new BlockProducer(blockchain, MINER_ADDRESS);
+        if (leader == null && Boolean.parseBoolean(System.getProperty("crosspay.producer.enabled", "true"))) {
+            blockProducer.start();
+        }
+        blockchain.getMetrics().getRegistry().summary("crosspay_settlement_seconds",
+            "Time from admission until a transaction is settled in a produced block",
+            blockProducer.getSettlementMillis(), 1000);
         
         // Set up API endpoints
-        server.createContext("/api/transaction/create", new CreateTransactionHandler());
-        server.createContext("/api/transaction/mine", new MineTransactionHandler());
-        server.createContext("/api/transaction/get", new GetTransactionHandler());
-        server.createContext("/api/balance", new GetBalanceHandler());
-        server.createContext("/api/blockchain", new GetBlockchainHandler());
-        server.createContext("/api/validate", new ValidateChainHandler());
-        server.createContext("/api/deposit", new DepositHandler());
-        server.createContext("/api/pending", new GetPendingHandler());
-        server.createContext("/", new StaticFileHandler());
+        createWriteContext(server, "/api/transaction/create", new CreateTransactionHandler());
+        createWriteContext(server, "/api/transaction/batch", new BatchTransactionHandler());
+        createWriteContext(server, "/api/transaction/mine", new MineTransactionHandler());
+        createWriteContext(server, "/api/transaction/mine/cancel", new CancelMiningHandler());
+        createContext(server, "/api/transaction/get", new GetTransactionHandler());
+        createContext(server, "/api/transaction/proof", new TransactionProofHandler());
+        createContext(server, "/api/balance", new GetBalanceHandler());
+        createContext(server, "/api/address/history", new AddressHistoryHandler());
+        createContext(server, "/api/blockchain", new GetBlockchainHandler());
+        createContext(server, "/api/validate", new ValidateChainHandler());
+        createWriteContext(server, "/api/deposit", new DepositHandler());
+        createWriteContext(server, "/api/keys/register", new RegisterKeyHandler());
+        createContext(server, "/api/keys", new GetKeyHandler());
+        createContext(server, "/api/pending", new GetPendingHandler());
+        createContext(server, "/api/producer/stats", new ProducerStatsHandler());
+        createContext(server, "/api/fx/rates", new FxRatesHandler());
+        createContext(server, "/api/metrics", new MetricsHandler());
+        createContext(server, "/api/replication", new ReplicationHandler());
+        createContext(server, "/api/events", new EventsHandler());
+        createContext(server, "/", new StaticFileHandler());
         
-        server.setExecutor(null);
+        server.setExecutor(executors.getRequestExecutor());
         server.start();
         
         System.out.println("Blockchain server started on port " + PORT);
         System.out.println("Access the application at http://localhost:" + PORT);
+        System.out.println("Request executor mode: " + executors.getMode());
+        if (leader != null) {
+            System.out.println("Read-only follower of " + leader);
+        }
+    }
+    
+    private static InetSocketAddress parseAddress(String hostPort) {
+        int colon = hostPort.lastIndexOf(':');
+        if (colon < 0) {
+            throw new IllegalArgumentException("Replication leader must be host:port, got " + hostPort);
+        }
+        return new InetSocketAddress(hostPort.substring(0, colon), Integer.parseInt(hostPort.substring(colon + 1)));
+    }
+    
+    /**
+     * Hold a new follower's startup until its leader's genesis block has
+     * arrived, since every endpoint reads the chain tip
+     */
+    private static void awaitGenesis() {
+        if (!blockchain.getChain().isEmpty()) return;
+        System.out.println("Waiting for the genesis block from " + replicationClient.getLeader());
+        while (blockchain.getChain().isEmpty()) {
+            if (replicationClient.getFailure() != null) {
+                throw new IllegalStateException(replicationClient.getFailure());
+            }
+            try {
+                Thread.sleep(100);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("Interrupted waiting for the genesis block", e);
+            }
+        }
+    }
+    
+    private static List<Filter> createContext(HttpServer server, String path, HttpHandler handler) {
+        List<Filter> filters = server.createContext(path, handler).getFilters();
+        filters.add(new RequestMetricsFilter(blockchain.getMetrics().getRegistry(), path));
+        filters.add(executors.admissionFilter());
+        return filters;
+    }
+    
+    /**
+     * Register an endpoint that changes the ledger; a follower answers it
+     * with 403, since its ledger only changes through replication
+     */
+    private static void createWriteContext(HttpServer server, String path, HttpHandler handler) {
+        List<Filter> filters = createContext(server, path, handler);
+        if (replicationClient != null) {
+            filters.add(1, new ReadOnlyFilter()); // Turned away before taking an admission slot
+        }
+    }
+    
+    /**
+     * Answers every request with 403 on a follower
+     */
+    static class ReadOnlyFilter extends Filter {
+        @Override
+        public void doFilter(HttpExchange exchange, Chain chain) throws IOException {
+            enableCORS(exchange);
+            InetSocketAddress leader = replicationClient.getLeader();
+            sendResponse(exchange, 403, errorJSON("Read-only follower, send writes to the leader at " +
+                                                  leader.getHostString() + ":" + leader.getPort()));
+        }
+        
+        @Override
+        public String description() {
+            return "Read-only follower";
+        }
+    }
+    
+    /**
+     * Times every request to one context and counts responses by status
+     * class. The meters are created with the context, so recording a
+     * request is a histogram record and a counter increment.
+     */
+    static class RequestMetricsFilter extends Filter {
+        private final LatencyHistogram micros;
+        private final MetricsRegistry.Counter[] byStatusClass = new MetricsRegistry.Counter[6];
+        
+        RequestMetricsFilter(MetricsRegistry registry, String endpoint) {
+            micros = registry.summary("crosspay_http_request_seconds", "Time to handle an API request, by endpoint",
+                                      1_000_000, "endpoint", endpoint);
+            for (int statusClass = 1; statusClass < byStatusClass.length; statusClass++) {
+                byStatusClass[statusClass] = registry.counter("crosspay_http_responses_total",
+                    "API responses, by endpoint and status class", "endpoint", endpoint, "status", statusClass + "xx");
+            }
+        }
+        
+        @Override
+        public void doFilter(HttpExchange exchange, Chain chain) throws IOException {
+            long start = System.nanoTime();
+            try {
+                chain.doFilter(exchange);
+            } finally {
+                micros.record((System.nanoTime() - start) / 1000);
+                int statusClass = exchange.getResponseCode() / 100;
+                if (statusClass >= 1 && statusClass < byStatusClass.length) {
+                    byStatusClass[statusClass].increment();
+                }
+            }
+        }
+        
+        @Override
+        public String description() {
+            return "Request metrics";
+        }
     }
     
     /**
@@ -60,14 +250,7 @@ public class BlockchainServer {
                     String body = readRequestBody(exchange);
                     JSONObject json = new JSONObject(body);
                     
-                    Transaction transaction = new Transaction(
-                        json.getString("sender"),
-                        json.getString("receiver"),
-                        json.getDouble("amount"),
-                        json.getString("currency"),
-                        json.getString("senderCountry"),
-                        json.getString("receiverCountry")
-                    );
+                    Transaction transaction = TransactionBatchProcessor.toTransaction(json);
                     
                     boolean success = blockchain.createTransaction(transaction);
                     
@@ -86,6 +269,51 @@ public class BlockchainServer {
         }
     }
     
+    /**
+     * Handler for ingesting many transactions in one request, as a JSON
+     * array or as one JSON object per line. Results stream back as NDJSON,
+     * one line per record followed by a summary line.
+     */
+    static class BatchTransactionHandler implements HttpHandler {
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            enableCORS(exchange);
+            
+            if ("POST".equals(exchange.getRequestMethod())) {
+                exchange.getResponseHeaders().set("Content-Type", "application/x-ndjson");
+                exchange.sendResponseHeaders(200, 0);
+                
+                BufferedReader in = new BufferedReader(
+                    new InputStreamReader(exchange.getRequestBody(), StandardCharsets.UTF_8), STREAM_BUFFER_BYTES);
+                try (Writer out = new BufferedWriter(
+                         new OutputStreamWriter(exchange.getResponseBody(), StandardCharsets.UTF_8), STREAM_BUFFER_BYTES)) {
+                    JSONObject summary = new JSONObject();
+                    try {
+                        TransactionBatchProcessor.Summary result = batchProcessor.process(in, (position, tx, error) -> {
+                            JSONObject line = new JSONObject();
+                            line.put("position", position);
+                            line.put("success", error == null);
+                            if (tx != null) line.put("transactionId", tx.getTransactionId());
+                            if (error != null) line.put("error", error);
+                            out.write(line.toString());
+                            out.write('\n');
+                        });
+                        summary.put("received", result.getReceived());
+                        summary.put("accepted", result.getAccepted());
+                        summary.put("rejected", result.getRejected());
+                        summary.put("elapsedMs", result.getElapsedMillis());
+                    } catch (JSONException e) {
+                        summary.put("error", "Malformed batch: " + e.getMessage());
+                    }
+                    out.write(new JSONObject().put("summary", summary).toString());
+                    out.write('\n');
+                }
+            } else {
+                sendErrorResponse(exchange, "Method not allowed");
+            }
+        }
+    }
+    
     /**
      * Handler for mining pending transactions
      */
@@ -96,13 +324,21 @@ public class BlockchainServer {
             
             if ("POST".equals(exchange.getRequestMethod())) {
                 try {
-                    blockchain.minePendingTransactions("miner@system.com");
+                    ParallelMiner.MiningResult result = executors.runLong(
+                        () -> blockchain.minePendingTransactions(MINER_ADDRESS));
                     
                     JSONObject response = new JSONObject();
                     response.put("success", true);
                     response.put("message", "Block mined successfully");
+                    response.put("miningTimeMs", result.getElapsedMillis());
+                    response.put("hashesPerSecond", Math.round(result.getHashesPerSecond()));
+                    response.put("workers", result.getWorkers());
                     
                     sendResponse(exchange, 200, response.toString());
+                } catch (CancellationException e) {
+                    sendErrorResponse(exchange, "Mining cancelled");
+                } catch (RejectedExecutionException e) {
+                    sendResponse(exchange, 503, errorJSON("Mining queue is full, retry later"));
                 } catch (Exception e) {
                     sendErrorResponse(exchange, "Error mining transactions: " + e.getMessage());
                 }
@@ -112,6 +348,28 @@ public class BlockchainServer {
         }
     }
     
+    /**
+     * Handler for cancelling the mining run in progress
+     */
+    static class CancelMiningHandler implements HttpHandler {
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            enableCORS(exchange);
+            
+            if ("POST".equals(exchange.getRequestMethod())) {
+                boolean cancelled = blockchain.cancelMining();
+                
+                JSONObject response = new JSONObject();
+                response.put("success", cancelled);
+                response.put("message", cancelled ? "Mining cancelled" : "No mining run in progress");
+                
+                sendResponse(exchange, 200, response.toString());
+            } else {
+                sendErrorResponse(exchange, "Method not allowed");
+            }
+        }
+    }
+    
     /**
      * Handler for getting transaction details
      */
@@ -125,6 +383,38 @@ public class BlockchainServer {
                     String query = exchange.getRequestURI().getQuery();
                     String transactionId = getQueryParam(query, "id");
                     
+                    // A mined transaction never changes; serve its slice of the cached block
+                    long position = transactionId == null ? -1 : blockchain.locateTransaction(transactionId);
+                    if (acceptsBinary(exchange)) {
+                        Transaction transaction = position >= 0 ?
+                            blockchain.getChain().get(TransactionIndex.heightOf(position)).getTransactions()
+                                      .get(TransactionIndex.indexOf(position)) :
+                            blockchain.getTransactionById(transactionId);
+                        if (transaction == null) {
+                            sendErrorResponse(exchange, "Transaction not found");
+                            return;
+                        }
+                        byte[] encoded = BlockCodec.encode(transaction);
+                        exchange.getResponseHeaders().set("Content-Type", BlockCodec.CONTENT_TYPE);
+                        exchange.sendResponseHeaders(200, encoded.length);
+                        try (OutputStream os = exchange.getResponseBody()) {
+                            os.write(encoded);
+                        }
+                        return;
+                    }
+                    if (position >= 0) {
+                        int height = TransactionIndex.heightOf(position);
+                        int index = TransactionIndex.indexOf(position);
+                        Block block = blockchain.getChain().get(height);
+                        if (notModified(exchange, "\"tx-" + block.getTransactions().get(index).getHash() + "\"")) {
+                            return;
+                        }
+                        BlockJsonCache.Entry entry = blockCache.get(height, block);
+                        sendResponse(exchange, 200, entry.getJson(),
+                                     entry.getTransactionOffset(index), entry.getTransactionLength(index));
+                        return;
+                    }
+                    
                     Transaction transaction = blockchain.getTransactionById(transactionId);
                     
                     if (transaction != null) {
@@ -142,6 +432,60 @@ public class BlockchainServer {
         }
     }
     
+    /**
+     * Handler for getting a Merkle inclusion proof of a mined transaction
+     */
+    static class TransactionProofHandler implements HttpHandler {
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            enableCORS(exchange);
+            
+            if ("GET".equals(exchange.getRequestMethod())) {
+                try {
+                    String query = exchange.getRequestURI().getQuery();
+                    String transactionId = getQueryParam(query, "id");
+                    
+                    long position = blockchain.locateTransaction(transactionId);
+                    if (position < 0) {
+                        sendErrorResponse(exchange, "Transaction not found in a mined block");
+                        return;
+                    }
+                    
+                    int height = TransactionIndex.heightOf(position);
+                    Block block = blockchain.getChain().get(height);
+                    MerkleTree.Proof proof = block.getMerkleTree().getProof(TransactionIndex.indexOf(position));
+                    
+                    JSONArray path = new JSONArray();
+                    for (MerkleTree.ProofStep step : proof.getPath()) {
+                        JSONObject stepJSON = new JSONObject();
+                        stepJSON.put("hash", step.getHash());
+                        stepJSON.put("position", step.isLeft() ? "left" : "right");
+                        path.put(stepJSON);
+                    }
+                    
+                    JSONObject response = new JSONObject();
+                    response.put("transactionId", transactionId);
+                    response.put("transactionHash", proof.getLeafHash());
+                    response.put("index", proof.getIndex());
+                    response.put("proof", path);
+                    response.put("merkleRoot", proof.getRoot());
+                    response.put("merkleVersion", block.getMerkleVersion());
+                    response.put("blockHeight", height);
+                    response.put("blockHash", block.getHash());
+                    response.put("previousHash", block.getPreviousHash());
+                    response.put("timestamp", block.getTimestamp());
+                    response.put("nonce", block.getNonce());
+                    
+                    sendResponse(exchange, 200, response.toString());
+                } catch (Exception e) {
+                    sendErrorResponse(exchange, "Error getting transaction proof: " + e.getMessage());
+                }
+            } else {
+                sendErrorResponse(exchange, "Method not allowed");
+            }
+        }
+    }
+    
     /**
      * Handler for getting account balance
      */
@@ -155,11 +499,13 @@ public class BlockchainServer {
                     String query = exchange.getRequestURI().getQuery();
                     String address = getQueryParam(query, "address");
                     
-                    double balance = blockchain.getBalance(address);
+                    BigDecimal balance = blockchain.getBalance(address);
                     
                     JSONObject response = new JSONObject();
                     response.put("address", address);
                     response.put("balance", balance);
+                    response.put("balances", blockchain.getBalances(address));
+                    response.put("totalValue", blockchain.getTotalValue(address));
                     
                     sendResponse(exchange, 200, response.toString());
                 } catch (Exception e) {
@@ -172,40 +518,154 @@ public class BlockchainServer {
     }
     
     /**
-     * Handler for getting entire blockchain
+     * Handler for one page of an address's settled transactions in a time
+     * range, oldest first. The cursor names the last transaction served by
+     * its position in the chain, which new blocks never change, so paging
+     * neither skips nor repeats transactions while blocks arrive.
      */
-    static class GetBlockchainHandler implements HttpHandler {
+    static class AddressHistoryHandler implements HttpHandler {
+        private static final int DEFAULT_LIMIT = 100;
+        private static final int MAX_LIMIT = 1000;
+        private static final byte CURSOR_VERSION = 1;
+        
         @Override
         public void handle(HttpExchange exchange) throws IOException {
             enableCORS(exchange);
             
             if ("GET".equals(exchange.getRequestMethod())) {
                 try {
-                    JSONObject response = new JSONObject();
-                    JSONArray blocks = new JSONArray();
-                    
-                    for (Block block : blockchain.getChain()) {
-                        JSONObject blockJSON = new JSONObject();
-                        blockJSON.put("hash", block.getHash());
-                        blockJSON.put("previousHash", block.getPreviousHash());
-                        blockJSON.put("timestamp", block.getTimestamp());
-                        blockJSON.put("nonce", block.getNonce());
-                        
-                        JSONArray transactions = new JSONArray();
-                        for (Transaction tx : block.getTransactions()) {
-                            transactions.put(transactionToJSON(tx));
-                        }
-                        blockJSON.put("transactions", transactions);
-                        
-                        blocks.put(blockJSON);
+                    String query = exchange.getRequestURI().getRawQuery();
+                    String address = getQueryParam(query, "address");
+                    if (address == null) {
+                        sendErrorResponse(exchange, "address is required");
+                        return;
+                    }
+                    address = URLDecoder.decode(address, StandardCharsets.UTF_8);
+                    long from = parseTime(getQueryParam(query, "from"), Long.MIN_VALUE);
+                    long to = parseTime(getQueryParam(query, "to"), Long.MAX_VALUE);
+                    String cursor = getQueryParam(query, "cursor");
+                    long after = cursor == null ? -1 : decodeCursor(cursor);
+                    String limitParam = getQueryParam(query, "limit");
+                    int limit = limitParam == null ? DEFAULT_LIMIT : Integer.parseInt(limitParam);
+                    if (limit < 1 || limit > MAX_LIMIT) {
+                        sendErrorResponse(exchange, "limit must be between 1 and " + MAX_LIMIT);
+                        return;
                     }
                     
-                    response.put("chain", blocks);
-                    response.put("length", blockchain.getChain().size());
+                    Blockchain.HistoryPage page = blockchain.getAddressHistory(address, from, to, after, limit);
+                    List<Transaction> transactions = page.getTransactions();
+                    JSONArray items = new JSONArray();
+                    for (int i = 0; i < transactions.size(); i++) {
+                        JSONObject item = transactionToJSON(transactions.get(i));
+                        item.put("blockHeight", TransactionIndex.heightOf(page.getPosition(i)));
+                        item.put("blockTimestamp", page.getBlockTime(i));
+                        items.put(item);
+                    }
                     
+                    JSONObject response = new JSONObject();
+                    response.put("address", address);
+                    response.put("count", transactions.size());
+                    response.put("transactions", items);
+                    response.put("hasMore", page.hasMore());
+                    if (page.hasMore()) {
+                        response.put("nextCursor", encodeCursor(page.getPosition(transactions.size() - 1)));
+                    }
                     sendResponse(exchange, 200, response.toString());
-                } catch (Exception e) {
-                    sendErrorResponse(exchange, "Error getting blockchain: " + e.getMessage());
+                } catch (IllegalArgumentException | DateTimeParseException e) {
+                    sendErrorResponse(exchange, "Error getting history: " + e.getMessage());
+                }
+            } else {
+                sendErrorResponse(exchange, "Method not allowed");
+            }
+        }
+        
+        /**
+         * Epoch millis, an ISO-8601 instant, or an ISO date taken as UTC midnight
+         */
+        private static long parseTime(String value, long absent) {
+            if (value == null) return absent;
+            value = URLDecoder.decode(value, StandardCharsets.UTF_8);
+            if (value.chars().allMatch(Character::isDigit)) return Long.parseLong(value);
+            if (value.length() == 10) return LocalDate.parse(value).atStartOfDay(ZoneOffset.UTC).toInstant().toEpochMilli();
+            return Instant.parse(value).toEpochMilli();
+        }
+        
+        private static String encodeCursor(long position) {
+            ByteBuffer bytes = ByteBuffer.allocate(9).put(CURSOR_VERSION).putLong(position);
+            return Base64.getUrlEncoder().withoutPadding().encodeToString(bytes.array());
+        }
+        
+        private static long decodeCursor(String cursor) {
+            byte[] bytes = Base64.getUrlDecoder().decode(cursor);
+            if (bytes.length != 9 || bytes[0] != CURSOR_VERSION) {
+                throw new IllegalArgumentException("Invalid cursor");
+            }
+            return ByteBuffer.wrap(bytes, 1, 8).getLong();
+        }
+    }
+    
+    /**
+     * Handler for getting entire blockchain
+     */
+    static class GetBlockchainHandler implements HttpHandler {
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            enableCORS(exchange);
+            
+            if ("GET".equals(exchange.getRequestMethod())) {
+                List<Block> chain = blockchain.getChain();
+                int length = chain.size();
+                int from;
+                int to;
+                boolean headersOnly;
+                try {
+                    String query = exchange.getRequestURI().getQuery();
+                    String fromParam = getQueryParam(query, "from");
+                    String toParam = getQueryParam(query, "to");
+                    from = fromParam == null ? 0 : Integer.parseInt(fromParam);
+                    to = toParam == null ? length - 1 : Integer.parseInt(toParam);
+                    headersOnly = "true".equals(getQueryParam(query, "headers"));
+                } catch (NumberFormatException e) {
+                    sendErrorResponse(exchange, "Invalid block range: " + e.getMessage());
+                    return;
+                }
+                
+                String acceptEncoding = exchange.getRequestHeaders().getFirst("Accept-Encoding");
+                boolean gzip = acceptEncoding != null && acceptEncoding.contains("gzip");
+                boolean binary = acceptsBinary(exchange);
+                
+                // The response only changes when the tip does
+                Block tip = chain.get(length - 1);
+                String etag = "\"" + (length - 1) + "-" + tip.getHash().substring(0, 16) + "-" + from + "-" + to +
+                              (binary ? "-bin" : headersOnly ? "-h" : "") + (gzip ? "-gz" : "") + "\"";
+                exchange.getResponseHeaders().set("Vary", "Accept, Accept-Encoding");
+                if (notModified(exchange, etag)) {
+                    return;
+                }
+                
+                if (binary) {
+                    exchange.getResponseHeaders().set("Content-Type", BlockCodec.CONTENT_TYPE);
+                    exchange.sendResponseHeaders(200, 0);
+                    try (DataOutputStream out = new DataOutputStream(
+                            new BufferedOutputStream(exchange.getResponseBody(), STREAM_BUFFER_BYTES))) {
+                        writeBinaryChain(out, chain, length, from, to);
+                    }
+                    return;
+                }
+                
+                // Stream cached block encodings, with chunked transfer encoding
+                exchange.getResponseHeaders().set("Content-Type", "application/json");
+                if (gzip) {
+                    exchange.getResponseHeaders().set("Content-Encoding", "gzip");
+                }
+                exchange.sendResponseHeaders(200, 0);
+                
+                OutputStream body = exchange.getResponseBody();
+                if (gzip) {
+                    body = new GZIPOutputStream(body, STREAM_BUFFER_BYTES);
+                }
+                try (OutputStream out = new BufferedOutputStream(body, STREAM_BUFFER_BYTES)) {
+                    ChainJsonStreamer.writeChain(out, chain, length, from, to, headersOnly, blockCache);
                 }
             } else {
                 sendErrorResponse(exchange, "Method not allowed");
@@ -213,6 +673,25 @@ public class BlockchainServer {
         }
     }
     
+    /**
+     * Write the blocks at heights from..to as the chain length, the first
+     * height and the block count, then each block as its length and its
+     * {@link BlockCodec} encoding
+     */
+    static void writeBinaryChain(DataOutputStream out, List<Block> chain, int length, int from, int to)
+            throws IOException {
+        int first = Math.max(0, from);
+        int last = Math.min(length - 1, to);
+        out.writeInt(length);
+        out.writeInt(first);
+        out.writeInt(Math.max(0, last - first + 1));
+        for (int height = first; height <= last; height++) {
+            byte[] encoded = BlockCodec.encode(chain.get(height), null);
+            out.writeInt(encoded.length);
+            out.write(encoded);
+        }
+    }
+    
     /**
      * Handler for validating the blockchain
      */
@@ -223,12 +702,27 @@ public class BlockchainServer {
             
             if ("GET".equals(exchange.getRequestMethod())) {
                 try {
-                    boolean isValid = blockchain.isChainValid();
+                    String query = exchange.getRequestURI().getQuery();
+                    String mode = getQueryParam(query, "mode");
+                    ChainValidator.Mode validationMode = mode == null ? ChainValidator.Mode.INCREMENTAL :
+                        ChainValidator.Mode.valueOf(mode.toUpperCase());
+                    
+                    // Incremental checks are cheap; only a full audit goes to the long-operation queue
+                    ChainValidator.Result result = validationMode == ChainValidator.Mode.FULL ?
+                        executors.runLong(() -> blockchain.validateChain(validationMode)) :
+                        blockchain.validateChain(validationMode);
                     
                     JSONObject response = new JSONObject();
-                    response.put("isValid", isValid);
+                    response.put("isValid", result.isValid());
+                    response.put("mode", result.getMode().name().toLowerCase());
+                    response.put("height", result.getHeight());
+                    response.put("firstInvalidHeight", result.getFirstInvalidHeight());
+                    response.put("blocksChecked", result.getBlocksChecked());
+                    response.put("validationTimeMs", result.getElapsedMillis());
                     
                     sendResponse(exchange, 200, response.toString());
+                } catch (RejectedExecutionException e) {
+                    sendResponse(exchange, 503, errorJSON("Validation queue is full, retry later"));
                 } catch (Exception e) {
                     sendErrorResponse(exchange, "Error validating chain: " + e.getMessage());
                 }
@@ -252,13 +746,15 @@ public class BlockchainServer {
                     JSONObject json = new JSONObject(body);
                     
                     String address = json.getString("address");
-                    double amount = json.getDouble("amount");
+                    BigDecimal amount = json.getBigDecimal("amount");
+                    String currency = json.optString("currency", Money.BASE_CURRENCY);
                     
-                    blockchain.deposit(address, amount);
+                    blockchain.deposit(address, amount, currency);
                     
                     JSONObject response = new JSONObject();
                     response.put("success", true);
-                    response.put("newBalance", blockchain.getBalance(address));
+                    response.put("newBalance", blockchain.getBalance(address, currency));
+                    response.put("currency", currency);
                     
                     sendResponse(exchange, 200, response.toString());
                 } catch (Exception e) {
@@ -270,6 +766,65 @@ public class BlockchainServer {
         }
     }
     
+    /**
+     * Handler for binding a signing key to an unused address that has none
+     */
+    static class RegisterKeyHandler implements HttpHandler {
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            enableCORS(exchange);
+            
+            if ("POST".equals(exchange.getRequestMethod())) {
+                try {
+                    JSONObject json = new JSONObject(readRequestBody(exchange));
+                    String address = json.getString("address");
+                    KeyRegistry keys = blockchain.getKeyRegistry();
+                    if (!blockchain.registerKey(address, json.getString("publicKey"))) {
+                        String reason = !keys.isRegistrationOpen() ? "Key registration is closed" :
+                            keys.getKey(address) != null ? "Address " + address + " already has a key" :
+                            "Address " + address + " is reserved or already in use; its key is set in the key file";
+                        sendResponse(exchange, 409, errorJSON(reason));
+                        return;
+                    }
+                    
+                    JSONObject response = new JSONObject();
+                    response.put("success", true);
+                    response.put("address", address);
+                    sendResponse(exchange, 200, response.toString());
+                } catch (JSONException | IllegalArgumentException e) {
+                    sendErrorResponse(exchange, "Error registering key: " + e.getMessage());
+                }
+            } else {
+                sendErrorResponse(exchange, "Method not allowed");
+            }
+        }
+    }
+    
+    /**
+     * Handler for the signing key registered for an address
+     */
+    static class GetKeyHandler implements HttpHandler {
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            enableCORS(exchange);
+            
+            if ("GET".equals(exchange.getRequestMethod())) {
+                String address = getQueryParam(exchange.getRequestURI().getRawQuery(), "address");
+                if (address != null) address = URLDecoder.decode(address, StandardCharsets.UTF_8);
+                KeyRegistry keys = blockchain.getKeyRegistry();
+                JSONObject response = new JSONObject();
+                response.put("address", address);
+                response.put("publicKey", address == null ? null : keys.getKey(address));
+                response.put("algorithm", Signatures.ALGORITHM);
+                response.put("curve", Signatures.CURVE);
+                response.put("signaturesRequired", keys.isRequired());
+                sendResponse(exchange, 200, response.toString());
+            } else {
+                sendErrorResponse(exchange, "Method not allowed");
+            }
+        }
+    }
+    
     /**
      * Handler for getting pending transactions
      */
@@ -300,6 +855,205 @@ public class BlockchainServer {
         }
     }
     
+    /**
+     * Handler for block production and settlement latency statistics
+     */
+    static class ProducerStatsHandler implements HttpHandler {
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            enableCORS(exchange);
+            
+            if ("GET".equals(exchange.getRequestMethod())) {
+                LatencyHistogram settlement = blockProducer.getSettlementMillis();
+                JSONObject latency = new JSONObject();
+                latency.put("count", settlement.getCount());
+                latency.put("meanMs", settlement.getMean());
+                latency.put("p50Ms", settlement.getPercentile(50));
+                latency.put("p90Ms", settlement.getPercentile(90));
+                latency.put("p99Ms", settlement.getPercentile(99));
+                latency.put("maxMs", settlement.getMax());
+                
+                JSONObject response = new JSONObject();
+                response.put("running", blockProducer.isRunning());
+                response.put("maxPending", blockProducer.getMaxPending());
+                response.put("intervalMs", blockProducer.getIntervalMillis());
+                response.put("pendingTransactions", blockchain.getMempool().size());
+                response.put("blocksProduced", blockProducer.getBlocksProduced());
+                response.put("transactionsSettled", blockProducer.getTransactionsSettled());
+                response.put("lastBlockSize", blockProducer.getLastBlockSize());
+                response.put("lastAssemblyMs", blockProducer.getLastAssemblyMillis());
+                response.put("lastMiningMs", blockProducer.getLastMiningMillis());
+                response.put("settlementLatency", latency);
+                
+                sendResponse(exchange, 200, response.toString());
+            } else {
+                sendErrorResponse(exchange, "Method not allowed");
+            }
+        }
+    }
+    
+    /**
+     * Handler for the FX rate table currently used to quote transactions
+     */
+    static class FxRatesHandler implements HttpHandler {
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            enableCORS(exchange);
+            
+            if ("GET".equals(exchange.getRequestMethod())) {
+                FxEngine.RateTable rates = fxEngine.getRates();
+                JSONObject response = new JSONObject();
+                response.put("base", Money.BASE_CURRENCY);
+                response.put("version", rates.getVersion());
+                response.put("source", rates.getSource());
+                response.put("loadedAt", rates.getLoadedAt());
+                response.put("rates", rates.getRates());
+                
+                sendResponse(exchange, 200, response.toString());
+            } else {
+                sendErrorResponse(exchange, "Method not allowed");
+            }
+        }
+    }
+    
+    /**
+     * Handler exposing mining, mempool and API metrics in the Prometheus text format
+     */
+    static class MetricsHandler implements HttpHandler {
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            enableCORS(exchange);
+            
+            if ("GET".equals(exchange.getRequestMethod())) {
+                byte[] bytes = blockchain.getMetrics().getRegistry().toPrometheus().getBytes(StandardCharsets.UTF_8);
+                exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+                exchange.sendResponseHeaders(200, bytes.length);
+                try (OutputStream os = exchange.getResponseBody()) {
+                    os.write(bytes);
+                }
+            } else {
+                sendErrorResponse(exchange, "Method not allowed");
+            }
+        }
+    }
+    
+    /**
+     * Handler for this node's place in replication: the followers it
+     * serves and, on a follower, how far behind its leader it is
+     */
+    static class ReplicationHandler implements HttpHandler {
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            enableCORS(exchange);
+            
+            if ("GET".equals(exchange.getRequestMethod())) {
+                ReplicationLog records = blockchain.getReplicationLog();
+                JSONObject response = new JSONObject();
+                response.put("role", replicationClient != null ? "follower" :
+                                     replicationServer != null ? "leader" : "standalone");
+                response.put("height", blockchain.getChain().size() - 1);
+                response.put("records", records.size());
+                response.put("availableRecords", records.available());
+                response.put("bytes", records.getBytes());
+                
+                if (replicationServer != null) {
+                    JSONArray followers = new JSONArray();
+                    for (ReplicationServer.FollowerStatus follower : replicationServer.getFollowers()) {
+                        JSONObject json = new JSONObject();
+                        json.put("address", follower.getAddress());
+                        json.put("nextRecord", follower.getNextRecord());
+                        json.put("requestedTo", follower.getRequestedTo());
+                        followers.put(json);
+                    }
+                    response.put("port", replicationServer.getPort());
+                    response.put("followers", followers);
+                }
+                
+                if (replicationClient != null) {
+                    InetSocketAddress leader = replicationClient.getLeader();
+                    LatencyHistogram lag = replicationClient.getLagMicros();
+                    JSONObject latency = new JSONObject();
+                    latency.put("count", lag.getCount());
+                    latency.put("p50Ms", lag.getPercentile(50) / 1000.0);
+                    latency.put("p99Ms", lag.getPercentile(99) / 1000.0);
+                    latency.put("maxMs", lag.getMax() / 1000.0);
+                    
+                    JSONObject follower = new JSONObject();
+                    follower.put("leader", leader.getHostString() + ":" + leader.getPort());
+                    follower.put("connected", replicationClient.isConnected());
+                    follower.put("caughtUp", replicationClient.isCaughtUp());
+                    follower.put("leaderRecords", replicationClient.getLeaderRecords());
+                    follower.put("recordsBehind", replicationClient.getRecordsBehind());
+                    follower.put("lag", latency);
+                    if (replicationClient.getFailure() != null) {
+                        follower.put("failure", replicationClient.getFailure());
+                    }
+                    ReplicationClient.CatchUp catchUp = replicationClient.getLastCatchUp();
+                    if (catchUp != null) {
+                        JSONObject json = new JSONObject();
+                        json.put("records", catchUp.getRecords());
+                        json.put("transactions", catchUp.getTransactions());
+                        json.put("bytes", catchUp.getBytes());
+                        json.put("seconds", catchUp.getSeconds());
+                        json.put("recordsPerSecond", Math.round(catchUp.getRecordsPerSecond()));
+                        json.put("transactionsPerSecond", Math.round(catchUp.getTransactionsPerSecond()));
+                        follower.put("lastCatchUp", json);
+                    }
+                    response.put("replication", follower);
+                }
+                
+                sendResponse(exchange, 200, response.toString());
+            } else {
+                sendErrorResponse(exchange, "Method not allowed");
+            }
+        }
+    }
+    
+    /**
+     * Handler for a Server-Sent Events stream of sealed blocks and
+     * transaction status changes, optionally limited to some addresses or
+     * transaction ids. The handler returns once the stream is open, so a
+     * subscriber holds no request thread or admission slot.
+     */
+    static class EventsHandler implements HttpHandler {
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            enableCORS(exchange);
+            
+            if ("GET".equals(exchange.getRequestMethod())) {
+                String query = exchange.getRequestURI().getRawQuery();
+                Set<String> types = splitQueryParam(query, "types");
+                boolean blocks = types.isEmpty() || types.contains("block");
+                boolean transactions = types.isEmpty() || types.contains("transaction");
+                if (!blocks && !transactions) {
+                    sendErrorResponse(exchange, "types must list block and/or transaction");
+                    return;
+                }
+                if (!eventHub.subscribe(exchange, splitQueryParam(query, "address"),
+                                        splitQueryParam(query, "transaction"), blocks, transactions)) {
+                    exchange.getResponseHeaders().set("Retry-After", "5");
+                    sendResponse(exchange, 503, errorJSON("Too many event subscribers"));
+                }
+            } else {
+                sendErrorResponse(exchange, "Method not allowed");
+            }
+        }
+        
+        /**
+         * The URL-decoded values of a comma-separated parameter, empty if absent
+         */
+        private static Set<String> splitQueryParam(String query, String param) {
+            String value = getQueryParam(query, param);
+            if (value == null) return Collections.emptySet();
+            Set<String> values = new LinkedHashSet<>();
+            for (String item : value.split(",")) {
+                String decoded = URLDecoder.decode(item, StandardCharsets.UTF_8).trim();
+                if (!decoded.isEmpty()) values.add(decoded);
+            }
+            return values;
+        }
+    }
+    
     /**
      * Serve static HTML file
      */
@@ -339,10 +1093,49 @@ private static void enableCORS(HttpExchange exchange) {
         os.close();
     }
     
+    private static void sendResponse(HttpExchange exchange, int statusCode, byte[] bytes, int offset, int length)
+            throws IOException {
+        exchange.getResponseHeaders().set("Content-Type", "application/json");
+        exchange.sendResponseHeaders(statusCode, length);
+        OutputStream os = exchange.getResponseBody();
+        os.write(bytes, offset, length);
+        os.close();
+    }
+    
+    /**
+     * Set the strong ETag and answer 304 Not Modified if the client already has it
+     */
+    private static boolean notModified(HttpExchange exchange, String etag) throws IOException {
+        exchange.getResponseHeaders().set("ETag", etag);
+        String ifNoneMatch = exchange.getRequestHeaders().getFirst("If-None-Match");
+        if (ifNoneMatch == null) return false;
+        for (String candidate : ifNoneMatch.split(",")) {
+            String trimmed = candidate.trim();
+            if (trimmed.equals(etag) || trimmed.equals("*")) {
+                exchange.sendResponseHeaders(304, -1);
+                exchange.close();
+                return true;
+            }
+        }
+        return false;
+    }
+    
+    /**
+     * Whether the client asked for the binary encoding instead of JSON
+     */
+    private static boolean acceptsBinary(HttpExchange exchange) {
+        String accept = exchange.getRequestHeaders().getFirst("Accept");
+        return accept != null && accept.contains(BlockCodec.CONTENT_TYPE);
+    }
+    
     private static void sendErrorResponse(HttpExchange exchange, String message) throws IOException {
+        sendResponse(exchange, 400, errorJSON(message));
+    }
+    
+    private static String errorJSON(String message) {
         JSONObject error = new JSONObject();
         error.put("error", message);
-        sendResponse(exchange, 400, error.toString());
+        return error.toString();
     }
     
     private static String getQueryParam(String query, String param) {
@@ -357,7 +1150,7 @@ private static void enableCORS(HttpExchange exchange) {
         return null;
     }
     
-    private static JSONObject transactionToJSON(Transaction tx) {
+    static JSONObject transactionToJSON(Transaction tx) {
         JSONObject json = new JSONObject();
         json.put("transactionId", tx.getTransactionId());
         json.put("sender", tx.getSender());
@@ -369,6 +1162,16 @@ private static void enableCORS(HttpExchange exchange) {
         json.put("timestamp", tx.getTimestamp());
         json.put("status", tx.getStatus().toString());
         json.put("fee", tx.calculateFee());
+        json.put("fundingCurrency", tx.getFundingCurrency());
+        FxEngine.Quote quote = tx.getQuote();
+        if (quote != null) {
+            json.put("fundingAmount", Money.toDecimal(quote.getDebit(), quote.getFundingCurrency()));
+            json.put("fxRate", quote.getRate());
+        }
+        if (tx.getSignature() != null) {
+            json.put("publicKey", tx.getPublicKey());
+            json.put("signature", tx.getSignature());
+        }
         return json;
     }
 }
@@ -0,0 +1,36 @@
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+/**
+ * Writes the chain as JSON straight to a byte stream, one block at a time,
+ * so neither the document nor its string form is ever held in memory and
+ * the first bytes go out before the last block is written. Blocks come
+ * pre-encoded from the {@link BlockJsonCache}.
+ */
+public final class ChainJsonStreamer {
+    private static final byte[] CHAIN_START = "{\"chain\":[".getBytes(StandardCharsets.UTF_8);
+
+    private ChainJsonStreamer() {
+    }
+
+    /**
+     * Write {"chain":[...],"length":n,"from":f,"to":t} for the blocks at heights from..to
+     * of the first length blocks. The range is clamped to those blocks; an
+     * empty range writes an empty array.
+     */
+    public static void writeChain(OutputStream out, List<Block> chain, int length, int from, int to,
+                                  boolean headersOnly, BlockJsonCache cache) throws IOException {
+        int first = Math.max(0, from);
+        int last = Math.min(length - 1, to);
+
+        out.write(CHAIN_START);
+        for (int height = first; height <= last; height++) {
+            if (height > first) out.write(',');
+            cache.get(height, chain.get(height)).writeTo(out, headersOnly);
+        }
+        String tail = "],\"length\":" + length + ",\"from\":" + first + ",\"to\":" + Math.max(first - 1, last) + "}";
+        out.write(tail.getBytes(StandardCharsets.UTF_8));
+    }
+}
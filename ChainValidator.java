@@ -0,0 +1,222 @@
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Chain validation engine.
+ *
+ * INCREMENTAL remembers the height and hash of the last block it validated
+ * and only checks blocks appended since, so repeated status checks cost
+ * nothing once the chain is verified. FULL re-audits every block from the
+ * transactions up, ignoring cached Merkle roots and headers, with the
+ * heights split into chunks that workers claim in order; all workers stop
+ * once a failure is found below the heights they have left.
+ */
+public class ChainValidator {
+    public enum Mode { INCREMENTAL, FULL }
+
+    private static final int CHUNK = 256;
+    private static final int NONE = Integer.MAX_VALUE;
+
+    private final int workers;
+    private final ExecutorService pool;
+    private int validatedHeight;   // highest height known valid, guarded by this
+    private String validatedHash;  // hash of the block at validatedHeight
+
+    public ChainValidator() {
+        this(Integer.getInteger("crosspay.validator.threads", Runtime.getRuntime().availableProcessors()));
+    }
+
+    public ChainValidator(int workers) {
+        if (workers < 1) {
+            throw new IllegalArgumentException("Validator needs at least one worker");
+        }
+        this.workers = workers;
+        this.pool = Executors.newFixedThreadPool(workers, runnable -> {
+            Thread thread = new Thread(runnable, "validator-worker");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Validate the chain in the given mode
+     */
+    public Result validate(List<Block> chain, int difficulty, Mode mode) {
+        return mode == Mode.FULL ? audit(chain, difficulty) : validateIncremental(chain, difficulty);
+    }
+
+    /**
+     * Check only the blocks appended since the last successful validation
+     */
+    public synchronized Result validateIncremental(List<Block> chain, int difficulty) {
+        long start = System.nanoTime();
+        int tip = chain.size() - 1;
+
+        // Start over if the chain no longer holds the block we stopped at
+        int from = validatedHeight + 1;
+        if (validatedHash == null || validatedHeight > tip ||
+            !chain.get(validatedHeight).getHash().equals(validatedHash)) {
+            from = 1;
+        }
+
+        int invalid = check(chain, from, tip, difficulty, false);
+        validatedHeight = invalid == NONE ? tip : invalid - 1;
+        validatedHash = chain.get(validatedHeight).getHash();
+        return new Result(Mode.INCREMENTAL, tip, invalid, tip - from + 1, System.nanoTime() - start);
+    }
+
+    /**
+     * Re-hash every block across the worker pool, from its transactions up
+     */
+    public Result audit(List<Block> chain, int difficulty) {
+        long start = System.nanoTime();
+        int tip = chain.size() - 1;
+        int invalid = check(chain, 1, tip, difficulty, true);
+        if (invalid != NONE) {
+            synchronized (this) {
+                // Later incremental runs must not vouch for the failed block again
+                if (validatedHeight >= invalid) {
+                    validatedHeight = invalid - 1;
+                    validatedHash = chain.get(validatedHeight).getHash();
+                }
+            }
+        }
+        return new Result(Mode.FULL, tip, invalid, tip, System.nanoTime() - start);
+    }
+
+    /**
+     * Lowest invalid height in [from, to], or NONE
+     */
+    private int check(List<Block> chain, int from, int to, int difficulty, boolean recompute) {
+        if (to - from < CHUNK || workers == 1) {
+            for (int height = from; height <= to; height++) {
+                if (!isValidBlock(chain, height, difficulty, recompute)) return height;
+            }
+            return NONE;
+        }
+
+        AtomicInteger nextChunk = new AtomicInteger(from);
+        AtomicInteger firstInvalid = new AtomicInteger(NONE);
+        List<Future<?>> futures = new ArrayList<>(workers);
+        for (int i = 0; i < workers; i++) {
+            futures.add(pool.submit(() -> {
+                int chunkStart;
+                while ((chunkStart = nextChunk.getAndAdd(CHUNK)) <= to && chunkStart < firstInvalid.get()) {
+                    int chunkEnd = Math.min(to, chunkStart + CHUNK - 1);
+                    for (int height = chunkStart; height <= chunkEnd && height < firstInvalid.get(); height++) {
+                        if (!isValidBlock(chain, height, difficulty, recompute)) {
+                            firstInvalid.accumulateAndGet(height, Math::min);
+                            break;
+                        }
+                    }
+                }
+            }));
+        }
+        for (Future<?> future : futures) {
+            try {
+                future.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("Interrupted while validating chain", e);
+            } catch (ExecutionException e) {
+                throw new RuntimeException(e.getCause());
+            }
+        }
+        return firstInvalid.get();
+    }
+
+    private static boolean isValidBlock(List<Block> chain, int height, int difficulty, boolean recompute) {
+        return isValidBlock(chain.get(height), chain.get(height - 1).getHash(), difficulty, recompute);
+    }
+
+    /**
+     * Check one block against the hash of the block it must extend, e.g. a
+     * block received from another node before it is appended
+     */
+    static boolean isValidBlock(Block block, String previousHash, int difficulty, boolean recompute) {
+        String hash = block.getHash();
+
+        // A transaction may appear only once; in a paired Merkle tree a repeated
+        // last transaction would leave the root, and so the hash, unchanged
+        List<Transaction> transactions = block.getTransactions();
+        if (transactions.size() > 1) {
+            Set<String> ids = new HashSet<>(transactions.size() * 2);
+            for (Transaction transaction : transactions) {
+                if (!ids.add(transaction.getTransactionId())) return false;
+            }
+        }
+
+        // Verify the block hash, in an audit from the transactions themselves
+        if (recompute) {
+            for (Transaction transaction : block.getTransactions()) {
+                if (!transaction.getHash().equals(transaction.calculateHash())) return false;
+            }
+            if (!hash.equals(block.recalculateHash())) return false;
+        } else if (!hash.equals(block.calculateHash())) {
+            return false;
+        }
+
+        // Verify the link to the previous block and the mining difficulty
+        return block.getPreviousHash().equals(previousHash) &&
+               HashEngine.meetsDifficulty(hash, difficulty);
+    }
+
+    /**
+     * Outcome of one validation run
+     */
+    public static class Result {
+        private final Mode mode;
+        private final int height;
+        private final int firstInvalidHeight;
+        private final int blocksChecked;
+        private final long elapsedNanos;
+
+        Result(Mode mode, int height, int firstInvalid, int blocksChecked, long elapsedNanos) {
+            this.mode = mode;
+            this.height = height;
+            this.firstInvalidHeight = firstInvalid == NONE ? -1 : firstInvalid;
+            this.blocksChecked = Math.max(0, blocksChecked);
+            this.elapsedNanos = elapsedNanos;
+        }
+
+        public boolean isValid() {
+            return firstInvalidHeight < 0;
+        }
+
+        public Mode getMode() {
+            return mode;
+        }
+
+        /**
+         * Height of the chain tip when the run started
+         */
+        public int getHeight() {
+            return height;
+        }
+
+        /**
+         * Height of the lowest block that failed validation, or -1 if the chain is valid
+         */
+        public int getFirstInvalidHeight() {
+            return firstInvalidHeight;
+        }
+
+        /**
+         * Blocks in the range the run covered (an early stop may check fewer)
+         */
+        public int getBlocksChecked() {
+            return blocksChecked;
+        }
+
+        public double getElapsedMillis() {
+            return elapsedNanos / 1_000_000.0;
+        }
+    }
+}
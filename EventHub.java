@@ -0,0 +1,296 @@
+import com.sun.net.httpserver.HttpExchange;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import org.json.JSONObject;
+
+/**
+ * Server-Sent Events for sealed blocks and transaction status changes.
+ *
+ * Blockchain callbacks only hand their block or transactions to a single
+ * publisher thread, so mining and admission never wait on subscribers,
+ * and nothing is handed over while no one is subscribed. The publisher
+ * finds an event's subscribers through indexes by address and by
+ * transaction id, encodes the event once, and offers the same bytes to
+ * each subscriber's bounded queue; a stream thread per subscriber writes
+ * its queue out, in one flush per burst. A subscriber whose queue fills
+ * up is sent an overflow event and disconnected, so a slow consumer costs
+ * a bounded amount of memory and never holds up the others. Events are
+ * not replayed: a client that reconnects after an overflow re-reads
+ * current state over the REST API.
+ *
+ * Events are
+ *   block        {height, hash, previousHash, timestamp, transactions}
+ *   transaction  {transactionId, status, sender, receiver, amount, currency[, height, blockHash]}
+ *   overflow     {dropped}, sent last before disconnecting
+ * with a sequence number as id. Status is PENDING on admission or when a
+ * block is given up, PROCESSING when taken into a block, FAILED when
+ * evicted or unaffordable, and COMPLETED with the block it settled in.
+ */
+public class EventHub implements Blockchain.BlockListener, Blockchain.TransactionListener {
+    private static final byte[] HEARTBEAT = ": keepalive\n\n".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] OVERFLOW = new byte[0]; // Queued in place of the events a subscriber missed
+
+    private final int maxSubscribers;
+    private final int queueCapacity;
+    private final long heartbeatMillis;
+    private final ExecutorService publisher;
+    private final ExecutorService streams;
+    private final Set<Subscriber> subscribers = ConcurrentHashMap.newKeySet();
+    private final Set<Subscriber> blockSubscribers = ConcurrentHashMap.newKeySet();
+    private final Set<Subscriber> allTransactionSubscribers = ConcurrentHashMap.newKeySet();
+    private final Map<String, Set<Subscriber>> byAddress = new ConcurrentHashMap<>();
+    private final Map<String, Set<Subscriber>> byTransaction = new ConcurrentHashMap<>();
+    private final MetricsRegistry.Counter blockEvents;
+    private final MetricsRegistry.Counter transactionEvents;
+    private final MetricsRegistry.Counter deliveries;
+    private final MetricsRegistry.Counter overflows;
+
+    // Publisher thread only
+    private final List<Subscriber> matched = new ArrayList<>();
+    private long sequence;
+
+    public EventHub(MetricsRegistry registry) {
+        this(registry,
+             Integer.getInteger("crosspay.events.maxSubscribers", 1000),
+             Integer.getInteger("crosspay.events.queue", 1024),
+             Long.getLong("crosspay.events.heartbeatMs", 15_000));
+    }
+
+    public EventHub(MetricsRegistry registry, int maxSubscribers, int queueCapacity, long heartbeatMillis) {
+        this.maxSubscribers = maxSubscribers;
+        this.queueCapacity = queueCapacity;
+        this.heartbeatMillis = heartbeatMillis;
+        this.publisher = Executors.newSingleThreadExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "event-publisher");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.streams = ServerExecutors.streamExecutor("event-stream");
+
+        registry.gauge("crosspay_event_subscribers", "Open event streams", subscribers::size);
+        blockEvents = registry.counter("crosspay_events_published_total",
+            "Events encoded for at least one subscriber, by type", "type", "block");
+        transactionEvents = registry.counter("crosspay_events_published_total",
+            "Events encoded for at least one subscriber, by type", "type", "transaction");
+        deliveries = registry.counter("crosspay_event_deliveries_total", "Events queued to subscribers");
+        overflows = registry.counter("crosspay_event_overflows_total",
+            "Subscribers disconnected because their queue filled up");
+    }
+
+    /**
+     * Start streaming events to a client. Block events go to every
+     * subscriber that asked for blocks; transaction events to those that
+     * asked for transactions and name the transaction or one of its
+     * addresses, or named neither.
+     *
+     * @return false, having sent nothing, if the subscriber limit is reached
+     */
+    public boolean subscribe(HttpExchange exchange, Set<String> addresses, Set<String> transactionIds,
+                             boolean blocks, boolean transactions) throws IOException {
+        if (subscribers.size() >= maxSubscribers) return false;
+
+        exchange.getResponseHeaders().set("Content-Type", "text/event-stream; charset=utf-8");
+        exchange.getResponseHeaders().set("Cache-Control", "no-cache");
+        exchange.getResponseHeaders().set("X-Accel-Buffering", "no");
+        exchange.sendResponseHeaders(200, 0);
+        OutputStream out = new BufferedOutputStream(exchange.getResponseBody(), 16 * 1024);
+        out.write("retry: 3000\n\n".getBytes(StandardCharsets.UTF_8));
+        out.flush();
+
+        Subscriber subscriber = new Subscriber(exchange, out, addresses, transactionIds,
+                                               new ArrayBlockingQueue<>(queueCapacity));
+        subscribers.add(subscriber);
+        if (blocks) blockSubscribers.add(subscriber);
+        if (transactions) {
+            if (addresses.isEmpty() && transactionIds.isEmpty()) {
+                allTransactionSubscribers.add(subscriber);
+            }
+            for (String address : addresses) {
+                byAddress.computeIfAbsent(address, key -> ConcurrentHashMap.newKeySet()).add(subscriber);
+            }
+            for (String transactionId : transactionIds) {
+                byTransaction.computeIfAbsent(transactionId, key -> ConcurrentHashMap.newKeySet()).add(subscriber);
+            }
+        }
+        streams.execute(() -> stream(subscriber));
+        return true;
+    }
+
+    public int getSubscriberCount() {
+        return subscribers.size();
+    }
+
+    @Override
+    public void blockAppended(int height, Block block) {
+        if (subscribers.isEmpty()) return;
+        publisher.execute(() -> publishBlock(height, block));
+    }
+
+    @Override
+    public void statusChanged(List<Transaction> transactions, Transaction.TransactionStatus status) {
+        if (allTransactionSubscribers.isEmpty() && byAddress.isEmpty() && byTransaction.isEmpty()) return;
+        publisher.execute(() -> {
+            for (Transaction transaction : transactions) {
+                publishTransaction(transaction, status, -1, null);
+            }
+        });
+    }
+
+    private void publishBlock(int height, Block block) {
+        long id = ++sequence;
+        if (!blockSubscribers.isEmpty()) {
+            JSONObject json = new JSONObject();
+            json.put("height", height);
+            json.put("hash", block.getHash());
+            json.put("previousHash", block.getPreviousHash());
+            json.put("timestamp", block.getTimestamp());
+            json.put("transactions", block.getTransactions().size());
+            matched.addAll(blockSubscribers);
+            deliver(frame(id, "block", json));
+            blockEvents.increment();
+        }
+        for (Transaction transaction : block.getTransactions()) {
+            publishTransaction(transaction, Transaction.TransactionStatus.COMPLETED, height, block.getHash());
+        }
+    }
+
+    private void publishTransaction(Transaction transaction, Transaction.TransactionStatus status,
+                                    int height, String blockHash) {
+        long id = ++sequence;
+        match(allTransactionSubscribers, id);
+        match(byAddress.get(transaction.getSender()), id);
+        match(byAddress.get(transaction.getReceiver()), id);
+        match(byTransaction.get(transaction.getTransactionId()), id);
+        if (matched.isEmpty()) return;
+
+        JSONObject json = new JSONObject();
+        json.put("transactionId", transaction.getTransactionId());
+        json.put("status", status.name());
+        json.put("sender", transaction.getSender());
+        json.put("receiver", transaction.getReceiver());
+        json.put("amount", transaction.getAmount());
+        json.put("currency", transaction.getCurrency());
+        if (blockHash != null) {
+            json.put("height", height);
+            json.put("blockHash", blockHash);
+        }
+        deliver(frame(id, "transaction", json));
+        transactionEvents.increment();
+    }
+
+    /**
+     * Add the subscribers not already matched for this event
+     */
+    private void match(Collection<Subscriber> candidates, long id) {
+        if (candidates == null) return;
+        for (Subscriber subscriber : candidates) {
+            if (subscriber.lastMatched != id) {
+                subscriber.lastMatched = id;
+                matched.add(subscriber);
+            }
+        }
+    }
+
+    private void deliver(byte[] frame) {
+        for (int i = 0; i < matched.size(); i++) {
+            Subscriber subscriber = matched.get(i);
+            if (subscriber.overflowed) continue;
+            if (subscriber.queue.offer(frame)) {
+                deliveries.increment();
+            } else {
+                // Too slow to keep up; drop what it has not read and let it go
+                subscriber.overflowed = true;
+                subscriber.dropped = subscriber.queue.size() + 1;
+                subscriber.queue.clear();
+                subscriber.queue.offer(OVERFLOW);
+                overflows.increment();
+            }
+        }
+        matched.clear();
+    }
+
+    private static byte[] frame(long id, String event, JSONObject data) {
+        return ("id: " + id + "\nevent: " + event + "\ndata: " + data + "\n\n").getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Write a subscriber's queue out until it disconnects or overflows
+     */
+    private void stream(Subscriber subscriber) {
+        OutputStream out = subscriber.out;
+        try {
+            while (true) {
+                byte[] frame = subscriber.queue.poll(heartbeatMillis, TimeUnit.MILLISECONDS);
+                if (frame == null) {
+                    out.write(HEARTBEAT);
+                } else {
+                    do {
+                        if (frame == OVERFLOW) {
+                            JSONObject json = new JSONObject();
+                            json.put("dropped", subscriber.dropped);
+                            out.write(("event: overflow\ndata: " + json + "\n\n").getBytes(StandardCharsets.UTF_8));
+                            return;
+                        }
+                        out.write(frame);
+                    } while ((frame = subscriber.queue.poll()) != null);
+                }
+                out.flush();
+            }
+        } catch (IOException | InterruptedException e) {
+            // The client went away
+        } finally {
+            unsubscribe(subscriber);
+            try {
+                out.close();
+            } catch (IOException ignored) {
+            }
+            subscriber.exchange.close();
+        }
+    }
+
+    private void unsubscribe(Subscriber subscriber) {
+        subscribers.remove(subscriber);
+        blockSubscribers.remove(subscriber);
+        allTransactionSubscribers.remove(subscriber);
+        for (String address : subscriber.addresses) {
+            byAddress.computeIfPresent(address, (key, set) -> set.remove(subscriber) && set.isEmpty() ? null : set);
+        }
+        for (String transactionId : subscriber.transactionIds) {
+            byTransaction.computeIfPresent(transactionId,
+                (key, set) -> set.remove(subscriber) && set.isEmpty() ? null : set);
+        }
+    }
+
+    private static final class Subscriber {
+        final HttpExchange exchange;
+        final OutputStream out;
+        final Set<String> addresses;
+        final Set<String> transactionIds;
+        final BlockingQueue<byte[]> queue;
+        volatile boolean overflowed;
+        volatile int dropped;
+        long lastMatched; // Publisher thread only
+
+        Subscriber(HttpExchange exchange, OutputStream out, Set<String> addresses, Set<String> transactionIds,
+                   BlockingQueue<byte[]> queue) {
+            this.exchange = exchange;
+            this.out = out;
+            this.addresses = addresses;
+            this.transactionIds = transactionIds;
+            this.queue = queue;
+        }
+    }
+}
@@ -0,0 +1,364 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.math.BigDecimal;
+import java.math.MathContext;
+import java.math.RoundingMode;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Foreign-exchange rates between the currencies balances are held in.
+ *
+ * Rates live in an immutable table published through an AtomicReference:
+ * a conversion reads one reference and never locks, and an update builds a
+ * complete new table off to the side and swaps it in, so readers see
+ * either the old rates or the new ones, never a mix. Each table caches the
+ * cross rate of every corridor it is asked about, already adjusted for the
+ * two currencies' minor units, so converting is a single multiplication.
+ *
+ * Rates are quoted as units of a currency per one unit of the base
+ * currency. They are read from a properties feed file (EUR=0.92, one line
+ * per currency) that a watcher thread reloads whenever it changes; a feed
+ * that fails to parse leaves the current table in place.
+ */
+public class FxEngine {
+    /**
+     * Counterparty of every conversion: it takes the funding leg and pays
+     * the settlement leg, so each currency's total is conserved and its
+     * balances are the node's net FX position
+     */
+    public static final String EXCHANGE_ACCOUNT = "fx-desk@system.com";
+
+    private static final MathContext PRECISION = MathContext.DECIMAL128;
+    private static final Map<String, BigDecimal> DEFAULT_RATES = new TreeMap<>();
+
+    static {
+        DEFAULT_RATES.put("USD", new BigDecimal("1"));
+        DEFAULT_RATES.put("EUR", new BigDecimal("0.92"));
+        DEFAULT_RATES.put("GBP", new BigDecimal("0.79"));
+        DEFAULT_RATES.put("JPY", new BigDecimal("149.50"));
+        DEFAULT_RATES.put("INR", new BigDecimal("83.20"));
+        DEFAULT_RATES.put("CAD", new BigDecimal("1.36"));
+        DEFAULT_RATES.put("AUD", new BigDecimal("1.52"));
+        DEFAULT_RATES.put("CHF", new BigDecimal("0.88"));
+        DEFAULT_RATES.put("MXN", new BigDecimal("17.10"));
+        DEFAULT_RATES.put("PHP", new BigDecimal("56.40"));
+    }
+
+    private final AtomicReference<RateTable> table;
+    private final Path feedFile;
+    private final long pollMillis;
+    private volatile boolean watching;
+    private Thread watcher;
+    private long feedModified;
+
+    /**
+     * Built-in rates only
+     */
+    public FxEngine() {
+        this(null, 0);
+    }
+
+    public FxEngine(Path feedFile) {
+        this(feedFile, Long.getLong("crosspay.fx.pollMs", 1000));
+    }
+
+    /**
+     * Start from the feed file if it exists, otherwise from the built-in rates
+     */
+    public FxEngine(Path feedFile, long pollMillis) {
+        this.feedFile = feedFile;
+        this.pollMillis = pollMillis;
+        this.table = new AtomicReference<>(new RateTable(DEFAULT_RATES, 0, "built-in"));
+        if (feedFile != null) {
+            reload();
+        }
+    }
+
+    /**
+     * Start watching the feed file for changes
+     */
+    public synchronized void start() {
+        if (watching || feedFile == null) return;
+        watching = true;
+        watcher = new Thread(this::watch, "fx-rate-watcher");
+        watcher.setDaemon(true);
+        watcher.start();
+    }
+
+    public synchronized void stop() {
+        watching = false;
+        if (watcher != null) watcher.interrupt();
+    }
+
+    private void watch() {
+        while (watching) {
+            try {
+                Thread.sleep(pollMillis);
+            } catch (InterruptedException e) {
+                break;
+            }
+            reload();
+        }
+    }
+
+    /**
+     * Load the feed file if it changed since the last load and publish its rates
+     *
+     * @return true if a new table was published
+     */
+    public synchronized boolean reload() {
+        try {
+            long modified = Files.getLastModifiedTime(feedFile).toMillis();
+            if (modified == feedModified) return false;
+
+            Properties feed = new Properties();
+            try (InputStream in = Files.newInputStream(feedFile)) {
+                feed.load(in);
+            }
+            Map<String, BigDecimal> rates = new TreeMap<>();
+            for (String currency : feed.stringPropertyNames()) {
+                BigDecimal rate = new BigDecimal(feed.getProperty(currency).trim());
+                if (rate.signum() <= 0) {
+                    throw new NumberFormatException("Rate for " + currency + " must be positive");
+                }
+                rates.put(currency.trim().toUpperCase(), rate);
+            }
+            if (!BigDecimal.ONE.equals(rates.getOrDefault(Money.BASE_CURRENCY, BigDecimal.ONE).stripTrailingZeros())) {
+                throw new NumberFormatException("Rate for the base currency " + Money.BASE_CURRENCY + " must be 1");
+            }
+            rates.put(Money.BASE_CURRENCY, BigDecimal.ONE);
+
+            RateTable current = table.get();
+            table.set(new RateTable(rates, current.version + 1, feedFile.toString()));
+            feedModified = modified;
+            System.out.println("Loaded " + rates.size() + " FX rates from " + feedFile);
+            return true;
+        } catch (NoSuchFileException e) {
+            return false;
+        } catch (IOException | RuntimeException e) {
+            System.out.println("Ignoring FX feed " + feedFile + ": " + e.getMessage());
+            try {
+                feedModified = Files.getLastModifiedTime(feedFile).toMillis(); // don't retry until it changes again
+            } catch (IOException ignored) {
+                // retried on the next poll
+            }
+            return false;
+        }
+    }
+
+    /**
+     * Current rate table
+     */
+    public RateTable getRates() {
+        return table.get();
+    }
+
+    public boolean supports(String currency) {
+        return table.get().rates.containsKey(currency);
+    }
+
+    /**
+     * Convert minor units of one currency to another at the current rates
+     *
+     * @throws IllegalArgumentException if either currency has no rate
+     */
+    public long convert(long minor, String from, String to) {
+        return table.get().convert(minor, from, to);
+    }
+
+    /**
+     * Price a transaction: the sender pays amount plus fee in its funding
+     * currency, the receiver is credited the amount in the transaction
+     * currency, and the fee is never less than the funding currency's
+     * minimum. All legs come from one table.
+     *
+     * @return null if either currency has no rate
+     * @throws ArithmeticException if a converted leg overflows minor units
+     */
+    public Quote quote(Transaction transaction) {
+        RateTable rates = table.get();
+        String funding = transaction.getFundingCurrency();
+        String settlement = transaction.getCurrency();
+        if (!rates.rates.containsKey(funding) || !rates.rates.containsKey(settlement)) {
+            return null;
+        }
+
+        long amount = transaction.getAmountMinor();
+        long fee = transaction.calculateFeeMinor();
+        long fundingAmount = amount;
+        if (!funding.equals(settlement)) {
+            fundingAmount = rates.convert(amount, settlement, funding);
+            fee = Math.max(rates.convert(fee, settlement, funding), Money.fee(0, funding));
+        }
+        return new Quote(funding, Math.addExact(fundingAmount, fee), fee, settlement, amount,
+                         rates.convert(fee, funding, Money.BASE_CURRENCY),
+                         rates.corridor(settlement, funding).rate);
+    }
+
+    /**
+     * An immutable set of rates with its own lazily filled corridor cache
+     */
+    public static class RateTable {
+        private final Map<String, BigDecimal> rates;
+        private final long version;
+        private final long loadedAt;
+        private final String source;
+        private final Map<String, Map<String, Corridor>> corridors = new ConcurrentHashMap<>();
+
+        RateTable(Map<String, BigDecimal> rates, long version, String source) {
+            this.rates = Collections.unmodifiableMap(new TreeMap<>(rates));
+            this.version = version;
+            this.loadedAt = System.currentTimeMillis();
+            this.source = source;
+        }
+
+        long convert(long minor, String from, String to) {
+            if (from.equals(to)) return minor;
+            return corridor(from, to).minorFactor.multiply(BigDecimal.valueOf(minor))
+                                                 .setScale(0, RoundingMode.HALF_EVEN).longValueExact();
+        }
+
+        Corridor corridor(String from, String to) {
+            Map<String, Corridor> fromCorridors = corridors.computeIfAbsent(from, key -> new ConcurrentHashMap<>());
+            Corridor corridor = fromCorridors.get(to);
+            if (corridor == null) {
+                corridor = fromCorridors.computeIfAbsent(to, key -> new Corridor(rate(from), rate(to),
+                                                                                 Money.scale(to) - Money.scale(from)));
+            }
+            return corridor;
+        }
+
+        private BigDecimal rate(String currency) {
+            BigDecimal rate = rates.get(currency);
+            if (rate == null) {
+                throw new IllegalArgumentException("No exchange rate for " + currency);
+            }
+            return rate;
+        }
+
+        /**
+         * Units of each currency per one unit of the base currency
+         */
+        public Map<String, BigDecimal> getRates() {
+            return rates;
+        }
+
+        public long getVersion() {
+            return version;
+        }
+
+        public long getLoadedAt() {
+            return loadedAt;
+        }
+
+        public String getSource() {
+            return source;
+        }
+    }
+
+    /**
+     * Cross rate of one corridor, and the same rate in minor units
+     */
+    private static final class Corridor {
+        final BigDecimal rate;
+        final BigDecimal minorFactor;
+
+        Corridor(BigDecimal fromRate, BigDecimal toRate, int scaleShift) {
+            this.rate = toRate.divide(fromRate, PRECISION);
+            this.minorFactor = rate.scaleByPowerOfTen(scaleShift);
+        }
+    }
+
+    /**
+     * Locked-in pricing of one transaction, fixed at admission and applied
+     * unchanged when its block is executed or replayed
+     */
+    public static class Quote {
+        private final String fundingCurrency;
+        private final long debit;
+        private final long fee;
+        private final String settlementCurrency;
+        private final long credit;
+        private final long baseFee;
+        private final BigDecimal rate;
+
+        /**
+         * @param debit   amount plus fee the sender pays, in funding minor units
+         * @param fee     part of the debit paid to the miner
+         * @param credit  what the receiver gets, in settlement minor units
+         * @param baseFee fee in base currency minor units, the transaction's priority
+         * @param rate    funding units per settlement unit
+         */
+        Quote(String fundingCurrency, long debit, long fee, String settlementCurrency, long credit, long baseFee,
+              BigDecimal rate) {
+            this.fundingCurrency = fundingCurrency;
+            this.debit = debit;
+            this.fee = fee;
+            this.settlementCurrency = settlementCurrency;
+            this.credit = credit;
+            this.baseFee = baseFee;
+            this.rate = rate;
+        }
+
+        /**
+         * The transaction's quote, or for one recorded before quotes existed,
+         * the pricing it was executed with: a single base-currency balance
+         * where one unit of any currency counted as one unit
+         */
+        public static Quote of(Transaction transaction) {
+            Quote quote = transaction.getQuote();
+            if (quote != null) return quote;
+            long amount = transaction.getAmountMinor();
+            String currency = transaction.getCurrency();
+            long credit = Money.rescale(amount, currency, Money.BASE_CURRENCY);
+            long debit = Money.rescale(amount + transaction.calculateFeeMinor(), currency, Money.BASE_CURRENCY);
+            quote = new Quote(Money.BASE_CURRENCY, debit, debit - credit, Money.BASE_CURRENCY, credit, debit - credit,
+                              BigDecimal.ONE);
+            transaction.setQuote(quote);
+            return quote;
+        }
+
+        public String getFundingCurrency() {
+            return fundingCurrency;
+        }
+
+        public long getDebit() {
+            return debit;
+        }
+
+        public long getFee() {
+            return fee;
+        }
+
+        public String getSettlementCurrency() {
+            return settlementCurrency;
+        }
+
+        public long getCredit() {
+            return credit;
+        }
+
+        public long getBaseFee() {
+            return baseFee;
+        }
+
+        public BigDecimal getRate() {
+            return rate;
+        }
+
+        /**
+         * Whether the sender and receiver sides are in different currencies
+         */
+        public boolean isConversion() {
+            return !fundingCurrency.equals(settlementCurrency);
+        }
+    }
+}
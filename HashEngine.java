@@ -0,0 +1,389 @@
+import java.security.DigestException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * SHA-256 hashing engine shared by blocks and transactions.
+ * Digest instances and scratch buffers are kept per thread, so hashing
+ * allocates nothing beyond the final hex string.
+ */
+public final class HashEngine {
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private static final int[] K = {
+        0x428a2f98, 0x71374491, 0xb5c0fbcf, 0xe9b5dba5, 0x3956c25b, 0x59f111f1, 0x923f82a4, 0xab1c5ed5,
+        0xd807aa98, 0x12835b01, 0x243185be, 0x550c7dc3, 0x72be5d74, 0x80deb1fe, 0x9bdc06a7, 0xc19bf174,
+        0xe49b69c1, 0xefbe4786, 0x0fc19dc6, 0x240ca1cc, 0x2de92c6f, 0x4a7484aa, 0x5cb0a9dc, 0x76f988da,
+        0x983e5152, 0xa831c66d, 0xb00327c8, 0xbf597fc7, 0xc6e00bf3, 0xd5a79147, 0x06ca6351, 0x14292967,
+        0x27b70a85, 0x2e1b2138, 0x4d2c6dfc, 0x53380d13, 0x650a7354, 0x766a0abb, 0x81c2c92e, 0x92722c85,
+        0xa2bfe8a1, 0xa81a664b, 0xc24b8b70, 0xc76c51a3, 0xd192e819, 0xd6990624, 0xf40e3585, 0x106aa070,
+        0x19a4c116, 0x1e376c08, 0x2748774c, 0x34b0bcb5, 0x391c0cb3, 0x4ed8aa4a, 0x5b9cca4f, 0x682e6ff3,
+        0x748f82ee, 0x78a5636f, 0x84c87814, 0x8cc70208, 0x90befffa, 0xa4506ceb, 0xbef9a3f7, 0xc67178f2
+    };
+
+    private static final int[] INITIAL_STATE = {
+        0x6a09e667, 0xbb67ae85, 0x3c6ef372, 0xa54ff53a, 0x510e527f, 0x9b05688c, 0x1f83d9ab, 0x5be0cd19
+    };
+
+    private static final ThreadLocal<Scratch> SCRATCH = ThreadLocal.withInitial(Scratch::new);
+
+    private HashEngine() {
+    }
+
+    /**
+     * Thread-local string builder for assembling hash input, cleared on each call
+     */
+    public static StringBuilder builder() {
+        StringBuilder sb = SCRATCH.get().builder;
+        sb.setLength(0);
+        return sb;
+    }
+
+    /**
+     * SHA-256 of the UTF-8 encoding of the data, as a lowercase hex string
+     */
+    public static String sha256Hex(CharSequence data) {
+        Scratch scratch = SCRATCH.get();
+        int length = scratch.encode(data);
+        MessageDigest digest = scratch.digest;
+        digest.update(scratch.bytes, 0, length);
+        return scratch.finish();
+    }
+
+    /**
+     * SHA-256 of the bytes, as a lowercase hex string
+     */
+    public static String sha256Hex(byte[] data) {
+        Scratch scratch = SCRATCH.get();
+        scratch.digest.update(data);
+        return scratch.finish();
+    }
+
+    /**
+     * SHA-256 of the header prefix followed by the big-endian nonce, as a lowercase hex string
+     */
+    public static String sha256Hex(byte[] prefix, int nonce) {
+        Scratch scratch = SCRATCH.get();
+        MessageDigest digest = scratch.digest;
+        digest.update(prefix);
+        digest.update((byte) (nonce >>> 24));
+        digest.update((byte) (nonce >>> 16));
+        digest.update((byte) (nonce >>> 8));
+        digest.update((byte) nonce);
+        return scratch.finish();
+    }
+
+    /**
+     * SHA-256 of two concatenated 32-byte hashes, written into dst at dstOffset
+     */
+    public static void sha256Pair(byte[] src, int leftOffset, int rightOffset, byte[] dst, int dstOffset) {
+        MessageDigest digest = SCRATCH.get().digest;
+        digest.update(src, leftOffset, 32);
+        digest.update(src, rightOffset, 32);
+        try {
+            digest.digest(dst, dstOffset, 32);
+        } catch (DigestException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * SHA-256 of a one-byte prefix followed by length bytes of src, written into dst at dstOffset
+     */
+    public static void sha256Prefixed(byte prefix, byte[] src, int offset, int length, byte[] dst, int dstOffset) {
+        MessageDigest digest = SCRATCH.get().digest;
+        digest.update(prefix);
+        digest.update(src, offset, length);
+        try {
+            digest.digest(dst, dstOffset, 32);
+        } catch (DigestException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * UTF-8 encoding of the data
+     */
+    public static byte[] utf8(CharSequence data) {
+        Scratch scratch = SCRATCH.get();
+        int length = scratch.encode(data);
+        byte[] bytes = new byte[length];
+        System.arraycopy(scratch.bytes, 0, bytes, 0, length);
+        return bytes;
+    }
+
+    /**
+     * Check that a hex hash starts with the given number of '0' digits,
+     * i.e. that the raw digest has at least 4 * difficulty leading zero bits
+     */
+    public static boolean meetsDifficulty(String hash, int difficulty) {
+        if (hash == null || hash.length() < difficulty) return false;
+        for (int i = 0; i < difficulty; i++) {
+            if (hash.charAt(i) != '0') return false;
+        }
+        return true;
+    }
+
+    public static String toHex(byte[] bytes) {
+        char[] chars = new char[bytes.length * 2];
+        for (int i = 0; i < bytes.length; i++) {
+            chars[2 * i] = HEX[(bytes[i] >>> 4) & 0xf];
+            chars[2 * i + 1] = HEX[bytes[i] & 0xf];
+        }
+        return new String(chars);
+    }
+
+    public static byte[] fromHex(String hex) {
+        byte[] bytes = new byte[hex.length() / 2];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = (byte) ((Character.digit(hex.charAt(2 * i), 16) << 4) |
+                               Character.digit(hex.charAt(2 * i + 1), 16));
+        }
+        return bytes;
+    }
+
+    /**
+     * Per-thread digest and scratch buffers
+     */
+    private static final class Scratch {
+        private final MessageDigest digest;
+        private final StringBuilder builder = new StringBuilder(256);
+        private final byte[] hash = new byte[32];
+        private final char[] hex = new char[64];
+        private byte[] bytes = new byte[1024];
+
+        Scratch() {
+            try {
+                digest = MessageDigest.getInstance("SHA-256");
+            } catch (NoSuchAlgorithmException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        String finish() {
+            try {
+                digest.digest(hash, 0, hash.length);
+            } catch (DigestException e) {
+                throw new IllegalStateException(e);
+            }
+            for (int i = 0; i < hash.length; i++) {
+                hex[2 * i] = HEX[(hash[i] >>> 4) & 0xf];
+                hex[2 * i + 1] = HEX[hash[i] & 0xf];
+            }
+            return new String(hex);
+        }
+
+        /**
+         * UTF-8 encode into the reusable byte buffer, returning the encoded length
+         */
+        int encode(CharSequence data) {
+            int length = data.length();
+            if (bytes.length < length * 3) {
+                bytes = new byte[Math.max(length * 3, bytes.length * 2)];
+            }
+
+            int pos = 0;
+            for (int i = 0; i < length; i++) {
+                char c = data.charAt(i);
+                if (c < 0x80) {
+                    bytes[pos++] = (byte) c;
+                } else if (c < 0x800) {
+                    bytes[pos++] = (byte) (0xc0 | (c >> 6));
+                    bytes[pos++] = (byte) (0x80 | (c & 0x3f));
+                } else if (Character.isHighSurrogate(c) && i + 1 < length &&
+                           Character.isLowSurrogate(data.charAt(i + 1))) {
+                    int cp = Character.toCodePoint(c, data.charAt(++i));
+                    bytes[pos++] = (byte) (0xf0 | (cp >> 18));
+                    bytes[pos++] = (byte) (0x80 | ((cp >> 12) & 0x3f));
+                    bytes[pos++] = (byte) (0x80 | ((cp >> 6) & 0x3f));
+                    bytes[pos++] = (byte) (0x80 | (cp & 0x3f));
+                } else if (Character.isSurrogate(c)) {
+                    bytes[pos++] = '?';
+                } else {
+                    bytes[pos++] = (byte) (0xe0 | (c >> 12));
+                    bytes[pos++] = (byte) (0x80 | ((c >> 6) & 0x3f));
+                    bytes[pos++] = (byte) (0x80 | (c & 0x3f));
+                }
+            }
+            return pos;
+        }
+    }
+
+    /**
+     * Nonce search over a fixed block header prefix.
+     * For long prefixes the SHA-256 state after every complete 64-byte
+     * block is computed once (the midstate); each attempt writes the nonce
+     * into the pre-padded tail and compresses only the final one or two
+     * blocks. Short prefixes go through a dedicated platform digest instead,
+     * since its CPU intrinsics beat a Java midstate for a few blocks.
+     * Difficulty is checked on the raw digest, so a failed attempt
+     * allocates nothing. Instances are not thread-safe; use one per worker.
+     */
+    public static final class NonceSearch {
+        private static final int MIDSTATE_MIN_BLOCKS = 4;
+
+        private final MessageDigest digest;
+        private final byte[] prefix;
+        private final byte[] nonceBytes = new byte[4];
+        private final byte[] hash = new byte[32];
+        private final int[] midstate = new int[8];
+        private final int[] state = new int[8];
+        private final int[] w = new int[64];
+        private final byte[] tail;
+        private final int[] tailWords;
+        private final int noncePos;
+
+        public NonceSearch(byte[] prefix) {
+            int full = prefix.length - prefix.length % 64;
+            if (full / 64 < MIDSTATE_MIN_BLOCKS) {
+                try {
+                    this.digest = MessageDigest.getInstance("SHA-256");
+                } catch (NoSuchAlgorithmException e) {
+                    throw new IllegalStateException(e);
+                }
+                this.prefix = prefix;
+                this.tail = null;
+                this.tailWords = null;
+                this.noncePos = 0;
+                return;
+            }
+            this.digest = null;
+            this.prefix = null;
+
+            System.arraycopy(INITIAL_STATE, 0, midstate, 0, 8);
+            int[] words = new int[16];
+            for (int off = 0; off < full; off += 64) {
+                toWords(prefix, off, words, 0, 16);
+                compress(midstate, words, 0, w);
+            }
+
+            // Tail = prefix remainder, 4 nonce bytes, 0x80, zero padding, 64-bit bit length
+            noncePos = prefix.length - full;
+            int blocks = noncePos + 4 + 1 + 8 <= 64 ? 1 : 2;
+            tail = new byte[blocks * 64];
+            System.arraycopy(prefix, full, tail, 0, noncePos);
+            tail[noncePos + 4] = (byte) 0x80;
+            long bitLength = (prefix.length + 4L) * 8;
+            for (int i = 0; i < 8; i++) {
+                tail[tail.length - 1 - i] = (byte) (bitLength >>> (8 * i));
+            }
+            tailWords = new int[blocks * 16];
+            toWords(tail, 0, tailWords, 0, tailWords.length);
+        }
+
+        /**
+         * Hash the header with this nonce and report whether the digest
+         * has at least the given number of leading zero bits
+         */
+        public boolean tryNonce(int nonce, int zeroBits) {
+            if (digest != null) {
+                return tryDigest(nonce, zeroBits);
+            }
+            tail[noncePos] = (byte) (nonce >>> 24);
+            tail[noncePos + 1] = (byte) (nonce >>> 16);
+            tail[noncePos + 2] = (byte) (nonce >>> 8);
+            tail[noncePos + 3] = (byte) nonce;
+            int first = noncePos >> 2;
+            int last = (noncePos + 3) >> 2;
+            toWords(tail, first * 4, tailWords, first, last - first + 1);
+
+            System.arraycopy(midstate, 0, state, 0, 8);
+            for (int off = 0; off < tailWords.length; off += 16) {
+                compress(state, tailWords, off, w);
+            }
+            return leadingZeroBits(state, zeroBits) >= zeroBits;
+        }
+
+        private boolean tryDigest(int nonce, int zeroBits) {
+            nonceBytes[0] = (byte) (nonce >>> 24);
+            nonceBytes[1] = (byte) (nonce >>> 16);
+            nonceBytes[2] = (byte) (nonce >>> 8);
+            nonceBytes[3] = (byte) nonce;
+            digest.update(prefix);
+            digest.update(nonceBytes);
+            try {
+                digest.digest(hash, 0, hash.length);
+            } catch (DigestException e) {
+                throw new IllegalStateException(e);
+            }
+
+            int bits = 0;
+            for (int i = 0; i < hash.length && bits < zeroBits; i++) {
+                int lz = Integer.numberOfLeadingZeros(hash[i] & 0xff) - 24;
+                bits += lz;
+                if (lz < 8) break;
+            }
+            return bits >= zeroBits;
+        }
+
+        /**
+         * Hex digest of the last nonce tried
+         */
+        public String hashHex() {
+            if (digest != null) {
+                return toHex(hash);
+            }
+            char[] chars = new char[64];
+            for (int i = 0; i < 8; i++) {
+                int word = state[i];
+                for (int j = 0; j < 8; j++) {
+                    chars[i * 8 + j] = HEX[(word >>> (28 - 4 * j)) & 0xf];
+                }
+            }
+            return new String(chars);
+        }
+
+        private static int leadingZeroBits(int[] state, int needed) {
+            int bits = 0;
+            for (int i = 0; i < 8 && bits < needed; i++) {
+                int lz = Integer.numberOfLeadingZeros(state[i]);
+                bits += lz;
+                if (lz < 32) break;
+            }
+            return bits;
+        }
+
+        private static void toWords(byte[] src, int off, int[] dst, int dstOff, int count) {
+            for (int i = 0; i < count; i++) {
+                int p = off + 4 * i;
+                dst[dstOff + i] = (src[p] << 24) | ((src[p + 1] & 0xff) << 16) |
+                                  ((src[p + 2] & 0xff) << 8) | (src[p + 3] & 0xff);
+            }
+        }
+
+        private static void compress(int[] h, int[] block, int off, int[] w) {
+            System.arraycopy(block, off, w, 0, 16);
+            for (int t = 16; t < 64; t++) {
+                int s0 = Integer.rotateRight(w[t - 15], 7) ^ Integer.rotateRight(w[t - 15], 18) ^ (w[t - 15] >>> 3);
+                int s1 = Integer.rotateRight(w[t - 2], 17) ^ Integer.rotateRight(w[t - 2], 19) ^ (w[t - 2] >>> 10);
+                w[t] = w[t - 16] + s0 + w[t - 7] + s1;
+            }
+
+            int a = h[0], b = h[1], c = h[2], d = h[3], e = h[4], f = h[5], g = h[6], hh = h[7];
+            for (int t = 0; t < 64; t++) {
+                int S1 = Integer.rotateRight(e, 6) ^ Integer.rotateRight(e, 11) ^ Integer.rotateRight(e, 25);
+                int ch = (e & f) ^ (~e & g);
+                int t1 = hh + S1 + ch + K[t] + w[t];
+                int S0 = Integer.rotateRight(a, 2) ^ Integer.rotateRight(a, 13) ^ Integer.rotateRight(a, 22);
+                int maj = (a & b) ^ (a & c) ^ (b & c);
+                int t2 = S0 + maj;
+                hh = g;
+                g = f;
+                f = e;
+                e = d + t1;
+                d = c;
+                c = b;
+                b = a;
+                a = t1 + t2;
+            }
+            h[0] += a;
+            h[1] += b;
+            h[2] += c;
+            h[3] += d;
+            h[4] += e;
+            h[5] += f;
+            h[6] += g;
+            h[7] += hh;
+        }
+    }
+}
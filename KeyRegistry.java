@@ -0,0 +1,158 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Predicate;
+
+/**
+ * Public keys allowed to sign for each address.
+ *
+ * An address with a registered key only sends transactions signed with
+ * that key. Signatures are required by default, so an address without a
+ * key cannot send at all; only where they are made optional may it send
+ * unsigned transactions. Keys are read from a properties file
+ * (alice@email.com=MFkw..., one line per address) and, while registration
+ * is open, the first key registered over the API for an address nobody
+ * has used yet is bound to it and written back to the file. The key of an
+ * address that already holds funds or has history, and any replacement of
+ * a bound key, is provisioned by editing the file and restarting.
+ */
+public class KeyRegistry {
+    private final Path file;
+    private final boolean required;
+    private final boolean registrationOpen;
+    private final Map<String, String> keys = new ConcurrentHashMap<>();
+
+    /**
+     * In memory, signatures required and registration open
+     */
+    public KeyRegistry() {
+        this(true);
+    }
+
+    /**
+     * In memory with registration open; a registry that does not require
+     * signatures is for benchmarks and tools moving funds between
+     * accounts they created themselves
+     */
+    public KeyRegistry(boolean required) {
+        this.file = null;
+        this.required = required;
+        this.registrationOpen = true;
+    }
+
+    public KeyRegistry(Path file) throws IOException {
+        this(file, Boolean.parseBoolean(System.getProperty("crosspay.signatures.required", "true")),
+             Boolean.parseBoolean(System.getProperty("crosspay.keys.registration", "true")));
+    }
+
+    /**
+     * Start from the key file if it exists
+     *
+     * @throws IllegalArgumentException if the file holds a key that is not a P-256 public key
+     */
+    public KeyRegistry(Path file, boolean required, boolean registrationOpen) throws IOException {
+        this.file = file;
+        this.required = required;
+        this.registrationOpen = registrationOpen;
+        Properties stored = new Properties();
+        try (InputStream in = Files.newInputStream(file)) {
+            stored.load(in);
+        } catch (NoSuchFileException e) {
+            return;
+        }
+        for (String address : stored.stringPropertyNames()) {
+            String key = stored.getProperty(address).trim();
+            Signatures.decodePublicKey(key);
+            keys.put(address, key);
+        }
+        System.out.println("Loaded " + keys.size() + " signing keys from " + file);
+    }
+
+    /**
+     * Whether the transaction may debit its sender: signed with the
+     * sender's registered key, or, only while signatures are optional,
+     * unsigned from an address without one. The signature itself must already
+     * have been checked by {@link Transaction#isValid()}.
+     */
+    public boolean authorizes(Transaction transaction) {
+        String key = keys.get(transaction.getSender());
+        if (key == null) return !required;
+        return key.equals(transaction.getPublicKey());
+    }
+
+    /**
+     * Bind a key to an address that has none, whoever asks; for tools that
+     * create their own accounts, where no one else could claim them
+     *
+     * @return false if the address already has a key, or registration is closed
+     * @throws IllegalArgumentException if the key is not a P-256 public key
+     */
+    public boolean register(String address, String publicKey) throws IOException {
+        return register(address, publicKey, candidate -> true);
+    }
+
+    /**
+     * Bind a key to an address that has none and that the claimable check
+     * accepts, checked under the registry's lock
+     *
+     * @return false if the address already has a key or is not claimable, or registration is closed
+     * @throws IllegalArgumentException if the key is not a P-256 public key
+     */
+    public synchronized boolean register(String address, String publicKey, Predicate<String> claimable)
+            throws IOException {
+        Signatures.decodePublicKey(publicKey);
+        if (!registrationOpen || keys.containsKey(address) || !claimable.test(address)) return false;
+        keys.put(address, publicKey);
+        if (file != null) {
+            try {
+                save();
+            } catch (IOException e) {
+                keys.remove(address);
+                throw e;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * The key registered for an address, or null
+     */
+    public String getKey(String address) {
+        return keys.get(address);
+    }
+
+    public int size() {
+        return keys.size();
+    }
+
+    public boolean isRequired() {
+        return required;
+    }
+
+    public boolean isRegistrationOpen() {
+        return registrationOpen;
+    }
+
+    /**
+     * Write every key to a temporary file and move it over the key file, so
+     * a crash leaves either the old file or the new one
+     */
+    private void save() throws IOException {
+        Properties stored = new Properties();
+        stored.putAll(keys);
+        Path directory = file.toAbsolutePath().getParent();
+        Files.createDirectories(directory);
+        Path temporary = Files.createTempFile(directory, file.getFileName().toString(), ".tmp");
+        try (OutputStream out = Files.newOutputStream(temporary)) {
+            stored.store(out, "Signing keys by address");
+        }
+        Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+}
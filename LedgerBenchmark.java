@@ -0,0 +1,586 @@
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.StringReader;
+import java.io.UncheckedIOException;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.math.BigDecimal;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.security.KeyPair;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+/**
+ * Microbenchmarks for the ledger hot paths.
+ *
+ *   java -cp json-20230227.jar:. LedgerBenchmark [name regex]
+ *
+ * Each benchmark and parameter runs in a fresh forked JVM, so one case's
+ * JIT profile and heap do not leak into the next, as warmup iterations
+ * followed by measured ones of a fixed duration. Every result reports
+ * time per operation and what it allocated, per operation and per second,
+ * summed over all threads from HotSpot's per-thread allocation counters
+ * (the source JMH's gc profiler reads), plus collections during
+ * measurement. Results can be written as JSON and compared against an
+ * earlier run, failing with exit status 1 on a regression.
+ */
+public class LedgerBenchmark {
+    private static final int WARMUP = Integer.getInteger("crosspay.bench.warmup", 5);
+    private static final int ITERATIONS = Integer.getInteger("crosspay.bench.iterations", 5);
+    private static final long ITERATION_NANOS = Long.getLong("crosspay.bench.iterationMs", 1000) * 1_000_000;
+    private static final boolean FORK = Boolean.parseBoolean(System.getProperty("crosspay.bench.fork", "true"));
+    private static final int[] SIZES =
+        parseSizes(System.getProperty("crosspay.bench.sizes", "1000,10000,100000,1000000"));
+    private static final String RESULT_PREFIX = "RESULT ";
+    private static final int ACCOUNTS = 1000;
+    private static final String[] ADDRESSES = new String[ACCOUNTS]; // built up front, so operations don't allocate them
+    private static final int SIGNERS = 16; // accounts with signing keys
+    private static KeyPair[] signerKeys;
+
+    static {
+        for (int i = 0; i < ACCOUNTS; i++) {
+            ADDRESSES[i] = "account" + i + "@bench.com";
+        }
+    }
+
+    private static final com.sun.management.ThreadMXBean THREADS =
+        (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+    private static volatile long blackhole; // keeps results alive so the JIT cannot drop the work
+
+    public static void main(String[] args) throws Exception {
+        if (args.length == 3 && "--run".equals(args[0])) {
+            runChild(args[1], Integer.parseInt(args[2]));
+            return;
+        }
+
+        Pattern filter = Pattern.compile(args.length > 0 ? args[0] : ".*");
+        List<JSONObject> results = new ArrayList<>();
+        System.out.printf("%-40s %10s %16s %12s %14s %12s %8s%n",
+                          "Benchmark", "(param)", "ns/op", "+- stddev", "alloc B/op", "alloc MB/s", "GCs");
+        for (Benchmark benchmark : benchmarks()) {
+            if (!filter.matcher(benchmark.name).find()) continue;
+            for (int param : benchmark.params) {
+                JSONObject result = FORK ? fork(benchmark.name, param) : measure(benchmark, param).toJSON();
+                results.add(result);
+                System.out.printf("%-40s %10s %,16.1f %12.1f %,14.1f %,12.1f %8d%n",
+                                  benchmark.name, param < 0 ? "" : Integer.toString(param),
+                                  result.getDouble("nsPerOp"), result.getDouble("nsPerOpStddev"),
+                                  result.getDouble("allocBytesPerOp"), result.getDouble("allocMBPerSecond"),
+                                  result.getLong("gcCount"));
+            }
+        }
+
+        String resultFile = System.getProperty("crosspay.bench.result");
+        if (resultFile != null) {
+            Files.write(Paths.get(resultFile), new JSONArray(results).toString(2).getBytes(StandardCharsets.UTF_8));
+            System.out.println("Results written to " + resultFile);
+        }
+        String baseline = System.getProperty("crosspay.bench.baseline");
+        if (baseline != null && !compare(results, baseline)) {
+            System.exit(1);
+        }
+    }
+
+    /**
+     * The benchmarks; a parameter of -1 means the benchmark takes none
+     */
+    private static List<Benchmark> benchmarks() {
+        List<Benchmark> benchmarks = new ArrayList<>();
+        int[] none = {-1};
+
+        // Hash of a block header with its Merkle root cached, as during mining and validation
+        benchmarks.add(new Benchmark("block.calculateHash", none, 0, param -> {
+            Block block = blockOf(100);
+            int[] nonce = {0};
+            return () -> block.calculateHash(nonce[0]++).length();
+        }));
+        // Hash rebuilt from the transactions, as a full audit does; param is transactions per block
+        benchmarks.add(new Benchmark("block.recalculateHash", new int[] {10, 100, 1000}, 0, param -> {
+            Block block = blockOf(param);
+            return () -> block.recalculateHash().length();
+        }));
+        // Proof-of-work on the shared miner pool; param is difficulty in hex digits
+        benchmarks.add(new Benchmark("block.mineBlock", new int[] {1, 2, 3, 4}, 0, param -> {
+            ParallelMiner miner = new ParallelMiner();
+            String[] previous = {"0"};
+            return () -> {
+                Block block = new Block(previous[0]);
+                block.mineBlock(param, miner);
+                previous[0] = block.getHash();
+                return block.getNonce();
+            };
+        }));
+        // Binary block encoding, as written to the ledger log; param is transactions per block
+        benchmarks.add(new Benchmark("block.encode", new int[] {10, 100, 1000}, 0, param -> {
+            Block block = blockOf(param);
+            return () -> BlockCodec.encode(block, "miner@system.com").length;
+        }));
+        benchmarks.add(new Benchmark("block.decode", new int[] {10, 100, 1000}, 0, param -> {
+            byte[] encoded = BlockCodec.encode(blockOf(param), "miner@system.com");
+            return () -> BlockCodec.decode(ByteBuffer.wrap(encoded), null).getTransactions().size();
+        }));
+        benchmarks.add(new Benchmark("transaction.calculateHash", none, 0, param -> {
+            Transaction transaction = transaction(0, 1);
+            return () -> transaction.calculateHash().length();
+        }));
+        benchmarks.add(new Benchmark("transaction.isValid", none, 0, param -> {
+            Transaction transaction = transaction(0, 1);
+            return () -> transaction.isValid() ? 1 : 0;
+        }));
+        // One ECDSA verification, as on a transaction's first check
+        benchmarks.add(new Benchmark("transaction.verifySignature", none, 0, param -> {
+            Transaction transaction = signedTransaction(0, 1, Signatures.generateKeyPair());
+            return () -> Signatures.verifyUncached(transaction) ? 1 : 0;
+        }));
+        // A signed transaction checked again when its block is validated, answered from the cache
+        benchmarks.add(new Benchmark("transaction.isValidSigned", none, 0, param -> {
+            Transaction transaction = signedTransaction(0, 1, Signatures.generateKeyPair());
+            return () -> transaction.isValid() ? 1 : 0;
+        }));
+        // Bulk ingest of 1024 signed NDJSON records, each verified afresh; param is worker threads
+        benchmarks.add(new Benchmark("batch.ingestSigned", new int[] {1, 2, 4}, 0, param -> new Operation() {
+            final String records = signedRecords(1024);
+            Blockchain blockchain;
+            TransactionBatchProcessor processor;
+
+            @Override
+            public void beforeIteration() {
+                blockchain = fundedBlockchain();
+                blockchain.setKeyRegistry(signingKeys());
+                processor = new TransactionBatchProcessor(blockchain, param, 1024);
+            }
+
+            @Override
+            public long run() throws IOException {
+                Signatures.clearCache();
+                return processor.process(new BufferedReader(new StringReader(records)),
+                                         (position, transaction, error) -> { }).getAccepted();
+            }
+        }));
+        // Build, quote and admit one transaction; the mempool starts empty every iteration
+        benchmarks.add(new Benchmark("blockchain.createTransaction", none, 100_000, param -> new Operation() {
+            Blockchain blockchain;
+            int next;
+
+            @Override
+            public void beforeIteration() {
+                blockchain = fundedBlockchain();
+            }
+
+            @Override
+            public long run() {
+                int i = next++;
+                return blockchain.createTransaction(transaction(i % ACCOUNTS, (i * 7 + 1) % ACCOUNTS)) ? 1 : 0;
+            }
+        }));
+        // Lookups in a chain of param mined transactions
+        benchmarks.add(new Benchmark("blockchain.getTransactionById", SIZES, 0, param -> {
+            Blockchain blockchain = minedBlockchain(param);
+            String[] ids = sampleIds(blockchain, 4096);
+            int[] next = {0};
+            return () -> blockchain.getTransactionById(ids[next[0]++ & (ids.length - 1)]).getAmountMinor();
+        }));
+        benchmarks.add(new Benchmark("blockchain.getTransactionsForAddress", SIZES, 0, param -> {
+            Blockchain blockchain = minedBlockchain(param);
+            int[] next = {0};
+            return () -> blockchain.getTransactionsForAddress(account(next[0]++ % ACCOUNTS)).size();
+        }));
+        // A 10-transaction page from the middle of each address's history, found by seek
+        benchmarks.add(new Benchmark("blockchain.getAddressHistory", SIZES, 0, param -> {
+            Blockchain blockchain = minedBlockchain(param);
+            long from = blockchain.getChain().get(blockchain.getChain().size() / 2).getTimestamp();
+            int[] next = {0};
+            return () -> blockchain.getAddressHistory(account(next[0]++ % ACCOUNTS), from, Long.MAX_VALUE, -1, 10)
+                                   .getTransactions().size();
+        }));
+        benchmarks.add(new Benchmark("server.transactionToJSON", none, 0, param -> {
+            Blockchain blockchain = minedBlockchain(1);
+            Transaction transaction = blockchain.getLatestBlock().getTransactions().get(0);
+            return () -> BlockchainServer.transactionToJSON(transaction).length();
+        }));
+        return benchmarks;
+    }
+
+    // Fixtures
+
+    private static String account(int i) {
+        return ADDRESSES[i];
+    }
+
+    private static Transaction transaction(int sender, int receiver) {
+        return new Transaction(account(sender), account(receiver), new BigDecimal("12.34"), "USD",
+                               "United States", "United Kingdom");
+    }
+
+    private static Transaction signedTransaction(int sender, int receiver, KeyPair keys) {
+        Transaction transaction = transaction(sender, receiver);
+        transaction.sign(keys);
+        return transaction;
+    }
+
+    /**
+     * Key pairs of the first SIGNERS accounts, generated once per JVM
+     */
+    private static synchronized KeyPair[] signerKeys() {
+        if (signerKeys == null) {
+            signerKeys = new KeyPair[SIGNERS];
+            for (int i = 0; i < SIGNERS; i++) {
+                signerKeys[i] = Signatures.generateKeyPair();
+            }
+        }
+        return signerKeys;
+    }
+
+    private static KeyRegistry signingKeys() {
+        KeyRegistry registry = new KeyRegistry();
+        try {
+            for (int i = 0; i < SIGNERS; i++) {
+                registry.register(account(i), Signatures.encodePublicKey(signerKeys()[i].getPublic()));
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e); // in memory, never thrown
+        }
+        return registry;
+    }
+
+    /**
+     * NDJSON of transactions between the signing accounts, each signed by its sender
+     */
+    private static String signedRecords(int count) {
+        StringBuilder records = new StringBuilder();
+        for (int i = 0; i < count; i++) {
+            Transaction transaction = signedTransaction(i % SIGNERS, (i + 1) % SIGNERS, signerKeys()[i % SIGNERS]);
+            JSONObject json = BlockchainServer.transactionToJSON(transaction);
+            records.append(json).append('\n');
+        }
+        return records.toString();
+    }
+
+    private static Block blockOf(int transactions) {
+        Block block = new Block("0");
+        for (int i = 0; i < transactions; i++) {
+            block.addTransaction(transaction(i % ACCOUNTS, (i + 1) % ACCOUNTS));
+        }
+        return block;
+    }
+
+    private static Blockchain fundedBlockchain() {
+        Blockchain blockchain = new Blockchain();
+        blockchain.setKeyRegistry(new KeyRegistry(false)); // Unsigned transfers between the benchmark's accounts
+        for (int i = 0; i < ACCOUNTS; i++) {
+            blockchain.deposit(account(i), new BigDecimal("1000000000"));
+        }
+        return blockchain;
+    }
+
+    private static Blockchain minedBlockchain(int transactions) {
+        Blockchain blockchain = fundedBlockchain();
+        List<Transaction> batch = new ArrayList<>();
+        for (int i = 0; i < transactions; i++) {
+            batch.add(transaction(i % ACCOUNTS, (i * 7 + 1) % ACCOUNTS));
+            if (batch.size() == 5000 || i == transactions - 1) {
+                blockchain.createTransactions(batch);
+                batch.clear();
+                while (blockchain.getMempool().size() > 0) {
+                    blockchain.minePendingTransactions("miner@bench.com");
+                }
+            }
+        }
+        return blockchain;
+    }
+
+    private static String[] sampleIds(Blockchain blockchain, int count) {
+        List<Transaction> mined = new ArrayList<>();
+        for (Block block : blockchain.getChain()) {
+            mined.addAll(block.getTransactions());
+        }
+        String[] ids = new String[count]; // a power of two, so the lookup loop can mask
+        for (int i = 0; i < count; i++) {
+            ids[i] = mined.get((int) ((i * 2654435761L) % mined.size())).getTransactionId();
+        }
+        return ids;
+    }
+
+    // Measurement
+
+    private static JSONObject fork(String name, int param) throws IOException, InterruptedException {
+        List<String> command = new ArrayList<>();
+        command.add(Paths.get(System.getProperty("java.home"), "bin", "java").toString());
+        command.addAll(ManagementFactory.getRuntimeMXBean().getInputArguments());
+        command.add("-cp");
+        command.add(System.getProperty("java.class.path"));
+        command.add(LedgerBenchmark.class.getName());
+        command.add("--run");
+        command.add(name);
+        command.add(Integer.toString(param));
+
+        Process process = new ProcessBuilder(command).redirectErrorStream(true).start();
+        JSONObject result = null;
+        StringBuilder output = new StringBuilder();
+        try (BufferedReader in = new BufferedReader(new InputStreamReader(process.getInputStream(),
+                                                                         StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = in.readLine()) != null) {
+                if (line.startsWith(RESULT_PREFIX)) {
+                    result = new JSONObject(line.substring(RESULT_PREFIX.length()));
+                } else {
+                    output.append(line).append(System.lineSeparator());
+                }
+            }
+        }
+        if (process.waitFor() != 0 || result == null) {
+            throw new IllegalStateException("Benchmark " + name + " (" + param + ") failed:\n" + output);
+        }
+        return result;
+    }
+
+    private static void runChild(String name, int param) throws Exception {
+        for (Benchmark benchmark : benchmarks()) {
+            if (benchmark.name.equals(name)) {
+                System.out.println(RESULT_PREFIX + measure(benchmark, param).toJSON());
+                return;
+            }
+        }
+        throw new IllegalArgumentException("Unknown benchmark " + name);
+    }
+
+    /**
+     * Set up, warm up and measure one benchmark; the code under test's own
+     * console output is discarded while it runs
+     */
+    private static Result measure(Benchmark benchmark, int param) throws Exception {
+        PrintStream console = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+        try {
+            Operation operation = benchmark.fixture.setUp(param);
+            for (int i = 0; i < WARMUP; i++) {
+                runIteration(operation, benchmark.maxOpsPerIteration);
+            }
+            System.gc();
+
+            Result result = new Result(benchmark.name, param);
+            for (int i = 0; i < ITERATIONS; i++) {
+                result.add(runIteration(operation, benchmark.maxOpsPerIteration));
+            }
+            return result;
+        } finally {
+            System.setOut(console);
+        }
+    }
+
+    /**
+     * Run the operation for one iteration's duration, or until maxOps, in
+     * batches that grow until timing them costs nothing next to the work
+     */
+    private static Iteration runIteration(Operation operation, int maxOps) throws Exception {
+        operation.beforeIteration();
+        long limit = maxOps > 0 ? maxOps : Long.MAX_VALUE;
+        long gcCount = gcCount();
+        long gcMillis = gcMillis();
+        long allocated = allocatedBytes();
+        long start = System.nanoTime();
+
+        long ops = 0;
+        long sink = 0;
+        long batch = 1;
+        long elapsed;
+        do {
+            long batchStart = System.nanoTime();
+            long count = Math.min(batch, limit - ops);
+            for (long i = 0; i < count; i++) {
+                sink += operation.run();
+            }
+            ops += count;
+            long now = System.nanoTime();
+            elapsed = now - start;
+            if (now - batchStart < 100_000) batch *= 2;
+        } while (elapsed < ITERATION_NANOS && ops < limit);
+
+        Iteration iteration = new Iteration();
+        iteration.ops = ops;
+        iteration.nanos = elapsed;
+        iteration.allocatedBytes = allocatedBytes() - allocated;
+        iteration.gcCount = gcCount() - gcCount;
+        iteration.gcMillis = gcMillis() - gcMillis;
+        blackhole ^= sink;
+        return iteration;
+    }
+
+    /**
+     * Bytes allocated so far by all live threads, including pool workers such as the miner's
+     */
+    private static long allocatedBytes() {
+        long total = 0;
+        for (long bytes : THREADS.getThreadAllocatedBytes(THREADS.getAllThreadIds())) {
+            if (bytes > 0) total += bytes;
+        }
+        return total;
+    }
+
+    private static long gcCount() {
+        long count = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            count += Math.max(0, gc.getCollectionCount());
+        }
+        return count;
+    }
+
+    private static long gcMillis() {
+        long millis = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            millis += Math.max(0, gc.getCollectionTime());
+        }
+        return millis;
+    }
+
+    /**
+     * Compare results with a baseline file; slower by more than the
+     * threshold, or allocating more, is a regression
+     *
+     * @return true if nothing regressed
+     */
+    private static boolean compare(List<JSONObject> results, String baselineFile) throws IOException {
+        double threshold = Double.parseDouble(System.getProperty("crosspay.bench.threshold", "0.10"));
+        JSONArray baseline = new JSONArray(new String(Files.readAllBytes(Paths.get(baselineFile)),
+                                                      StandardCharsets.UTF_8));
+        Map<String, JSONObject> byKey = new HashMap<>();
+        for (int i = 0; i < baseline.length(); i++) {
+            JSONObject entry = baseline.getJSONObject(i);
+            byKey.put(entry.getString("benchmark") + "/" + entry.getInt("param"), entry);
+        }
+
+        boolean passed = true;
+        for (JSONObject result : results) {
+            String key = result.getString("benchmark") + "/" + result.getInt("param");
+            JSONObject base = byKey.get(key);
+            if (base == null) continue;
+            double time = result.getDouble("nsPerOp") / base.getDouble("nsPerOp") - 1;
+            double baseAlloc = base.getDouble("allocBytesPerOp");
+            double alloc = result.getDouble("allocBytesPerOp");
+            if (time > threshold) {
+                System.out.printf("REGRESSION %s: %.1f%% slower (%.1f -> %.1f ns/op)%n",
+                                  key, time * 100, base.getDouble("nsPerOp"), result.getDouble("nsPerOp"));
+                passed = false;
+            }
+            if (alloc > baseAlloc * (1 + threshold) + 16) { // a few bytes of slack for counter noise
+                System.out.printf("REGRESSION %s: allocates %.1f B/op, was %.1f%n", key, alloc, baseAlloc);
+                passed = false;
+            }
+        }
+        System.out.println(passed ? "No regressions against " + baselineFile : "Regressions against " + baselineFile);
+        return passed;
+    }
+
+    private static int[] parseSizes(String sizes) {
+        String[] parts = sizes.split(",");
+        int[] parsed = new int[parts.length];
+        for (int i = 0; i < parts.length; i++) {
+            parsed[i] = Integer.parseInt(parts[i].trim());
+        }
+        return parsed;
+    }
+
+    /**
+     * One invocation of the code under test, returning something derived
+     * from its result so the work cannot be optimized away
+     */
+    interface Operation {
+        long run() throws Exception;
+
+        /**
+         * Reset state before each iteration, outside the timed region
+         */
+        default void beforeIteration() {
+        }
+    }
+
+    interface Fixture {
+        Operation setUp(int param) throws Exception;
+    }
+
+    private static final class Benchmark {
+        final String name;
+        final int[] params;
+        final int maxOpsPerIteration; // 0 for no limit
+        final Fixture fixture;
+
+        Benchmark(String name, int[] params, int maxOpsPerIteration, Fixture fixture) {
+            this.name = name;
+            this.params = params;
+            this.maxOpsPerIteration = maxOpsPerIteration;
+            this.fixture = fixture;
+        }
+    }
+
+    private static final class Iteration {
+        long ops;
+        long nanos;
+        long allocatedBytes;
+        long gcCount;
+        long gcMillis;
+    }
+
+    private static final class Result {
+        final String name;
+        final int param;
+        final List<Iteration> iterations = new ArrayList<>();
+
+        Result(String name, int param) {
+            this.name = name;
+            this.param = param;
+        }
+
+        void add(Iteration iteration) {
+            iterations.add(iteration);
+        }
+
+        JSONObject toJSON() {
+            double mean = 0;
+            long ops = 0;
+            long nanos = 0;
+            long allocated = 0;
+            long gcCount = 0;
+            long gcMillis = 0;
+            for (Iteration iteration : iterations) {
+                mean += (double) iteration.nanos / iteration.ops;
+                ops += iteration.ops;
+                nanos += iteration.nanos;
+                allocated += iteration.allocatedBytes;
+                gcCount += iteration.gcCount;
+                gcMillis += iteration.gcMillis;
+            }
+            mean /= iterations.size();
+            double variance = 0;
+            for (Iteration iteration : iterations) {
+                double deviation = (double) iteration.nanos / iteration.ops - mean;
+                variance += deviation * deviation;
+            }
+            double stddev = iterations.size() > 1 ? Math.sqrt(variance / (iterations.size() - 1)) : 0;
+
+            JSONObject json = new JSONObject();
+            json.put("benchmark", name);
+            json.put("param", param);
+            json.put("iterations", iterations.size());
+            json.put("ops", ops);
+            json.put("nsPerOp", mean);
+            json.put("nsPerOpStddev", stddev);
+            json.put("opsPerSecond", ops * 1e9 / nanos);
+            json.put("allocBytesPerOp", (double) allocated / ops);
+            json.put("allocMBPerSecond", allocated * 1e9 / nanos / (1024 * 1024));
+            json.put("gcCount", gcCount);
+            json.put("gcMillis", gcMillis);
+            return json;
+        }
+    }
+}
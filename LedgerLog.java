@@ -0,0 +1,431 @@
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.math.BigDecimal;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.LongConsumer;
+import java.util.zip.CRC32;
+
+/**
+ * Durable append-only ledger log.
+ *
+ * Every mined block and every deposit is appended as a checksummed record
+ * to a segmented log (ledger-00000000.log, ledger-00000001.log, ...).
+ * A record is [int length][int crc32][byte type][payload], where length and
+ * crc cover type + payload.
+ *
+ * Appends are group-committed: a flusher thread fsyncs whatever has been
+ * written since the last flush, and in SYNC mode each appender waits until
+ * a flush covers its record, so concurrent appenders share one fsync.
+ * Replay maps each segment read-only and truncates a torn or corrupt tail
+ * of the last segment, which is what a crash mid-append leaves behind.
+ */
+public class LedgerLog implements Closeable {
+    public enum Durability { SYNC, ASYNC }
+
+    public static final byte BLOCK = 1;     // block without FX quotes, from before multi-currency balances
+    public static final byte DEPOSIT = 2;
+    public static final byte FX_BLOCK = 3;  // block whose transactions carry their funding currency and quote
+    public static final byte CODEC_BLOCK = 4; // block in the versioned BlockCodec encoding
+
+    private static final int HEADER_SIZE = 8;
+    private static final String PREFIX = "ledger-";
+    private static final String SUFFIX = ".log";
+
+    private final Path directory;
+    private final long segmentBytes;
+    private final Durability durability;
+    private final long flushIntervalMillis;
+    private final Object flushLock = new Object();
+    private final Thread flusher;
+
+    private FileChannel channel;
+    private int segment;
+    private long segmentStart;   // logical position of the current segment's first byte
+    private long written;        // logical position after the last appended record
+    private long flushed;        // logical position covered by the last fsync
+    private boolean closed;
+
+    public LedgerLog(Path directory) throws IOException {
+        this(directory,
+             Long.getLong("crosspay.log.segmentBytes", 64L * 1024 * 1024),
+             Durability.valueOf(System.getProperty("crosspay.log.durability", "sync").toUpperCase()),
+             Long.getLong("crosspay.log.flushIntervalMs", 5));
+    }
+
+    public LedgerLog(Path directory, long segmentBytes, Durability durability, long flushIntervalMillis)
+            throws IOException {
+        this.directory = directory;
+        this.segmentBytes = segmentBytes;
+        this.durability = durability;
+        this.flushIntervalMillis = flushIntervalMillis;
+        Files.createDirectories(directory);
+
+        this.flusher = new Thread(this::flushLoop, "ledger-log-flusher");
+        this.flusher.setDaemon(true);
+    }
+
+    /**
+     * Replay every valid record in order, truncate a torn tail, and open the log for appends
+     */
+    public void replay(RecordVisitor visitor) throws IOException {
+        replay(visitor, 0);
+    }
+
+    /**
+     * Replay the records starting at a logical position (the start of a
+     * record, e.g. one saved with a snapshot); segments wholly before it are
+     * not read at all. Until the first append the log may be replayed again.
+     */
+    public void replay(RecordVisitor visitor, long fromPosition) throws IOException {
+        synchronized (flushLock) {
+            if (channel != null) {
+                channel.close();
+                channel = null;
+            }
+        }
+        List<Path> segments = listSegments();
+        long position = 0;
+
+        for (int i = 0; i < segments.size(); i++) {
+            Path path = segments.get(i);
+            boolean last = i == segments.size() - 1;
+            try (FileChannel in = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                long size = in.size();
+                if (!last && position + size <= fromPosition) {
+                    position += size;
+                    continue;
+                }
+
+                long skip = Math.max(0, Math.min(fromPosition - position, size));
+                long valid = size == 0 ? 0 :
+                    replaySegment(in.map(FileChannel.MapMode.READ_ONLY, 0, size), (int) skip, position, visitor);
+                if (valid < size) {
+                    if (!last) {
+                        throw new IOException("Corrupt record in sealed segment " + path + " at offset " + valid);
+                    }
+                    System.out.println("Truncating torn tail of " + path + " at offset " + valid);
+                    in.truncate(valid);
+                    in.force(true);
+                }
+                if (last) {
+                    segment = segmentNumber(path);
+                    segmentStart = position;
+                }
+                position += valid;
+            }
+        }
+
+        if (segments.isEmpty()) {
+            segment = 0;
+            segmentStart = 0;
+        }
+        if (position < fromPosition) {
+            throw new IOException("Ledger log ends at " + position + ", before position " + fromPosition);
+        }
+        synchronized (flushLock) {
+            openSegment(segment);
+            written = position;
+            flushed = position;
+        }
+        if (!flusher.isAlive()) {
+            flusher.start();
+        }
+    }
+
+    private static long replaySegment(MappedByteBuffer buffer, int skip, long segmentStart,
+                                      RecordVisitor visitor) throws IOException {
+        CRC32 crc = new CRC32();
+        buffer.position(skip);
+        while (buffer.remaining() >= HEADER_SIZE) {
+            int start = buffer.position();
+            int length = buffer.getInt();
+            int checksum = buffer.getInt();
+            if (length < 1 || length > buffer.remaining()) {
+                return start;
+            }
+
+            ByteBuffer body = buffer.slice();
+            body.limit(length);
+            crc.reset();
+            crc.update(body.duplicate());
+            if ((int) crc.getValue() != checksum) {
+                return start;
+            }
+
+            byte type = body.get();
+            visitor.visit(segmentStart + start, type, body);
+            buffer.position(start + HEADER_SIZE + length);
+        }
+        return buffer.position();
+    }
+
+    /**
+     * Append a record and, in SYNC mode, wait until it is on disk
+     */
+    public void append(byte type, byte[] payload) throws IOException {
+        append(type, payload, null);
+    }
+
+    /**
+     * Append a record, calling written with the record's end position while
+     * the log is still locked, so callbacks run in log order, then in SYNC
+     * mode wait until it is on disk
+     */
+    public void append(byte type, byte[] payload, LongConsumer written) throws IOException {
+        awaitDurable(write(type, payload, written));
+    }
+
+    /**
+     * Write a record without waiting for it to reach disk, so a caller can
+     * write several and wait once for the last with {@link #awaitDurable};
+     * callback is called as written is by {@link #append(byte, byte[], LongConsumer)}
+     *
+     * @return the record's end position
+     */
+    public long write(byte type, byte[] payload, LongConsumer callback) throws IOException {
+        CRC32 crc = new CRC32();
+        crc.update(type);
+        crc.update(payload);
+
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE + 1);
+        header.putInt(payload.length + 1).putInt((int) crc.getValue()).put(type).flip();
+        ByteBuffer body = ByteBuffer.wrap(payload);
+
+        synchronized (flushLock) {
+            if (closed) throw new IOException("Ledger log is closed");
+            if (written - segmentStart > 0 && written - segmentStart + header.remaining() + payload.length > segmentBytes) {
+                rollSegment();
+            }
+            while (header.hasRemaining() || body.hasRemaining()) {
+                channel.write(new ByteBuffer[] {header, body});
+            }
+            written += HEADER_SIZE + 1 + payload.length;
+            if (callback != null) callback.accept(written);
+            flushLock.notifyAll();
+            return written;
+        }
+    }
+
+    /**
+     * In SYNC mode, wait until everything before position is on disk
+     */
+    public void awaitDurable(long position) throws IOException {
+        if (durability != Durability.SYNC) return;
+        synchronized (flushLock) {
+            while (flushed < position) {
+                if (closed) throw new IOException("Ledger log closed before record was flushed");
+                try {
+                    flushLock.wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("Interrupted waiting for ledger flush", e);
+                }
+            }
+        }
+    }
+
+    private void flushLoop() {
+        while (true) {
+            FileChannel target;
+            long targetPosition;
+            synchronized (flushLock) {
+                while (!closed && flushed == written) {
+                    try {
+                        flushLock.wait();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+                if (closed) return;
+                target = channel;
+                targetPosition = written;
+            }
+
+            try {
+                if (durability == Durability.ASYNC) {
+                    Thread.sleep(flushIntervalMillis);
+                }
+                target.force(false);
+            } catch (InterruptedException e) {
+                return;
+            } catch (IOException e) {
+                if (!target.isOpen()) continue; // segment rolled, which already forced it
+                throw new UncheckedIOException(e);
+            }
+
+            synchronized (flushLock) {
+                if (target == channel && targetPosition > flushed) {
+                    flushed = targetPosition;
+                }
+                flushLock.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Seal the current segment and start the next one; call with flushLock held
+     */
+    private void rollSegment() throws IOException {
+        channel.force(false);
+        channel.close();
+        flushed = written;
+        segmentStart = written;
+        openSegment(segment + 1);
+    }
+
+    private void openSegment(int number) throws IOException {
+        segment = number;
+        channel = FileChannel.open(directory.resolve(segmentName(number)),
+                                   StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        channel.position(channel.size());
+    }
+
+    private List<Path> listSegments() {
+        List<Path> segments = new ArrayList<>();
+        File[] files = directory.toFile().listFiles((dir, name) -> name.startsWith(PREFIX) && name.endsWith(SUFFIX));
+        if (files != null) {
+            for (File file : files) segments.add(file.toPath());
+        }
+        segments.sort((a, b) -> Integer.compare(segmentNumber(a), segmentNumber(b)));
+        return segments;
+    }
+
+    private static String segmentName(int number) {
+        return String.format("%s%08d%s", PREFIX, number, SUFFIX);
+    }
+
+    private static int segmentNumber(Path path) {
+        String name = path.getFileName().toString();
+        return Integer.parseInt(name.substring(PREFIX.length(), name.length() - SUFFIX.length()));
+    }
+
+    /**
+     * Logical position after the last appended record, i.e. where the next record will start
+     */
+    public long getWrittenBytes() {
+        synchronized (flushLock) {
+            return written;
+        }
+    }
+
+    /**
+     * Logical position covered by the last fsync; records ending at or before it survive a crash
+     */
+    public long getFlushedBytes() {
+        synchronized (flushLock) {
+            return flushed;
+        }
+    }
+
+    public long getFlushIntervalMillis() {
+        return flushIntervalMillis;
+    }
+
+    @Override
+    public void close() throws IOException {
+        synchronized (flushLock) {
+            if (closed) return;
+            if (channel != null) {
+                channel.force(false);
+                flushed = written;
+                channel.close();
+            }
+            closed = true;
+            flushLock.notifyAll();
+        }
+        flusher.interrupt();
+    }
+
+    /**
+     * Callback for each replayed record with its logical start position;
+     * the payload buffer is positioned after the type byte
+     */
+    public interface RecordVisitor {
+        void visit(long position, byte type, ByteBuffer payload) throws IOException;
+    }
+
+    // Record encodings
+
+    /**
+     * Decode a BLOCK or FX_BLOCK record, written before blocks were stored
+     * with {@link BlockCodec}; the miner address is returned through
+     * minerAddress[0]. Every transaction in a mined block is COMPLETED, so
+     * status is not stored. A BLOCK record (quoted false) predates quotes,
+     * and its transactions were funded in the base currency.
+     */
+    public static Block decodeBlock(ByteBuffer in, String[] minerAddress, boolean quoted) {
+        minerAddress[0] = readString(in);
+        String previousHash = readString(in);
+        long timestamp = in.getLong();
+        int nonce = in.getInt();
+        String hash = readString(in);
+        int count = in.getInt();
+        List<Transaction> transactions = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            String transactionId = readString(in);
+            String sender = readString(in);
+            String receiver = readString(in);
+            long amount = in.getLong();
+            String currency = readString(in);
+            String senderCountry = readString(in);
+            String receiverCountry = readString(in);
+            long txTimestamp = in.getLong();
+            String txHash = readString(in);
+            String fundingCurrency = quoted ? readString(in) : Money.BASE_CURRENCY;
+            Transaction transaction = new Transaction(transactionId, sender, receiver, amount, currency,
+                                                      fundingCurrency, senderCountry, receiverCountry, txTimestamp,
+                                                      txHash, Transaction.HASH_VERSION_CONCATENATED,
+                                                      Transaction.TransactionStatus.COMPLETED);
+            if (quoted) {
+                transaction.setQuote(new FxEngine.Quote(fundingCurrency, in.getLong(), in.getLong(), currency,
+                                                        in.getLong(), in.getLong(), new BigDecimal(readString(in))));
+            }
+            transactions.add(transaction);
+        }
+        return new Block(previousHash, timestamp, nonce, hash, transactions, MerkleTree.VERSION_PAIRED);
+    }
+
+    public static byte[] encodeDeposit(String address, String currency, long minor) {
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+            DataOutputStream out = new DataOutputStream(bytes);
+            writeString(out, address);
+            writeString(out, currency);
+            out.writeLong(minor);
+            out.flush();
+            return bytes.toByteArray();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        if (value == null) {
+            out.writeInt(-1);
+            return;
+        }
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    public static String readString(ByteBuffer in) {
+        int length = in.getInt();
+        if (length < 0) return null;
+        byte[] bytes = new byte[length];
+        in.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,111 @@
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Mining, mempool and block metrics of one blockchain.
+ *
+ * Every counter and histogram is created up front, one per rejection
+ * reason, so recording is an increment or a histogram record with no
+ * lookup by name. Mempool depth, size and age and the chain height are
+ * gauges read from the blockchain when the metrics are exported.
+ */
+public class LedgerMetrics {
+    private final MetricsRegistry registry;
+    private final MetricsRegistry.Counter admitted;
+    private final Map<Mempool.Admission, MetricsRegistry.Counter> rejected = new EnumMap<>(Mempool.Admission.class);
+    private final MetricsRegistry.Counter invalid;
+    private final MetricsRegistry.Counter evicted;
+    private final MetricsRegistry.Counter failed;
+    private final MetricsRegistry.Counter blocks;
+    private final MetricsRegistry.Counter hashes;
+    private final LatencyHistogram miningMicros;
+    private final LatencyHistogram blockTransactions;
+    private final LatencyHistogram blockBytes;
+    private final LatencyHistogram mempoolWaitMillis;
+    private volatile double hashRate;
+
+    public LedgerMetrics(Blockchain blockchain) {
+        this(new MetricsRegistry(), blockchain);
+    }
+
+    public LedgerMetrics(MetricsRegistry registry, Blockchain blockchain) {
+        this.registry = registry;
+        admitted = registry.counter("crosspay_transactions_admitted_total", "Transactions admitted to the mempool");
+        for (Mempool.Admission reason : Mempool.Admission.values()) {
+            if (reason != Mempool.Admission.ADMITTED) {
+                rejected.put(reason, registry.counter("crosspay_transactions_rejected_total",
+                    "Transactions turned away at admission, by reason", "reason", reason.name().toLowerCase()));
+            }
+        }
+        invalid = registry.counter("crosspay_transactions_rejected_total",
+            "Transactions turned away at admission, by reason", "reason", "invalid");
+        evicted = registry.counter("crosspay_transactions_evicted_total",
+            "Pending transactions pushed out of the mempool by better-paying ones");
+        failed = registry.counter("crosspay_transactions_failed_total",
+            "Pending transactions dropped at block assembly because the sender could no longer pay");
+
+        blocks = registry.counter("crosspay_blocks_mined_total", "Blocks mined by this node");
+        hashes = registry.counter("crosspay_mining_hashes_total", "Proof-of-work hashes computed for mined blocks");
+        registry.gauge("crosspay_mining_hash_rate", "Hashes per second of the last mined block", () -> hashRate);
+        miningMicros = registry.summary("crosspay_block_mining_seconds", "Proof-of-work time per block", 1_000_000);
+        blockTransactions = registry.summary("crosspay_block_transactions", "Transactions per mined block", 1);
+        blockBytes = registry.summary("crosspay_block_bytes", "Encoded size of each mined block", 1);
+        registry.gauge("crosspay_chain_height", "Height of the chain tip", () -> blockchain.getChain().size() - 1);
+
+        registry.gauge("crosspay_mempool_transactions", "Transactions waiting in the mempool",
+            () -> blockchain.getMempool().size());
+        registry.gauge("crosspay_mempool_bytes", "Estimated memory held by the mempool",
+            () -> blockchain.getMempool().getBytes());
+        registry.gauge("crosspay_mempool_oldest_age_seconds", "Age of the earliest admitted pending transaction",
+            () -> {
+                long oldest = blockchain.getMempool().getOldestAdmittedAt();
+                return oldest == 0 ? 0 : Math.max(0, System.currentTimeMillis() - oldest) / 1000.0;
+            });
+        mempoolWaitMillis = registry.summary("crosspay_mempool_wait_seconds",
+            "Time from admission until a transaction is taken into a block", 1000);
+    }
+
+    public MetricsRegistry getRegistry() {
+        return registry;
+    }
+
+    void admission(Mempool.Admission admission) {
+        if (admission == Mempool.Admission.ADMITTED) {
+            admitted.increment();
+        } else {
+            rejected.get(admission).increment();
+        }
+    }
+
+    void invalid() {
+        invalid.increment();
+    }
+
+    void evicted(int count) {
+        evicted.add(count);
+    }
+
+    void failed(int count) {
+        failed.add(count);
+    }
+
+    /**
+     * Record how long each transaction waited before block assembly took it
+     */
+    void selected(List<Transaction> transactions) {
+        long now = System.currentTimeMillis();
+        for (int i = 0; i < transactions.size(); i++) {
+            mempoolWaitMillis.record(Math.max(0, now - transactions.get(i).getAdmittedAt()));
+        }
+    }
+
+    void blockMined(ParallelMiner.MiningResult result, int transactions, int encodedBytes) {
+        blocks.increment();
+        hashes.add(result.getHashes());
+        hashRate = result.getHashesPerSecond();
+        miningMicros.record(result.getElapsedNanos() / 1000);
+        blockTransactions.record(transactions);
+        blockBytes.record(encodedBytes);
+    }
+}
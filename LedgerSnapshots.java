@@ -0,0 +1,282 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * Checkpoints of the full account state, tied to a block height and hash
+ * and to the ledger log position right after that block.
+ *
+ * File layout (snapshot-<height>.bin):
+ *   int magic, int version, long height, string block hash, long log position,
+ *   int currency count, string currencies..., int entry count,
+ *   entries of (string address, unsigned short currency index, long minor units),
+ *   long CRC32 of everything before it.
+ * A string is an int byte length and its UTF-8 bytes, as in the ledger log,
+ * so addresses of any length can be written. Version 1 files, whose strings
+ * are modified UTF-8 limited to 64 KB, are still read.
+ *
+ * Files are written by a background thread to a temporary name, fsynced and
+ * atomically renamed, so a crash never leaves a half-written checkpoint
+ * under a valid name. Only the newest few checkpoints are kept.
+ */
+public class LedgerSnapshots {
+    private static final int MAGIC = 0x43505353; // "CPSS"
+    private static final int VERSION = 2;
+    private static final int VERSION_MODIFIED_UTF = 1;
+    private static final String PREFIX = "snapshot-";
+    private static final String SUFFIX = ".bin";
+    private static final int KEEP = 2;
+
+    private final Path directory;
+    private final int intervalBlocks;
+    private final ExecutorService writer;
+
+    public LedgerSnapshots(Path directory) throws IOException {
+        this(directory, Integer.getInteger("crosspay.snapshot.interval", 100));
+    }
+
+    public LedgerSnapshots(Path directory, int intervalBlocks) throws IOException {
+        this.directory = directory;
+        this.intervalBlocks = intervalBlocks;
+        Files.createDirectories(directory);
+        this.writer = Executors.newSingleThreadExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "snapshot-writer");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Whether a checkpoint should be taken after the block at this height
+     */
+    public boolean isDue(int height) {
+        return intervalBlocks > 0 && height > 0 && height % intervalBlocks == 0;
+    }
+
+    /**
+     * Capture balances into a snapshot; the caller must keep writers out while this runs
+     */
+    public static Snapshot capture(int height, String blockHash, long logPosition, AccountStore balances) {
+        Snapshot snapshot = new Snapshot(height, blockHash, logPosition);
+        balances.forEachBalance(snapshot::add);
+        return snapshot;
+    }
+
+    /**
+     * Write the snapshot on the background thread
+     */
+    public void writeAsync(Snapshot snapshot) {
+        writer.execute(() -> {
+            try {
+                write(snapshot);
+            } catch (IOException e) {
+                System.out.println("Failed to write snapshot at height " + snapshot.height + ": " + e.getMessage());
+            }
+        });
+    }
+
+    void write(Snapshot snapshot) throws IOException {
+        Path target = directory.resolve(String.format("%s%012d%s", PREFIX, snapshot.height, SUFFIX));
+        Path temp = directory.resolve(target.getFileName() + ".tmp");
+
+        try (FileOutputStream file = new FileOutputStream(temp.toFile())) {
+            CRC32 crc = new CRC32();
+            DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(new CheckedOutputStream(file, crc), 1 << 16));
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(snapshot.height);
+            writeString(out, snapshot.blockHash);
+            out.writeLong(snapshot.logPosition);
+
+            out.writeInt(snapshot.currencies.size());
+            for (String currency : snapshot.currencies) {
+                writeString(out, currency);
+            }
+            out.writeInt(snapshot.size);
+            for (int i = 0; i < snapshot.size; i++) {
+                writeString(out, snapshot.addresses[i]);
+                out.writeShort(snapshot.currencyIndexes[i]);
+                out.writeLong(snapshot.balances[i]);
+            }
+            out.flush();
+            new DataOutputStream(file).writeLong(crc.getValue());
+            file.getFD().sync();
+        }
+        Files.move(temp, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        System.out.println("Snapshot written at height " + snapshot.height);
+        prune();
+    }
+
+    /**
+     * Newest snapshot that passes its checksum, or null if there is none
+     */
+    public Snapshot loadLatest() {
+        List<Path> files = list();
+        for (int i = files.size() - 1; i >= 0; i--) {
+            try {
+                return read(files.get(i));
+            } catch (IOException e) {
+                System.out.println("Skipping unreadable snapshot " + files.get(i) + ": " + e.getMessage());
+            }
+        }
+        return null;
+    }
+
+    private static Snapshot read(Path path) throws IOException {
+        // Verify the trailing checksum over the mapped file before parsing
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            long length = channel.size();
+            if (length < 8) throw new IOException("Truncated snapshot");
+            MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, length);
+            CRC32 crc = new CRC32();
+            ByteBuffer body = mapped.duplicate();
+            body.limit((int) (length - 8));
+            crc.update(body);
+            if (mapped.getLong((int) (length - 8)) != crc.getValue()) {
+                throw new IOException("Checksum mismatch");
+            }
+        }
+
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(path), 1 << 16))) {
+            if (in.readInt() != MAGIC) {
+                throw new IOException("Not a snapshot file");
+            }
+            int version = in.readInt();
+            if (version != VERSION && version != VERSION_MODIFIED_UTF) {
+                throw new IOException("Unsupported snapshot version " + version);
+            }
+            int height = (int) in.readLong();
+            Snapshot snapshot = new Snapshot(height, readString(in, version), in.readLong());
+            int currencyCount = in.readInt();
+            for (int i = 0; i < currencyCount; i++) {
+                snapshot.currencies.add(readString(in, version));
+            }
+            int entries = in.readInt();
+            for (int i = 0; i < entries; i++) {
+                String address = readString(in, version);
+                String currency = snapshot.currencies.get(in.readUnsignedShort());
+                snapshot.add(address, currency, in.readLong());
+            }
+            return snapshot;
+        }
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(DataInputStream in, int version) throws IOException {
+        if (version == VERSION_MODIFIED_UTF) return in.readUTF();
+        int length = in.readInt();
+        if (length < 0) throw new IOException("Negative string length " + length);
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private void prune() {
+        List<Path> files = list();
+        for (int i = 0; i < files.size() - KEEP; i++) {
+            try {
+                Files.deleteIfExists(files.get(i));
+            } catch (IOException e) {
+                System.out.println("Failed to delete old snapshot " + files.get(i));
+            }
+        }
+    }
+
+    private List<Path> list() {
+        List<Path> files = new ArrayList<>();
+        File[] matches = directory.toFile().listFiles((dir, name) -> name.startsWith(PREFIX) && name.endsWith(SUFFIX));
+        if (matches != null) {
+            for (File file : matches) files.add(file.toPath());
+        }
+        files.sort(null); // zero-padded heights sort by name
+        return files;
+    }
+
+    /**
+     * Account state at a block height
+     */
+    public static class Snapshot {
+        private final int height;
+        private final String blockHash;
+        private final long logPosition;
+        private final List<String> currencies = new ArrayList<>();
+        private String[] addresses = new String[1024];
+        private short[] currencyIndexes = new short[1024];
+        private long[] balances = new long[1024];
+        private int size;
+
+        Snapshot(int height, String blockHash, long logPosition) {
+            this.height = height;
+            this.blockHash = blockHash;
+            this.logPosition = logPosition;
+        }
+
+        void add(String address, String currency, long minor) {
+            int currencyIndex = currencies.indexOf(currency);
+            if (currencyIndex < 0) {
+                currencyIndex = currencies.size();
+                currencies.add(currency);
+            }
+            if (size == addresses.length) {
+                int capacity = size * 2;
+                addresses = Arrays.copyOf(addresses, capacity);
+                currencyIndexes = Arrays.copyOf(currencyIndexes, capacity);
+                balances = Arrays.copyOf(balances, capacity);
+            }
+            addresses[size] = address;
+            currencyIndexes[size] = (short) currencyIndex;
+            balances[size] = minor;
+            size++;
+        }
+
+        /**
+         * Load the balances into an empty account store
+         */
+        public void restore(AccountStore store) {
+            for (int i = 0; i < size; i++) {
+                store.credit(addresses[i], currencies.get(currencyIndexes[i]), balances[i]);
+            }
+        }
+
+        public int getHeight() {
+            return height;
+        }
+
+        public String getBlockHash() {
+            return blockHash;
+        }
+
+        public long getLogPosition() {
+            return logPosition;
+        }
+
+        public int size() {
+            return size;
+        }
+    }
+}
@@ -0,0 +1,218 @@
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Multi-threaded stress test of balance conservation.
+ *
+ *   java -cp json-20230227.jar:. LedgerStressTest
+ *
+ * Many threads move money among a few accounts at once, so most
+ * operations contend for the same accounts and lock stripes. The accounts
+ * phase transfers straight on an {@link AccountStore}, as a check-and-debit
+ * followed by a credit. The ledger phase submits payments to a Blockchain,
+ * some of them again later, while deposits land and miners assemble, mine
+ * and give up blocks concurrently. A resubmitted payment is refused while
+ * pending, in a block being mined, or mined; only one that failed, and so
+ * was never paid, is admitted again. After each phase the sum of all balances
+ * must equal what was deposited, plus the ledger's reward for each mined
+ * transaction; no balance may be negative, and no transaction may be in
+ * the chain twice. Exits with status 1 if any check fails.
+ */
+public class LedgerStressTest {
+    private static final int THREADS = Integer.getInteger("crosspay.stress.threads", 8);
+    private static final int MINERS = Integer.getInteger("crosspay.stress.miners", 2);
+    private static final int ACCOUNTS = Integer.getInteger("crosspay.stress.accounts", 16);
+    private static final long DURATION_NANOS = Long.getLong("crosspay.stress.seconds", 5) * 1_000_000_000L;
+    private static final long OPENING_BALANCE = 100_000; // minor units, 1000.00 USD
+    private static final String CURRENCY = Money.BASE_CURRENCY;
+    private static final String MINER = "miner@stress.com";
+
+    public static void main(String[] args) throws Exception {
+        PrintStream console = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream())); // the ledger logs every rejection and block
+        boolean conserved;
+        try {
+            conserved = accountsPhase(console) & ledgerPhase(console);
+        } finally {
+            System.setOut(console);
+        }
+        System.out.println(conserved ? "Balances conserved" : "Balance conservation VIOLATED");
+        System.exit(conserved ? 0 : 1);
+    }
+
+    /**
+     * Transfers on the account store alone: a debit that would overdraw
+     * is refused, so no transfer creates or destroys money
+     */
+    private static boolean accountsPhase(PrintStream console) throws InterruptedException {
+        AccountStore balances = new AccountStore();
+        for (int i = 0; i < ACCOUNTS; i++) {
+            balances.credit(account(i), CURRENCY, OPENING_BALANCE);
+        }
+        long expected = ACCOUNTS * OPENING_BALANCE;
+        AtomicLong transfers = new AtomicLong();
+        AtomicLong refused = new AtomicLong();
+
+        long deadline = System.nanoTime() + DURATION_NANOS;
+        List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < THREADS; t++) {
+            threads.add(start("stress-transfer-" + t, () -> {
+                ThreadLocalRandom random = ThreadLocalRandom.current();
+                while (System.nanoTime() < deadline) {
+                    int sender = random.nextInt(ACCOUNTS);
+                    int receiver = random.nextInt(ACCOUNTS);
+                    long amount = 1 + random.nextLong(OPENING_BALANCE / 10);
+                    if (balances.tryDebit(account(sender), CURRENCY, amount)) {
+                        balances.credit(account(receiver), CURRENCY, amount);
+                        transfers.incrementAndGet();
+                    } else {
+                        refused.incrementAndGet();
+                    }
+                }
+            }));
+        }
+        join(threads);
+
+        long[] total = new long[1];
+        boolean[] negative = new boolean[1];
+        balances.forEachBalance((address, currency, minor) -> {
+            total[0] += minor;
+            if (minor < 0) negative[0] = true;
+        });
+        console.printf("accounts: %,d transfers, %,d refused, %,d ops/s%n", transfers.get(), refused.get(),
+                       (transfers.get() + refused.get()) * 1_000_000_000L / DURATION_NANOS);
+        return report(console, "accounts", expected, total[0], negative[0], 0);
+    }
+
+    /**
+     * Payments through admission, block assembly, mining and release, with
+     * deposits and replayed submissions mixed in
+     */
+    private static boolean ledgerPhase(PrintStream console) throws InterruptedException {
+        Blockchain blockchain = new Blockchain();
+        blockchain.setKeyRegistry(new KeyRegistry(false)); // Unsigned transfers between the test's accounts
+        AtomicLong deposited = new AtomicLong();
+        for (int i = 0; i < ACCOUNTS; i++) {
+            blockchain.deposit(account(i), Money.toDecimal(OPENING_BALANCE, CURRENCY));
+            deposited.addAndGet(OPENING_BALANCE);
+        }
+        AtomicLong admitted = new AtomicLong();
+        AtomicLong refused = new AtomicLong();
+        AtomicLong readmitted = new AtomicLong();
+        AtomicLong released = new AtomicLong();
+
+        long deadline = System.nanoTime() + DURATION_NANOS;
+        List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < THREADS; t++) {
+            threads.add(start("stress-payer-" + t, () -> {
+                ThreadLocalRandom random = ThreadLocalRandom.current();
+                List<Transaction> sent = new ArrayList<>();
+                while (System.nanoTime() < deadline) {
+                    int choice = random.nextInt(100);
+                    if (choice < 2) {
+                        // Top up an account while payments from it are in flight
+                        long amount = 1 + random.nextLong(OPENING_BALANCE / 10);
+                        blockchain.deposit(account(random.nextInt(ACCOUNTS)), Money.toDecimal(amount, CURRENCY));
+                        deposited.addAndGet(amount);
+                    } else if (choice < 12 && !sent.isEmpty()) {
+                        // Resubmit a payment this thread already sent, in whatever state it is in now
+                        if (blockchain.createTransaction(sent.get(random.nextInt(sent.size())))) {
+                            readmitted.incrementAndGet(); // It had failed, so it was never paid
+                        }
+                    } else {
+                        Transaction transaction = new Transaction(
+                            account(random.nextInt(ACCOUNTS)), account(random.nextInt(ACCOUNTS)),
+                            Money.toDecimal(1 + random.nextLong(OPENING_BALANCE / 10), CURRENCY), CURRENCY,
+                            "United States", "United States");
+                        if (blockchain.createTransaction(transaction)) {
+                            admitted.incrementAndGet();
+                            if (sent.size() < 1024) sent.add(transaction);
+                        } else {
+                            refused.incrementAndGet();
+                        }
+                    }
+                }
+            }));
+        }
+        for (int m = 0; m < MINERS; m++) {
+            threads.add(start("stress-miner-" + m, () -> {
+                ThreadLocalRandom random = ThreadLocalRandom.current();
+                while (System.nanoTime() < deadline) {
+                    Blockchain.BlockTemplate template = blockchain.assembleBlock();
+                    if (template.isEmpty()) {
+                        blockchain.releaseBlock(template);
+                        Thread.yield();
+                    } else if (random.nextInt(4) == 0) {
+                        blockchain.releaseBlock(template); // Given up, as when mining is cancelled
+                        released.incrementAndGet();
+                    } else {
+                        blockchain.mineBlock(template, MINER);
+                    }
+                }
+            }));
+        }
+        join(threads);
+
+        // Settle whatever is still pending
+        while (blockchain.getMempool().size() > 0) {
+            blockchain.minePendingTransactions(MINER);
+        }
+
+        int mined = 0;
+        int duplicates = 0;
+        Set<String> ids = new HashSet<>();
+        for (Block block : blockchain.getChain()) {
+            for (Transaction transaction : block.getTransactions()) {
+                mined++;
+                if (!ids.add(transaction.getTransactionId())) duplicates++;
+            }
+        }
+        long expected = deposited.get() + mined * blockchain.getMiningReward();
+        long total = 0;
+        boolean negative = false;
+        for (Map.Entry<String, BigDecimal> balance : blockchain.getAllBalances().entrySet()) {
+            long minor = Money.toMinor(balance.getValue(), CURRENCY);
+            total += minor;
+            if (minor < 0) negative = true;
+        }
+        console.printf("ledger: %,d admitted, %,d refused, %,d failed ones readmitted, %,d blocks (%,d given up), %,d mined%n",
+                       admitted.get(), refused.get(), readmitted.get(), blockchain.getChain().size() - 1,
+                       released.get(), mined);
+        return report(console, "ledger", expected, total, negative, duplicates);
+    }
+
+    private static boolean report(PrintStream console, String phase, long expected, long total, boolean negative,
+                                  int duplicates) {
+        boolean conserved = expected == total && !negative && duplicates == 0;
+        console.printf("%s: expected %s, found %s%s%s -> %s%n", phase,
+                       Money.toDecimal(expected, CURRENCY), Money.toDecimal(total, CURRENCY),
+                       negative ? ", negative balance" : "",
+                       duplicates != 0 ? ", " + duplicates + " transactions mined twice" : "",
+                       conserved ? "OK" : "VIOLATED");
+        return conserved;
+    }
+
+    private static Thread start(String name, Runnable body) {
+        Thread thread = new Thread(body, name);
+        thread.start();
+        return thread;
+    }
+
+    private static void join(List<Thread> threads) throws InterruptedException {
+        for (Thread thread : threads) {
+            thread.join();
+        }
+    }
+
+    private static String account(int i) {
+        return "account" + i + "@stress.com";
+    }
+}
@@ -0,0 +1,363 @@
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Duration;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import org.json.JSONObject;
+
+/**
+ * Open-loop HTTP load generator for BlockchainServer.
+ *
+ *   java -cp json-20230227.jar:. LoadGenerator                        # starts a server in-process
+ *   java -cp json-20230227.jar:. LoadGenerator http://localhost:8080  # drives a running server
+ *
+ * Requests are issued on a fixed schedule, one every 1/rate seconds with
+ * the endpoint drawn from a weighted mix, whether or not earlier requests
+ * have completed. Latency is measured from the time a request was
+ * scheduled to be sent, not from when it actually went out, so a server
+ * that stalls is charged for every request that should have been sent
+ * during the stall (no coordinated omission); service time, from the
+ * actual send, is recorded alongside. Per endpoint it reports throughput
+ * and latency percentiles, and writes the run as JSON and CSV files.
+ */
+public class LoadGenerator {
+    private static final String[] ENDPOINTS = {"create", "balance", "mine", "blockchain", "pending"};
+
+    private final String target;
+    private final double rate;
+    private final long warmupNanos;
+    private final long durationNanos;
+    private final int accounts;
+    private final int maxOutstanding;
+    private final Duration timeout;
+    private final String blockchainQuery;
+    private final Map<String, Integer> mix;
+    private final HttpClient client;
+    private final Map<String, EndpointStats> stats = new LinkedHashMap<>();
+    private final AtomicInteger outstanding = new AtomicInteger();
+
+    public LoadGenerator(String target) {
+        this.target = target;
+        this.rate = Double.parseDouble(System.getProperty("crosspay.load.rate", "200"));
+        this.warmupNanos = Long.getLong("crosspay.load.warmupSec", 5) * 1_000_000_000L;
+        this.durationNanos = Long.getLong("crosspay.load.durationSec", 30) * 1_000_000_000L;
+        this.accounts = Integer.getInteger("crosspay.load.accounts", 100);
+        this.maxOutstanding = Integer.getInteger("crosspay.load.maxOutstanding", 10_000);
+        this.timeout = Duration.ofMillis(Long.getLong("crosspay.load.timeoutMs", 30_000));
+        this.blockchainQuery = System.getProperty("crosspay.load.blockchainQuery", "headers=true&to=-1");
+        this.mix = parseMix(System.getProperty("crosspay.load.mix",
+                                               "create=70,balance=20,pending=5,blockchain=4,mine=1"));
+        if (rate <= 0 || mix.isEmpty() || accounts < 2) {
+            throw new IllegalArgumentException("Load generator needs a positive rate, an endpoint and two accounts");
+        }
+        this.client = HttpClient.newBuilder()
+            .connectTimeout(timeout)
+            .executor(Executors.newFixedThreadPool(Integer.getInteger("crosspay.load.threads", 8), runnable -> {
+                Thread thread = new Thread(runnable, "load-client");
+                thread.setDaemon(true);
+                return thread;
+            }))
+            .build();
+        for (String endpoint : mix.keySet()) {
+            stats.put(endpoint, new EndpointStats());
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        String target = args.length > 0 ? args[0] : null;
+        if (target == null) {
+            Path dataDir = Files.createTempDirectory("crosspay-load");
+            System.setProperty("crosspay.data.dir", dataDir.toString());
+            if (System.getProperty("crosspay.signatures.required") == null) {
+                System.setProperty("crosspay.signatures.required", "false"); // Its transfers are unsigned
+            }
+            BlockchainServer.main(new String[0]);
+            target = "http://localhost:" + Integer.getInteger("crosspay.port", 8080);
+            System.out.println("Started an in-process server with its ledger in " + dataDir);
+        }
+
+        LoadGenerator generator = new LoadGenerator(target);
+        generator.fundAccounts();
+        JSONObject report = generator.run();
+        generator.print(report);
+
+        String base = System.getProperty("crosspay.load.result", "load-" + System.currentTimeMillis());
+        Files.write(Paths.get(base + ".json"), report.toString(2).getBytes(StandardCharsets.UTF_8));
+        Files.write(Paths.get(base + ".csv"), toCsv(report).getBytes(StandardCharsets.UTF_8));
+        System.out.println("Results written to " + base + ".json and " + base + ".csv");
+        System.exit(0); // the in-process server's threads are not daemons
+    }
+
+    /**
+     * Give every load account enough to keep sending for the whole run
+     */
+    private void fundAccounts() throws IOException, InterruptedException {
+        for (int i = 0; i < accounts; i++) {
+            JSONObject deposit = new JSONObject();
+            deposit.put("address", account(i));
+            deposit.put("amount", new BigDecimal("1000000"));
+            HttpResponse<String> response = client.send(post("/api/deposit", deposit.toString()),
+                                                        HttpResponse.BodyHandlers.ofString());
+            if (response.statusCode() != 200) {
+                throw new IOException("Could not fund " + account(i) + ": " + response.body());
+            }
+        }
+    }
+
+    /**
+     * Drive the schedule through warmup and measurement, then wait for stragglers
+     */
+    public JSONObject run() throws InterruptedException {
+        Random random = new Random(42);
+        int totalWeight = 0;
+        for (int weight : mix.values()) totalWeight += weight;
+        long period = (long) (1_000_000_000L / rate);
+
+        long start = System.nanoTime();
+        long measureStart = start + warmupNanos;
+        long end = measureStart + durationNanos;
+        System.out.printf("Sending %.0f requests/s to %s: %ds warmup, %ds measured%n",
+                          rate, target, warmupNanos / 1_000_000_000L, durationNanos / 1_000_000_000L);
+
+        for (long sequence = 0; ; sequence++) {
+            long intended = start + sequence * period;
+            if (intended >= end) break;
+            long wait = intended - System.nanoTime();
+            if (wait > 0) LockSupport.parkNanos(wait);
+
+            String endpoint = pick(random.nextInt(totalWeight));
+            boolean measured = intended >= measureStart;
+            EndpointStats endpointStats = stats.get(endpoint);
+            if (outstanding.get() >= maxOutstanding) {
+                if (measured) endpointStats.dropped.incrementAndGet();
+                continue;
+            }
+            send(request(endpoint, random), intended, measured ? endpointStats : null);
+        }
+
+        // Let requests still in flight finish so their latency is counted
+        long deadline = System.nanoTime() + timeout.toNanos();
+        while (outstanding.get() > 0 && System.nanoTime() < deadline) {
+            Thread.sleep(10);
+        }
+        return report(durationNanos / 1e9);
+    }
+
+    private void send(HttpRequest request, long intended, EndpointStats endpointStats) {
+        outstanding.incrementAndGet();
+        long sent = System.nanoTime();
+        client.sendAsync(request, HttpResponse.BodyHandlers.ofString()).whenComplete((response, error) -> {
+            long done = System.nanoTime();
+            outstanding.decrementAndGet();
+            if (endpointStats == null) return; // warmup
+            endpointStats.latencyMicros.record((done - intended) / 1000);
+            endpointStats.serviceMicros.record((done - sent) / 1000);
+            if (error != null) {
+                endpointStats.errors.incrementAndGet();
+                endpointStats.statuses.computeIfAbsent(error.getClass().getSimpleName(), key -> new AtomicLong())
+                                      .incrementAndGet();
+                return;
+            }
+            int status = response.statusCode();
+            endpointStats.statuses.computeIfAbsent(Integer.toString(status), key -> new AtomicLong()).incrementAndGet();
+            if (status / 100 != 2) {
+                endpointStats.errors.incrementAndGet();
+            } else if (response.body().contains("\"success\":false")) {
+                endpointStats.rejected.incrementAndGet();
+            } else {
+                endpointStats.ok.incrementAndGet();
+            }
+        });
+    }
+
+    private String pick(int draw) {
+        for (Map.Entry<String, Integer> entry : mix.entrySet()) {
+            draw -= entry.getValue();
+            if (draw < 0) return entry.getKey();
+        }
+        throw new IllegalStateException();
+    }
+
+    private HttpRequest request(String endpoint, Random random) {
+        switch (endpoint) {
+            case "create":
+                int sender = random.nextInt(accounts);
+                int receiver = (sender + 1 + random.nextInt(accounts - 1)) % accounts;
+                JSONObject transaction = new JSONObject();
+                transaction.put("sender", account(sender));
+                transaction.put("receiver", account(receiver));
+                transaction.put("amount", BigDecimal.valueOf(100 + random.nextInt(4900), 2));
+                transaction.put("currency", "USD");
+                transaction.put("senderCountry", "United States");
+                transaction.put("receiverCountry", "United Kingdom");
+                return post("/api/transaction/create", transaction.toString());
+            case "balance":
+                return get("/api/balance?address=" + account(random.nextInt(accounts)));
+            case "mine":
+                return post("/api/transaction/mine", "{}");
+            case "blockchain":
+                return get("/api/blockchain?" + blockchainQuery);
+            case "pending":
+                return get("/api/pending");
+            default:
+                throw new IllegalArgumentException("Unknown endpoint " + endpoint);
+        }
+    }
+
+    private HttpRequest get(String path) {
+        return HttpRequest.newBuilder(URI.create(target + path)).timeout(timeout).GET().build();
+    }
+
+    private HttpRequest post(String path, String body) {
+        return HttpRequest.newBuilder(URI.create(target + path)).timeout(timeout)
+            .header("Content-Type", "application/json")
+            .POST(HttpRequest.BodyPublishers.ofString(body)).build();
+    }
+
+    private static String account(int i) {
+        return "load" + i + "@email.com";
+    }
+
+    private JSONObject report(double seconds) {
+        JSONObject config = new JSONObject();
+        config.put("target", target);
+        config.put("rate", rate);
+        config.put("warmupSec", warmupNanos / 1_000_000_000L);
+        config.put("durationSec", durationNanos / 1_000_000_000L);
+        config.put("accounts", accounts);
+        config.put("mix", mix);
+        config.put("executor", System.getProperty("crosspay.executor", "pool"));
+        config.put("javaVersion", System.getProperty("java.version"));
+        config.put("processors", Runtime.getRuntime().availableProcessors());
+
+        LatencyHistogram all = new LatencyHistogram();
+        long completed = 0;
+        JSONObject endpoints = new JSONObject();
+        for (Map.Entry<String, EndpointStats> entry : stats.entrySet()) {
+            EndpointStats endpointStats = entry.getValue();
+            all.add(endpointStats.latencyMicros);
+            completed += endpointStats.latencyMicros.getCount();
+            endpoints.put(entry.getKey(), endpointStats.toJSON(seconds));
+        }
+
+        JSONObject report = new JSONObject();
+        report.put("startedAt", System.currentTimeMillis());
+        report.put("config", config);
+        report.put("measuredSec", seconds);
+        report.put("throughput", completed / seconds);
+        report.put("latencyMs", percentiles(all));
+        report.put("endpoints", endpoints);
+        return report;
+    }
+
+    private void print(JSONObject report) {
+        System.out.printf("%-12s %9s %9s %8s %8s %9s %10s %10s %10s %10s%n",
+                          "Endpoint", "completed", "ok", "errors", "dropped", "req/s",
+                          "p50 ms", "p99 ms", "p999 ms", "max ms");
+        JSONObject endpoints = report.getJSONObject("endpoints");
+        for (String endpoint : stats.keySet()) {
+            JSONObject json = endpoints.getJSONObject(endpoint);
+            JSONObject latency = json.getJSONObject("latencyMs");
+            System.out.printf("%-12s %9d %9d %8d %8d %9.1f %10.2f %10.2f %10.2f %10.2f%n",
+                              endpoint, json.getLong("completed"), json.getLong("ok"), json.getLong("errors"),
+                              json.getLong("dropped"), json.getDouble("throughput"), latency.getDouble("p50"),
+                              latency.getDouble("p99"), latency.getDouble("p999"), latency.getDouble("max"));
+        }
+        System.out.printf("Overall %.1f req/s, p99 %.2f ms%n", report.getDouble("throughput"),
+                          report.getJSONObject("latencyMs").getDouble("p99"));
+    }
+
+    private static String toCsv(JSONObject report) {
+        StringBuilder csv = new StringBuilder(
+            "endpoint,completed,ok,rejected,errors,dropped,throughput,p50_ms,p90_ms,p99_ms,p999_ms,max_ms,"
+            + "service_p50_ms,service_p99_ms\n");
+        JSONObject endpoints = report.getJSONObject("endpoints");
+        for (String endpoint : endpoints.keySet()) {
+            JSONObject json = endpoints.getJSONObject(endpoint);
+            JSONObject latency = json.getJSONObject("latencyMs");
+            JSONObject service = json.getJSONObject("serviceTimeMs");
+            csv.append(endpoint).append(',').append(json.getLong("completed")).append(',')
+               .append(json.getLong("ok")).append(',').append(json.getLong("rejected")).append(',')
+               .append(json.getLong("errors")).append(',').append(json.getLong("dropped")).append(',')
+               .append(json.getDouble("throughput")).append(',').append(latency.getDouble("p50")).append(',')
+               .append(latency.getDouble("p90")).append(',').append(latency.getDouble("p99")).append(',')
+               .append(latency.getDouble("p999")).append(',').append(latency.getDouble("max")).append(',')
+               .append(service.getDouble("p50")).append(',').append(service.getDouble("p99")).append('\n');
+        }
+        return csv.toString();
+    }
+
+    private static JSONObject percentiles(LatencyHistogram micros) {
+        JSONObject json = new JSONObject();
+        json.put("p50", micros.getPercentile(50) / 1000.0);
+        json.put("p90", micros.getPercentile(90) / 1000.0);
+        json.put("p99", micros.getPercentile(99) / 1000.0);
+        json.put("p999", micros.getPercentile(99.9) / 1000.0);
+        json.put("max", micros.getMax() / 1000.0);
+        json.put("mean", micros.getMean() / 1000.0);
+        return json;
+    }
+
+    /**
+     * Parse "create=70,balance=20" into endpoint weights, in the order given
+     */
+    private static Map<String, Integer> parseMix(String spec) {
+        Map<String, Integer> mix = new LinkedHashMap<>();
+        for (String part : spec.split(",")) {
+            String[] pair = part.trim().split("=");
+            if (pair.length != 2 || !List.of(ENDPOINTS).contains(pair[0])) {
+                throw new IllegalArgumentException("Bad mix entry '" + part + "', endpoints are " +
+                                                   String.join(", ", ENDPOINTS));
+            }
+            int weight = Integer.parseInt(pair[1]);
+            if (weight > 0) mix.put(pair[0], weight);
+        }
+        return mix;
+    }
+
+    /**
+     * Everything recorded for one endpoint during measurement
+     */
+    private static final class EndpointStats {
+        final LatencyHistogram latencyMicros = new LatencyHistogram();
+        final LatencyHistogram serviceMicros = new LatencyHistogram();
+        final AtomicLong ok = new AtomicLong();
+        final AtomicLong rejected = new AtomicLong(); // 200 with "success": false
+        final AtomicLong errors = new AtomicLong();
+        final AtomicLong dropped = new AtomicLong();  // never sent, too many outstanding
+        final Map<String, AtomicLong> statuses = new ConcurrentHashMap<>();
+
+        JSONObject toJSON(double seconds) {
+            JSONObject json = new JSONObject();
+            json.put("completed", latencyMicros.getCount());
+            json.put("ok", ok.get());
+            json.put("rejected", rejected.get());
+            json.put("errors", errors.get());
+            json.put("dropped", dropped.get());
+            json.put("throughput", latencyMicros.getCount() / seconds);
+            json.put("latencyMs", percentiles(latencyMicros));
+            json.put("serviceTimeMs", percentiles(serviceMicros));
+            Map<String, Long> statusCounts = new LinkedHashMap<>();
+            for (Map.Entry<String, AtomicLong> status : statuses.entrySet()) {
+                statusCounts.put(status.getKey(), status.getValue().get());
+            }
+            json.put("statuses", statusCounts);
+            return json;
+        }
+    }
+}
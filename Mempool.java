@@ -0,0 +1,326 @@
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.function.Predicate;
+
+/**
+ * Bounded pool of admitted transactions waiting for a block.
+ *
+ * Entries are kept in a tree ordered by fee (highest first, then arrival),
+ * so a block takes the k best-paying transactions in O(k log n) without
+ * touching the rest. The pool tracks each sender's pending debits per
+ * funding currency, so a sender cannot admit more than its balance in
+ * that currency covers, and it is capped by
+ * both transaction count and estimated memory; when full, a better-paying
+ * transaction evicts the lowest-fee entries and a worse-paying one is
+ * turned away.
+ *
+ * A transaction id stays claimed from admission until its block is
+ * settled: a transaction taken into a block leaves the tree but its id is
+ * held until {@link #settle} or {@link #restore}, and admission refuses
+ * an id that is pending, held, or already in a block, all under one lock.
+ */
+public class Mempool {
+    public enum Admission {
+        ADMITTED, DUPLICATE, INSUFFICIENT_BALANCE, POOL_FULL, UNSUPPORTED_CURRENCY, UNAUTHORIZED, AMOUNT_TOO_LARGE
+    }
+
+    private static final int ENTRY_OVERHEAD = 256; // objects, tree node and map entries around each transaction
+
+    private final int maxTransactions;
+    private final long maxBytes;
+    private final TreeSet<Entry> byFee;
+    private final Map<String, Entry> byId;
+    private final Map<String, Long> pendingDebits;
+    private final Set<String> taken; // selected into a block not yet settled or given up
+    private Predicate<String> confirmed = transactionId -> false;
+    private long bytes;
+    private long sequence;
+    private int awaitedCount; // size a waiting thread wants, 0 if none
+
+    public Mempool() {
+        this(Integer.getInteger("crosspay.mempool.maxTransactions", 200_000),
+             Long.getLong("crosspay.mempool.maxBytes", 128L * 1024 * 1024));
+    }
+
+    public Mempool(int maxTransactions, long maxBytes) {
+        this.maxTransactions = maxTransactions;
+        this.maxBytes = maxBytes;
+        this.byFee = new TreeSet<>();
+        this.byId = new LinkedHashMap<>(); // admission order, oldest first
+        this.pendingDebits = new HashMap<>();
+        this.taken = new HashSet<>();
+    }
+
+    /**
+     * Tell the pool how to find ids already in a block, so admission can
+     * refuse them under the same lock that {@link #settle} releases them
+     * under; the check must hold for a block's ids before it is settled
+     */
+    public synchronized void setConfirmed(Predicate<String> confirmed) {
+        this.confirmed = confirmed;
+    }
+
+    /**
+     * Admit a transaction if the sender's balance covers it on top of what
+     * the sender already has pending
+     *
+     * @param debit amount plus fee the sender will pay, in funding currency minor units
+     * @param fee   fee in base currency minor units, the priority of the transaction
+     * @param balance the sender's balance in the funding currency
+     * @param evicted receives transactions pushed out to make room
+     */
+    public synchronized Admission add(Transaction transaction, long debit, long fee, long balance,
+                                      List<Transaction> evicted) {
+        String transactionId = transaction.getTransactionId();
+        if (byId.containsKey(transactionId) || taken.contains(transactionId) || confirmed.test(transactionId)) {
+            return Admission.DUPLICATE;
+        }
+        long pending = pendingDebits.getOrDefault(debitKey(transaction), 0L);
+        if (balance - pending < debit) {
+            return Admission.INSUFFICIENT_BALANCE;
+        }
+
+        Entry entry = new Entry(transaction, debit, fee, estimateSize(transaction), sequence++);
+        if (!makeRoom(entry, evicted)) {
+            return Admission.POOL_FULL;
+        }
+        insert(entry);
+        transaction.setAdmittedAt(System.currentTimeMillis()); // kept through selection and restore
+        return Admission.ADMITTED;
+    }
+
+    /**
+     * Remove and return up to maxCount of the best-paying transactions whose
+     * estimated size fits in maxBlockBytes. Each candidate is offered to the
+     * claim, which runs under the pool's lock; a refused candidate is dropped
+     * from the pool and reported through rejected. The ids of claimed
+     * transactions stay held until they are settled or restored.
+     */
+    public synchronized List<Transaction> select(int maxCount, long maxBlockBytes, Claim claim,
+                                                 List<Transaction> rejected) {
+        List<Transaction> selected = new ArrayList<>(Math.min(maxCount, byFee.size()));
+        long blockBytes = 0;
+        while (selected.size() < maxCount && !byFee.isEmpty()) {
+            Entry best = byFee.first();
+            if (blockBytes + best.size > maxBlockBytes && !selected.isEmpty()) {
+                break;
+            }
+            remove(best);
+            if (claim.claim(best.transaction, best.debit)) {
+                selected.add(best.transaction);
+                taken.add(best.transaction.getTransactionId());
+                blockBytes += best.size;
+            } else {
+                rejected.add(best.transaction);
+            }
+        }
+        return selected;
+    }
+
+    /**
+     * Admit a batch under one acquisition of the lock; balances[i] is the
+     * sender's balance for transactions[i]
+     */
+    public synchronized Admission[] addAll(List<Transaction> transactions, long[] debits, long[] fees,
+                                           long[] balances, List<Transaction> evicted) {
+        Admission[] admissions = new Admission[transactions.size()];
+        for (int i = 0; i < admissions.length; i++) {
+            admissions[i] = add(transactions.get(i), debits[i], fees[i], balances[i], evicted);
+        }
+        return admissions;
+    }
+
+    /**
+     * Put back a transaction taken by {@link #select} whose block was not
+     * mined; its balance was already checked, so only the caps apply
+     *
+     * @return false if the pool is too full of better-paying transactions to take it back,
+     *         in which case its id is released all the same
+     */
+    public synchronized boolean restore(Transaction transaction, long debit, long fee, List<Transaction> evicted) {
+        taken.remove(transaction.getTransactionId());
+        Entry entry = new Entry(transaction, debit, fee, estimateSize(transaction), sequence++);
+        if (byId.containsKey(transaction.getTransactionId()) || !makeRoom(entry, evicted)) {
+            return false;
+        }
+        insert(entry);
+        return true;
+    }
+
+    /**
+     * Release the ids of transactions taken by {@link #select} whose block
+     * is now in the chain, where the confirmed check finds them
+     */
+    public synchronized void settle(List<Transaction> transactions) {
+        for (Transaction transaction : transactions) {
+            taken.remove(transaction.getTransactionId());
+        }
+    }
+
+    public synchronized Transaction get(String transactionId) {
+        Entry entry = byId.get(transactionId);
+        return entry == null ? null : entry.transaction;
+    }
+
+    /**
+     * Pending transactions, best-paying first
+     */
+    public synchronized List<Transaction> getTransactions() {
+        List<Transaction> transactions = new ArrayList<>(byFee.size());
+        for (Entry entry : byFee) {
+            transactions.add(entry.transaction);
+        }
+        return transactions;
+    }
+
+    /**
+     * Minor units of a currency the sender has committed to pending transactions
+     */
+    public synchronized long getPendingDebit(String sender, String currency) {
+        return pendingDebits.getOrDefault(debitKey(sender, currency), 0L);
+    }
+
+    /**
+     * Wait until the pool holds at least count transactions or the timeout passes
+     *
+     * @return the pool size when the wait ended
+     */
+    public synchronized int awaitTransactions(int count, long timeoutMillis) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        while (byFee.size() < count) {
+            long remaining = deadline - System.currentTimeMillis();
+            if (remaining <= 0) break;
+            awaitedCount = count;
+            try {
+                wait(remaining);
+            } finally {
+                awaitedCount = 0;
+            }
+        }
+        return byFee.size();
+    }
+
+    public synchronized int size() {
+        return byFee.size();
+    }
+
+    public synchronized long getBytes() {
+        return bytes;
+    }
+
+    /**
+     * Admission time of the earliest admitted transaction still pending, or 0
+     * if the pool is empty; a transaction restored from a block given up
+     * rejoins at the back
+     */
+    public synchronized long getOldestAdmittedAt() {
+        for (Entry entry : byId.values()) {
+            return entry.transaction.getAdmittedAt();
+        }
+        return 0;
+    }
+
+    /**
+     * Evict lowest-fee entries until the new entry fits; false if it pays too little to displace them
+     */
+    private boolean makeRoom(Entry entry, List<Transaction> evicted) {
+        if (entry.size > maxBytes) return false;
+
+        // Check before evicting anything that enough worse-paying entries exist
+        int count = byFee.size();
+        long size = bytes;
+        for (Entry lowest : byFee.descendingSet()) {
+            if (count < maxTransactions && size + entry.size <= maxBytes) break;
+            if (lowest.compareTo(entry) < 0) return false;
+            count--;
+            size -= lowest.size;
+        }
+        if (count >= maxTransactions || size + entry.size > maxBytes) return false;
+
+        while (byFee.size() >= maxTransactions || bytes + entry.size > maxBytes) {
+            Entry lowest = byFee.last();
+            remove(lowest);
+            evicted.add(lowest.transaction);
+        }
+        return true;
+    }
+
+    private void insert(Entry entry) {
+        byFee.add(entry);
+        byId.put(entry.transaction.getTransactionId(), entry);
+        pendingDebits.merge(debitKey(entry.transaction), entry.debit, Long::sum);
+        bytes += entry.size;
+        if (awaitedCount != 0 && byFee.size() >= awaitedCount) {
+            notifyAll();
+        }
+    }
+
+    private void remove(Entry entry) {
+        byFee.remove(entry);
+        byId.remove(entry.transaction.getTransactionId());
+        pendingDebits.computeIfPresent(debitKey(entry.transaction),
+                                       (key, debit) -> debit == entry.debit ? null : debit - entry.debit);
+        bytes -= entry.size;
+    }
+
+    private static String debitKey(Transaction transaction) {
+        return debitKey(transaction.getSender(), transaction.getFundingCurrency());
+    }
+
+    /**
+     * The sender alone for base currency funding, the common case, so it needs no new string
+     */
+    private static String debitKey(String sender, String currency) {
+        return Money.BASE_CURRENCY.equals(currency) ? sender : sender + '\n' + currency;
+    }
+
+    private static int estimateSize(Transaction transaction) {
+        int chars = length(transaction.getTransactionId()) + length(transaction.getSender()) +
+                    length(transaction.getReceiver()) + length(transaction.getCurrency()) +
+                    length(transaction.getSenderCountry()) + length(transaction.getReceiverCountry()) +
+                    length(transaction.getHash());
+        return ENTRY_OVERHEAD + 2 * chars;
+    }
+
+    private static int length(String value) {
+        return value == null ? 0 : value.length();
+    }
+
+    /**
+     * Decides, under the pool's lock, whether a selected transaction goes into the block
+     */
+    public interface Claim {
+        boolean claim(Transaction transaction, long debit);
+    }
+
+    private static final class Entry implements Comparable<Entry> {
+        final Transaction transaction;
+        final long debit;
+        final long fee;
+        final int size;
+        final long sequence;
+
+        Entry(Transaction transaction, long debit, long fee, int size, long sequence) {
+            this.transaction = transaction;
+            this.debit = debit;
+            this.fee = fee;
+            this.size = size;
+            this.sequence = sequence;
+        }
+
+        /**
+         * Higher fee first, then earlier arrival
+         */
+        @Override
+        public int compareTo(Entry other) {
+            int order = Long.compare(other.fee, fee);
+            return order != 0 ? order : Long.compare(sequence, other.sequence);
+        }
+    }
+}
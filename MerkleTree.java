@@ -0,0 +1,232 @@
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Merkle tree over the transaction hashes of a block.
+ *
+ * Each leaf is SHA-256(0x00 || transaction hash) and each parent
+ * SHA-256(0x01 || left || right) of the raw 32-byte children, so a leaf can
+ * never pass for an interior node; an odd node at the end of a level moves
+ * up unchanged. Trees of version 1, kept for blocks written before, hash
+ * the transaction hashes themselves with no prefixes and pair an odd node
+ * with itself, which gives [a, b, c] and [a, b, c, c] the same root; blocks
+ * with a repeated transaction are refused by validation for that reason.
+ */
+public class MerkleTree {
+    public static final String EMPTY_ROOT = new String(new char[64]).replace('\0', '0');
+    public static final int VERSION = 2;
+    public static final int VERSION_PAIRED = 1; // odd node paired with itself, no domain prefixes
+
+    private static final int HASH_SIZE = 32;
+    private static final byte LEAF = 0x00;
+    private static final byte NODE = 0x01;
+
+    private final List<String> leafHashes;
+    private final List<byte[]> levels; // levels.get(0) holds the leaves, each node 32 bytes
+    private final int size;
+    private final int version;
+    private final String root;
+
+    public MerkleTree(List<String> leafHashes) {
+        this(leafHashes, VERSION);
+    }
+
+    public MerkleTree(List<String> leafHashes, int version) {
+        if (version != VERSION && version != VERSION_PAIRED) {
+            throw new IllegalArgumentException("Unknown Merkle tree version " + version);
+        }
+        this.leafHashes = leafHashes;
+        this.size = leafHashes.size();
+        this.version = version;
+        this.levels = new ArrayList<>();
+
+        if (size == 0) {
+            this.root = EMPTY_ROOT;
+            return;
+        }
+
+        byte[] level = new byte[size * HASH_SIZE];
+        for (int i = 0; i < size; i++) {
+            byte[] leaf = HashEngine.fromHex(leafHashes.get(i));
+            if (version == VERSION_PAIRED) {
+                System.arraycopy(leaf, 0, level, i * HASH_SIZE, HASH_SIZE);
+            } else {
+                HashEngine.sha256Prefixed(LEAF, leaf, 0, HASH_SIZE, level, i * HASH_SIZE);
+            }
+        }
+        levels.add(level);
+
+        int count = size;
+        while (count > 1) {
+            int parents = (count + 1) / 2;
+            byte[] next = new byte[parents * HASH_SIZE];
+            for (int i = 0; i < parents; i++) {
+                int left = 2 * i;
+                if (version == VERSION_PAIRED) {
+                    int right = Math.min(left + 1, count - 1);
+                    HashEngine.sha256Pair(level, left * HASH_SIZE, right * HASH_SIZE, next, i * HASH_SIZE);
+                } else if (left + 1 < count) {
+                    HashEngine.sha256Prefixed(NODE, level, left * HASH_SIZE, 2 * HASH_SIZE, next, i * HASH_SIZE);
+                } else {
+                    System.arraycopy(level, left * HASH_SIZE, next, i * HASH_SIZE, HASH_SIZE); // promoted
+                }
+            }
+            levels.add(next);
+            level = next;
+            count = parents;
+        }
+        this.root = HashEngine.toHex(level);
+    }
+
+    /**
+     * Build the tree over the hashes of the given transactions
+     */
+    public static MerkleTree of(List<Transaction> transactions) {
+        return of(transactions, VERSION);
+    }
+
+    public static MerkleTree of(List<Transaction> transactions, int version) {
+        List<String> hashes = new ArrayList<>(transactions.size());
+        for (Transaction transaction : transactions) {
+            hashes.add(transaction.getHash());
+        }
+        return new MerkleTree(hashes, version);
+    }
+
+    /**
+     * Inclusion proof for the leaf at the given index, from leaf to root; a
+     * node promoted without a sibling adds no step
+     */
+    public Proof getProof(int index) {
+        if (index < 0 || index >= size) {
+            throw new IndexOutOfBoundsException("No leaf at index " + index);
+        }
+
+        List<ProofStep> path = new ArrayList<>();
+        int position = index;
+        int count = size;
+        for (int depth = 0; depth < levels.size() - 1; depth++) {
+            byte[] level = levels.get(depth);
+            boolean isRight = (position & 1) == 1;
+            if (isRight || position + 1 < count) {
+                path.add(new ProofStep(hashAt(level, isRight ? position - 1 : position + 1), isRight));
+            } else if (version == VERSION_PAIRED) {
+                path.add(new ProofStep(hashAt(level, position), false));
+            }
+            position /= 2;
+            count = (count + 1) / 2;
+        }
+        return new Proof(leafHashes.get(index), index, path, root, version);
+    }
+
+    /**
+     * Check that folding the proof path over the transaction hash yields the root
+     */
+    public static boolean verify(String leafHash, List<ProofStep> path, String root) {
+        return verify(leafHash, path, root, VERSION);
+    }
+
+    public static boolean verify(String leafHash, List<ProofStep> path, String root, int version) {
+        byte[] pair = new byte[2 * HASH_SIZE];
+        byte[] current = HashEngine.fromHex(leafHash);
+        if (version != VERSION_PAIRED) {
+            byte[] leaf = new byte[HASH_SIZE];
+            HashEngine.sha256Prefixed(LEAF, current, 0, HASH_SIZE, leaf, 0);
+            current = leaf;
+        }
+        for (ProofStep step : path) {
+            byte[] sibling = HashEngine.fromHex(step.getHash());
+            System.arraycopy(step.isLeft() ? sibling : current, 0, pair, 0, HASH_SIZE);
+            System.arraycopy(step.isLeft() ? current : sibling, 0, pair, HASH_SIZE, HASH_SIZE);
+            current = new byte[HASH_SIZE];
+            if (version == VERSION_PAIRED) {
+                HashEngine.sha256Pair(pair, 0, HASH_SIZE, current, 0);
+            } else {
+                HashEngine.sha256Prefixed(NODE, pair, 0, 2 * HASH_SIZE, current, 0);
+            }
+        }
+        return HashEngine.toHex(current).equals(root);
+    }
+
+    private static String hashAt(byte[] level, int index) {
+        byte[] hash = new byte[HASH_SIZE];
+        System.arraycopy(level, index * HASH_SIZE, hash, 0, HASH_SIZE);
+        return HashEngine.toHex(hash);
+    }
+
+    public String getRoot() {
+        return root;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public int getVersion() {
+        return version;
+    }
+
+    /**
+     * One sibling hash on the path from a leaf to the root
+     */
+    public static class ProofStep {
+        private final String hash;
+        private final boolean left;
+
+        public ProofStep(String hash, boolean left) {
+            this.hash = hash;
+            this.left = left;
+        }
+
+        public String getHash() {
+            return hash;
+        }
+
+        /**
+         * Whether the sibling sits to the left of the running hash
+         */
+        public boolean isLeft() {
+            return left;
+        }
+    }
+
+    /**
+     * Inclusion proof of a single leaf
+     */
+    public static class Proof {
+        private final String leafHash;
+        private final int index;
+        private final List<ProofStep> path;
+        private final String root;
+        private final int version;
+
+        Proof(String leafHash, int index, List<ProofStep> path, String root, int version) {
+            this.leafHash = leafHash;
+            this.index = index;
+            this.path = Collections.unmodifiableList(path);
+            this.root = root;
+            this.version = version;
+        }
+
+        public boolean verify() {
+            return MerkleTree.verify(leafHash, path, root, version);
+        }
+
+        public String getLeafHash() {
+            return leafHash;
+        }
+
+        public int getIndex() {
+            return index;
+        }
+
+        public List<ProofStep> getPath() {
+            return path;
+        }
+
+        public String getRoot() {
+            return root;
+        }
+    }
+}
@@ -0,0 +1,166 @@
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.DoubleSupplier;
+
+/**
+ * Named counters, gauges and summaries, exported in the Prometheus text
+ * format.
+ *
+ * Meters are created once, up front, with their labels fixed; recording
+ * into one is a LongAdder increment or a LatencyHistogram record, so hot
+ * paths neither lock nor allocate. Only registration and export take the
+ * registry's lock. Gauges are read when exported.
+ */
+public class MetricsRegistry {
+    private static final double[] QUANTILES = {0.5, 0.9, 0.99, 0.999};
+
+    private final Map<String, Family> families = new LinkedHashMap<>();
+
+    /**
+     * @param labels alternating label names and values
+     */
+    public synchronized Counter counter(String name, String help, String... labels) {
+        Counter counter = new Counter();
+        family(name, help, "counter").series.add(new Series(labels(labels), counter, null, null, 1));
+        return counter;
+    }
+
+    public synchronized void gauge(String name, String help, DoubleSupplier value, String... labels) {
+        family(name, help, "gauge").series.add(new Series(labels(labels), null, value, null, 1));
+    }
+
+    /**
+     * Register a summary over a histogram whose values are divided by
+     * divisor on export, so one recorded in microseconds exports seconds
+     * with a divisor of 1,000,000
+     */
+    public synchronized LatencyHistogram summary(String name, String help, long divisor, String... labels) {
+        LatencyHistogram histogram = new LatencyHistogram();
+        summary(name, help, histogram, divisor, labels);
+        return histogram;
+    }
+
+    /**
+     * Export a histogram recorded elsewhere as a summary
+     */
+    public synchronized void summary(String name, String help, LatencyHistogram histogram, long divisor,
+                                     String... labels) {
+        family(name, help, "summary").series.add(new Series(labels(labels), null, null, histogram, divisor));
+    }
+
+    /**
+     * Every meter in the Prometheus text exposition format, version 0.0.4
+     */
+    public synchronized String toPrometheus() {
+        StringBuilder out = new StringBuilder(8192);
+        for (Family family : families.values()) {
+            out.append("# HELP ").append(family.name).append(' ').append(family.help).append('\n');
+            out.append("# TYPE ").append(family.name).append(' ').append(family.type).append('\n');
+            for (Series series : family.series) {
+                if (series.histogram != null) {
+                    LatencyHistogram histogram = series.histogram;
+                    for (double quantile : QUANTILES) {
+                        String labels = series.labels.isEmpty() ? "quantile=\"" + quantile + "\"" :
+                                        series.labels + ",quantile=\"" + quantile + "\"";
+                        sample(out, family.name, labels, (double) histogram.getPercentile(quantile * 100) / series.divisor);
+                    }
+                    sample(out, family.name + "_sum", series.labels, (double) histogram.getSum() / series.divisor);
+                    sample(out, family.name + "_count", series.labels, histogram.getCount());
+                } else if (series.counter != null) {
+                    sample(out, family.name, series.labels, series.counter.get());
+                } else {
+                    sample(out, family.name, series.labels, series.gauge.getAsDouble());
+                }
+            }
+        }
+        return out.toString();
+    }
+
+    private static void sample(StringBuilder out, String name, String labels, double value) {
+        out.append(name);
+        if (!labels.isEmpty()) out.append('{').append(labels).append('}');
+        out.append(' ');
+        if (value == Math.rint(value) && Math.abs(value) < 1e15) {
+            out.append((long) value);
+        } else {
+            out.append(value);
+        }
+        out.append('\n');
+    }
+
+    private Family family(String name, String help, String type) {
+        Family family = families.get(name);
+        if (family == null) {
+            family = new Family(name, help, type);
+            families.put(name, family);
+        } else if (!family.type.equals(type)) {
+            throw new IllegalArgumentException("Metric " + name + " is already a " + family.type);
+        }
+        return family;
+    }
+
+    private static String labels(String... labels) {
+        if (labels.length % 2 != 0) {
+            throw new IllegalArgumentException("Labels must be name/value pairs");
+        }
+        StringBuilder out = new StringBuilder();
+        for (int i = 0; i < labels.length; i += 2) {
+            if (i > 0) out.append(',');
+            out.append(labels[i]).append("=\"")
+               .append(labels[i + 1].replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n"))
+               .append('"');
+        }
+        return out.toString();
+    }
+
+    /**
+     * Monotonic count, striped so concurrent increments do not contend
+     */
+    public static final class Counter {
+        private final LongAdder count = new LongAdder();
+
+        public void increment() {
+            count.increment();
+        }
+
+        public void add(long amount) {
+            count.add(amount);
+        }
+
+        public long get() {
+            return count.sum();
+        }
+    }
+
+    private static final class Family {
+        final String name;
+        final String help;
+        final String type;
+        final List<Series> series = new ArrayList<>();
+
+        Family(String name, String help, String type) {
+            this.name = name;
+            this.help = help;
+            this.type = type;
+        }
+    }
+
+    private static final class Series {
+        final String labels;
+        final Counter counter;
+        final DoubleSupplier gauge;
+        final LatencyHistogram histogram;
+        final long divisor;
+
+        Series(String labels, Counter counter, DoubleSupplier gauge, LatencyHistogram histogram, long divisor) {
+            this.labels = labels;
+            this.counter = counter;
+            this.gauge = gauge;
+            this.histogram = histogram;
+            this.divisor = divisor;
+        }
+    }
+}
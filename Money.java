@@ -0,0 +1,73 @@
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Fixed-point money helpers. Amounts are held as long minor units of
+ * their currency (cents for USD, yen for JPY, fils for BHD).
+ */
+public final class Money {
+    public static final String BASE_CURRENCY = "USD";
+
+    private static final int DEFAULT_SCALE = 2;
+    private static final Map<String, Integer> SCALES = new HashMap<>();
+    private static final long[] POWERS_OF_TEN = {1, 10, 100, 1000, 10000};
+
+    static {
+        for (String c : new String[] {"JPY", "KRW", "VND", "CLP", "ISK", "UGX", "XOF", "XAF"}) {
+            SCALES.put(c, 0);
+        }
+        for (String c : new String[] {"BHD", "KWD", "OMR", "JOD", "TND", "LYD", "IQD"}) {
+            SCALES.put(c, 3);
+        }
+    }
+
+    private Money() {
+    }
+
+    /**
+     * Number of decimal places of the currency's minor unit
+     */
+    public static int scale(String currency) {
+        return SCALES.getOrDefault(currency, DEFAULT_SCALE);
+    }
+
+    /**
+     * Convert a decimal amount to minor units
+     *
+     * @throws ArithmeticException if the amount has more decimals than the currency allows
+     */
+    public static long toMinor(BigDecimal amount, String currency) {
+        return amount.setScale(scale(currency), RoundingMode.UNNECESSARY).unscaledValue().longValueExact();
+    }
+
+    /**
+     * Exact decimal value of an amount in minor units
+     */
+    public static BigDecimal toDecimal(long minor, String currency) {
+        return BigDecimal.valueOf(minor, scale(currency));
+    }
+
+    /**
+     * Re-express an amount in another currency's minor units, one unit for one unit,
+     * rounding half-even when the target has fewer decimals
+     */
+    public static long rescale(long minor, String from, String to) {
+        int diff = scale(to) - scale(from);
+        if (diff == 0) return minor;
+        if (diff > 0) return Math.multiplyExact(minor, POWERS_OF_TEN[diff]);
+        return BigDecimal.valueOf(minor).movePointLeft(-diff)
+                         .setScale(0, RoundingMode.HALF_EVEN).longValueExact();
+    }
+
+    /**
+     * Transaction fee: 0.1% of the amount rounded half-up, minimum 0.01
+     * (or one minor unit for currencies without cents)
+     */
+    public static long fee(long amountMinor, String currency) {
+        int scale = scale(currency);
+        long minimum = scale >= 2 ? POWERS_OF_TEN[scale - 2] : 1;
+        return Math.max((amountMinor + 500) / 1000, minimum);
+    }
+}
@@ -0,0 +1,198 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Parallel proof-of-work engine that splits the nonce space across a worker pool
+ */
+public class ParallelMiner {
+    public static final int DEFAULT_WORKERS =
+        Integer.getInteger("crosspay.miner.threads", Runtime.getRuntime().availableProcessors());
+
+    private final int workers;
+    private final ExecutorService pool;
+    private final AtomicReference<MiningRun> currentRun;
+    private volatile MiningResult lastResult;
+
+    public ParallelMiner() {
+        this(DEFAULT_WORKERS);
+    }
+
+    public ParallelMiner(int workers) {
+        if (workers < 1) {
+            throw new IllegalArgumentException("Miner needs at least one worker");
+        }
+        this.workers = workers;
+        this.currentRun = new AtomicReference<>();
+        this.pool = Executors.newFixedThreadPool(workers, runnable -> {
+            Thread thread = new Thread(runnable, "miner-worker");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Search for a nonce whose block hash satisfies the difficulty.
+     * Worker i tries nonces i, i + workers, i + 2 * workers, ... so the
+     * nonce space is covered without overlap, and every worker stops as
+     * soon as any one of them finds a valid hash.
+     *
+     * @throws CancellationException if {@link #cancel()} was called during the run
+     */
+    public MiningResult mine(Block block, int difficulty) {
+        MiningRun run = new MiningRun();
+        currentRun.set(run);
+        long start = System.nanoTime();
+
+        try {
+            List<Future<Long>> futures = new ArrayList<>(workers);
+            for (int i = 0; i < workers; i++) {
+                final int offset = i;
+                futures.add(pool.submit(() -> search(block, difficulty, offset, run)));
+            }
+
+            long hashes = 0;
+            for (Future<Long> future : futures) {
+                hashes += getUninterruptibly(future, run);
+            }
+
+            if (!run.found.get()) {
+                throw new CancellationException("Mining cancelled");
+            }
+
+            MiningResult result = new MiningResult(run.winnerNonce, run.winnerHash,
+                                                   hashes, System.nanoTime() - start, workers);
+            lastResult = result;
+            return result;
+        } finally {
+            currentRun.compareAndSet(run, null);
+        }
+    }
+
+    /**
+     * Cancel the mining run in progress, if any
+     */
+    public boolean cancel() {
+        MiningRun run = currentRun.get();
+        if (run == null) return false;
+        run.cancelled.set(true);
+        return true;
+    }
+
+    /**
+     * Shut down the worker pool
+     */
+    public void shutdown() {
+        cancel();
+        pool.shutdownNow();
+    }
+
+    private long search(Block block, int difficulty, int offset, MiningRun run) {
+        HashEngine.NonceSearch nonceSearch = new HashEngine.NonceSearch(block.getHeaderPrefix());
+        int zeroBits = difficulty * 4;
+        long hashes = 0;
+
+        for (long nonce = offset; nonce <= Integer.MAX_VALUE; nonce += workers) {
+            if (run.isDone()) break;
+
+            hashes++;
+            if (nonceSearch.tryNonce((int) nonce, zeroBits)) {
+                if (run.found.compareAndSet(false, true)) {
+                    run.winnerNonce = (int) nonce;
+                    run.winnerHash = nonceSearch.hashHex();
+                }
+                break;
+            }
+        }
+        return hashes;
+    }
+
+    private static long getUninterruptibly(Future<Long> future, MiningRun run) {
+        while (true) {
+            try {
+                return future.get();
+            } catch (InterruptedException e) {
+                run.cancelled.set(true);
+                Thread.currentThread().interrupt();
+            } catch (ExecutionException e) {
+                run.cancelled.set(true);
+                throw new RuntimeException(e.getCause());
+            }
+        }
+    }
+
+    public int getWorkers() {
+        return workers;
+    }
+
+    public MiningResult getLastResult() {
+        return lastResult;
+    }
+
+    /**
+     * Shared state of a single mining run
+     */
+    private static class MiningRun {
+        private final AtomicBoolean cancelled = new AtomicBoolean();
+        private final AtomicBoolean found = new AtomicBoolean();
+        private volatile int winnerNonce;
+        private volatile String winnerHash;
+
+        boolean isDone() {
+            return cancelled.get() || found.get();
+        }
+    }
+
+    /**
+     * Outcome of a successful mining run
+     */
+    public static class MiningResult {
+        private final int nonce;
+        private final String hash;
+        private final long hashes;
+        private final long elapsedNanos;
+        private final int workers;
+
+        MiningResult(int nonce, String hash, long hashes, long elapsedNanos, int workers) {
+            this.nonce = nonce;
+            this.hash = hash;
+            this.hashes = hashes;
+            this.elapsedNanos = elapsedNanos;
+            this.workers = workers;
+        }
+
+        public int getNonce() {
+            return nonce;
+        }
+
+        public String getHash() {
+            return hash;
+        }
+
+        public long getHashes() {
+            return hashes;
+        }
+
+        public long getElapsedMillis() {
+            return elapsedNanos / 1_000_000;
+        }
+
+        public long getElapsedNanos() {
+            return elapsedNanos;
+        }
+
+        public int getWorkers() {
+            return workers;
+        }
+
+        public double getHashesPerSecond() {
+            return elapsedNanos == 0 ? 0 : hashes * 1_000_000_000.0 / elapsedNanos;
+        }
+    }
+}
@@ -0,0 +1,273 @@
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+/**
+ * Replication harness: one leader and several followers on localhost.
+ *
+ *   java -cp json-20230227.jar:. ReplicationBenchmark
+ *
+ * Every node runs in this JVM with its own ledger log in a temporary
+ * directory, and followers replicate over real sockets. The leader first
+ * builds a history of deposits and full blocks; followers then start empty
+ * and catch up, reporting records, transactions and bytes per second.
+ * Blocks mined next, at a fixed interval, measure live replication lag.
+ * Finally one follower is stopped while the leader mines on, and resumes
+ * from its own log. Every follower must end with the leader's chain tip
+ * and balances and a valid chain, or the run exits with status 1. The run
+ * is written as JSON.
+ */
+public class ReplicationBenchmark {
+    private static final int FOLLOWERS = Integer.getInteger("crosspay.repl.followers", 3);
+    private static final int ACCOUNTS = Integer.getInteger("crosspay.repl.accounts", 100);
+    private static final int BLOCKS = Integer.getInteger("crosspay.repl.blocks", 100);
+    private static final int BLOCK_TRANSACTIONS = Integer.getInteger("crosspay.repl.blockTransactions", 500);
+    private static final int LIVE_BLOCKS = Integer.getInteger("crosspay.repl.liveBlocks", 50);
+    private static final int LIVE_TRANSACTIONS = Integer.getInteger("crosspay.repl.liveTransactions", 100);
+    private static final long LIVE_INTERVAL_MILLIS = Long.getLong("crosspay.repl.liveIntervalMs", 100);
+    private static final long TIMEOUT_MILLIS = Long.getLong("crosspay.repl.timeoutMs", 300_000);
+
+    private final Path directory;
+    private final List<Follower> followers = new ArrayList<>();
+    private Blockchain leader;
+    private ReplicationServer server;
+
+    private ReplicationBenchmark(Path directory) {
+        this.directory = directory;
+    }
+
+    public static void main(String[] args) throws Exception {
+        Path directory = Files.createTempDirectory("crosspay-replication");
+        ReplicationBenchmark benchmark = new ReplicationBenchmark(directory);
+        JSONObject report = benchmark.run();
+        benchmark.print(report);
+
+        String base = System.getProperty("crosspay.repl.result", "replication-" + System.currentTimeMillis());
+        Files.write(Paths.get(base + ".json"), report.toString(2).getBytes(StandardCharsets.UTF_8));
+        System.out.println("Results written to " + base + ".json, ledgers in " + directory);
+        System.exit(report.getBoolean("consistent") ? 0 : 1);
+    }
+
+    private JSONObject run() throws Exception {
+        // History, before any follower exists
+        leader = new Blockchain(new LedgerLog(directory.resolve("leader")), null, new FxEngine());
+        leader.setKeyRegistry(new KeyRegistry(false)); // Unsigned transfers between the benchmark's accounts
+        long start = System.nanoTime();
+        for (int i = 0; i < ACCOUNTS; i++) {
+            leader.deposit(account(i), new BigDecimal("1000000000"));
+        }
+        for (int i = 0; i < BLOCKS; i++) {
+            mine(BLOCK_TRANSACTIONS, i);
+        }
+        ReplicationLog records = leader.getReplicationLog();
+        JSONObject history = new JSONObject();
+        history.put("blocks", leader.getChain().size());
+        history.put("transactions", (long) BLOCKS * BLOCK_TRANSACTIONS);
+        history.put("records", records.size());
+        history.put("bytes", records.getBytes());
+        history.put("buildSeconds", (System.nanoTime() - start) / 1e9);
+
+        server = new ReplicationServer(leader, new InetSocketAddress("127.0.0.1", 0));
+        server.start();
+
+        // Catch-up: every follower starts empty at once
+        start = System.nanoTime();
+        for (int i = 0; i < FOLLOWERS; i++) {
+            Follower follower = new Follower(directory.resolve("follower-" + i));
+            follower.start();
+            followers.add(follower);
+        }
+        awaitFollowers();
+        double catchUpSeconds = (System.nanoTime() - start) / 1e9;
+        JSONArray catchUp = new JSONArray();
+        for (Follower follower : followers) {
+            catchUp.put(toJSON(follower.client.getLastCatchUp()));
+        }
+
+        // Live: blocks arrive at a fixed interval while followers are current
+        for (int i = 0; i < LIVE_BLOCKS; i++) {
+            long next = System.nanoTime() + LIVE_INTERVAL_MILLIS * 1_000_000;
+            mine(LIVE_TRANSACTIONS, BLOCKS + i);
+            long wait = next - System.nanoTime();
+            if (wait > 0) Thread.sleep(wait / 1_000_000, (int) (wait % 1_000_000));
+        }
+        awaitFollowers();
+        JSONArray lag = new JSONArray();
+        for (Follower follower : followers) {
+            lag.put(percentiles(follower.client.getLagMicros()));
+        }
+
+        // Resume: a stopped follower restarts from its own log
+        Follower stopped = followers.get(0);
+        stopped.stop();
+        int resumeBlocks = Math.max(1, LIVE_BLOCKS / 2);
+        for (int i = 0; i < resumeBlocks; i++) {
+            mine(BLOCK_TRANSACTIONS, BLOCKS + LIVE_BLOCKS + i);
+        }
+        Follower resumed = new Follower(stopped.directory);
+        followers.set(0, resumed);
+        int resumedFrom = resumed.blockchain.getReplicationLog().size();
+        resumed.start();
+        awaitFollowers();
+        JSONObject resume = toJSON(resumed.client.getLastCatchUp());
+        resume.put("fromRecord", resumedFrom);
+
+        JSONObject config = new JSONObject();
+        config.put("followers", FOLLOWERS);
+        config.put("accounts", ACCOUNTS);
+        config.put("blocks", BLOCKS);
+        config.put("blockTransactions", BLOCK_TRANSACTIONS);
+        config.put("liveBlocks", LIVE_BLOCKS);
+        config.put("liveTransactions", LIVE_TRANSACTIONS);
+        config.put("liveIntervalMs", LIVE_INTERVAL_MILLIS);
+        config.put("window", Integer.getInteger("crosspay.replication.window", 8));
+        config.put("batch", Integer.getInteger("crosspay.replication.batch", 256));
+        config.put("durability", System.getProperty("crosspay.log.durability", "sync"));
+
+        JSONObject report = new JSONObject();
+        report.put("config", config);
+        report.put("history", history);
+        report.put("catchUpWallSeconds", catchUpSeconds);
+        report.put("catchUp", catchUp);
+        report.put("liveLagMs", lag);
+        report.put("resume", resume);
+        report.put("consistent", verify(report));
+        return report;
+    }
+
+    /**
+     * Submit and mine one block of transfers between the funded accounts
+     */
+    private void mine(int transactions, int round) {
+        List<Transaction> batch = new ArrayList<>(transactions);
+        for (int i = 0; i < transactions; i++) {
+            int sender = (round * 31 + i) % ACCOUNTS;
+            batch.add(new Transaction(account(sender), account((sender + 1 + i % 7) % ACCOUNTS),
+                                      new BigDecimal("12.34"), "USD", "United States", "United Kingdom"));
+        }
+        leader.createTransactions(batch);
+        while (leader.getMempool().size() > 0) {
+            leader.minePendingTransactions("miner@bench.com");
+        }
+    }
+
+    private void awaitFollowers() throws InterruptedException {
+        long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        int target = leader.getReplicationLog().available();
+        for (Follower follower : followers) {
+            while (follower.blockchain.getReplicationLog().size() < target || !follower.client.isCaughtUp()) {
+                if (follower.client.getFailure() != null) {
+                    throw new IllegalStateException(follower.client.getFailure());
+                }
+                if (System.currentTimeMillis() > deadline) {
+                    throw new IllegalStateException("Followers did not reach record " + target + " in time");
+                }
+                Thread.sleep(5);
+            }
+        }
+    }
+
+    /**
+     * Every follower must hold the leader's tip and balances and a valid chain
+     */
+    private boolean verify(JSONObject report) {
+        boolean consistent = true;
+        JSONArray checks = new JSONArray();
+        for (int i = 0; i < followers.size(); i++) {
+            Blockchain follower = followers.get(i).blockchain;
+            JSONObject check = new JSONObject();
+            check.put("follower", i);
+            check.put("tip", follower.getLatestBlock().getHash().equals(leader.getLatestBlock().getHash()));
+            check.put("balances", follower.getAllBalances().equals(leader.getAllBalances()));
+            check.put("valid", follower.isChainValid());
+            consistent &= check.getBoolean("tip") && check.getBoolean("balances") && check.getBoolean("valid");
+            checks.put(check);
+        }
+        report.put("checks", checks);
+        return consistent;
+    }
+
+    private void print(JSONObject report) {
+        JSONObject history = report.getJSONObject("history");
+        System.out.printf("%nHistory: %d blocks, %d transactions, %d records, %.1f MB encoded%n",
+                          history.getInt("blocks"), history.getLong("transactions"), history.getInt("records"),
+                          history.getLong("bytes") / (1024.0 * 1024));
+        System.out.printf("%-10s %10s %12s %12s %10s %12s %12s %12s%n",
+                          "Follower", "catch-up s", "records/s", "tx/s", "MB/s", "lag p50 ms", "lag p99 ms", "lag max ms");
+        JSONArray catchUp = report.getJSONArray("catchUp");
+        JSONArray lag = report.getJSONArray("liveLagMs");
+        for (int i = 0; i < catchUp.length(); i++) {
+            JSONObject c = catchUp.getJSONObject(i);
+            JSONObject l = lag.getJSONObject(i);
+            System.out.printf("%-10d %10.2f %,12.0f %,12.0f %10.1f %12.2f %12.2f %12.2f%n", i,
+                              c.getDouble("seconds"), c.getDouble("recordsPerSecond"),
+                              c.getDouble("transactionsPerSecond"), c.getDouble("megabytesPerSecond"),
+                              l.getDouble("p50"), l.getDouble("p99"), l.getDouble("max"));
+        }
+        JSONObject resume = report.getJSONObject("resume");
+        System.out.printf("Resume from record %d: %d records in %.2fs (%,.0f tx/s)%n", resume.getInt("fromRecord"),
+                          resume.getLong("records"), resume.getDouble("seconds"),
+                          resume.getDouble("transactionsPerSecond"));
+        System.out.println("Followers consistent with the leader: " + report.getBoolean("consistent"));
+    }
+
+    private static JSONObject toJSON(ReplicationClient.CatchUp catchUp) {
+        JSONObject json = new JSONObject();
+        json.put("records", catchUp == null ? 0 : catchUp.getRecords());
+        json.put("transactions", catchUp == null ? 0 : catchUp.getTransactions());
+        json.put("bytes", catchUp == null ? 0 : catchUp.getBytes());
+        json.put("seconds", catchUp == null ? 0 : catchUp.getSeconds());
+        json.put("recordsPerSecond", catchUp == null ? 0 : catchUp.getRecordsPerSecond());
+        json.put("transactionsPerSecond", catchUp == null ? 0 : catchUp.getTransactionsPerSecond());
+        json.put("megabytesPerSecond", catchUp == null ? 0 : catchUp.getBytesPerSecond() / (1024 * 1024));
+        return json;
+    }
+
+    private static JSONObject percentiles(LatencyHistogram micros) {
+        JSONObject json = new JSONObject();
+        json.put("count", micros.getCount());
+        json.put("p50", micros.getPercentile(50) / 1000.0);
+        json.put("p90", micros.getPercentile(90) / 1000.0);
+        json.put("p99", micros.getPercentile(99) / 1000.0);
+        json.put("max", micros.getMax() / 1000.0);
+        return json;
+    }
+
+    private static String account(int i) {
+        return "account" + i + "@bench.com";
+    }
+
+    /**
+     * A follower node: its own ledger log and blockchain, replicating from the leader
+     */
+    private final class Follower {
+        final Path directory;
+        final LedgerLog log;
+        final Blockchain blockchain;
+        final ReplicationClient client;
+
+        Follower(Path directory) throws IOException {
+            this.directory = directory;
+            this.log = new LedgerLog(directory);
+            this.blockchain = new Blockchain(log, null, new FxEngine(), false);
+            this.client = new ReplicationClient(blockchain, new InetSocketAddress("127.0.0.1", server.getPort()));
+        }
+
+        void start() {
+            client.start();
+        }
+
+        void stop() throws IOException {
+            client.close();
+            log.close();
+        }
+    }
+}
@@ -0,0 +1,447 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Follows a leader's {@link ReplicationServer}, applying its records to a
+ * local blockchain.
+ *
+ * The network thread keeps window fetches of batch records outstanding,
+ * so a lagging follower catches up in pipelined round trips while a
+ * current one has new records pushed to it. Received frames are handed
+ * to an apply thread through a bounded queue, so decoding and validating
+ * one batch overlaps fetching the next, and a slow apply stops reads and
+ * lets TCP push back on the leader. After a dropped connection the
+ * follower waits for its queue to drain and reconnects from the records
+ * it has; a block that fails validation or an ERROR from the leader stops
+ * replication for good.
+ *
+ * Replication lag, from the leader appending a record to this node
+ * applying it, is recorded once the follower has caught up, so it
+ * measures live replication; catch-up is reported as throughput instead.
+ * The lag compares two clocks, so across hosts it includes their skew.
+ */
+public class ReplicationClient implements Closeable {
+    private final Blockchain blockchain;
+    private final InetSocketAddress leader;
+    private final int window;
+    private final int batch;
+    private final long retryMillis;
+    private final BlockingQueue<Batch> applyQueue;
+    private final AtomicInteger unapplied = new AtomicInteger(); // Batches received, not yet applied
+    private final Thread network;
+    private final Thread applier;
+    private final MetricsRegistry.Counter recordsApplied;
+    private final MetricsRegistry.Counter transactionsApplied;
+    private final MetricsRegistry.Counter bytesReceived;
+    private final LatencyHistogram lagMicros;
+    private volatile boolean closed;
+    private volatile boolean connected;
+    private volatile boolean caughtUp;
+    private volatile int leaderRecords;
+    private volatile String failure;
+    private volatile CatchUp lastCatchUp;
+    private volatile SocketChannel channel;
+    private volatile long welcomedAtNanos;
+
+    // Catch-up in progress; written by the apply thread only
+    private long catchUpStartNanos;
+    private long catchUpRecords;
+    private long catchUpTransactions;
+    private long catchUpBytes;
+
+    public ReplicationClient(Blockchain blockchain, InetSocketAddress leader) {
+        this(blockchain, leader,
+             Integer.getInteger("crosspay.replication.window", 8),
+             Integer.getInteger("crosspay.replication.batch", 256),
+             Long.getLong("crosspay.replication.retryMs", 1000));
+    }
+
+    public ReplicationClient(Blockchain blockchain, InetSocketAddress leader, int window, int batch, long retryMillis) {
+        if (window < 1 || batch < 1) {
+            throw new IllegalArgumentException("Replication needs a positive fetch window and batch");
+        }
+        this.blockchain = blockchain;
+        this.leader = leader;
+        this.window = window;
+        this.batch = batch;
+        this.retryMillis = retryMillis;
+        this.applyQueue = new ArrayBlockingQueue<>(window * 2);
+
+        MetricsRegistry registry = blockchain.getMetrics().getRegistry();
+        registry.gauge("crosspay_replication_connected", "1 while connected to the leader", () -> connected ? 1 : 0);
+        registry.gauge("crosspay_replication_records_behind", "Records the leader has that this node has not applied",
+            this::getRecordsBehind);
+        recordsApplied = registry.counter("crosspay_replication_records_applied_total",
+            "Ledger records applied from the leader");
+        transactionsApplied = registry.counter("crosspay_replication_transactions_applied_total",
+            "Transactions in blocks applied from the leader");
+        bytesReceived = registry.counter("crosspay_replication_bytes_received_total",
+            "Replication bytes received from the leader");
+        lagMicros = registry.summary("crosspay_replication_lag_seconds",
+            "Time from the leader appending a record until it is applied here, once caught up", 1_000_000);
+        registry.gauge("crosspay_replication_catchup_records_per_second", "Records applied per second in the last catch-up",
+            () -> lastCatchUp == null ? 0 : lastCatchUp.getRecordsPerSecond());
+        registry.gauge("crosspay_replication_catchup_transactions_per_second",
+            "Transactions applied per second in the last catch-up",
+            () -> lastCatchUp == null ? 0 : lastCatchUp.getTransactionsPerSecond());
+
+        this.network = new Thread(this::run, "replication-follower");
+        this.network.setDaemon(true);
+        this.applier = new Thread(this::applyLoop, "replication-apply");
+        this.applier.setDaemon(true);
+    }
+
+    public void start() {
+        applier.start();
+        network.start();
+    }
+
+    public InetSocketAddress getLeader() {
+        return leader;
+    }
+
+    public boolean isConnected() {
+        return connected;
+    }
+
+    /**
+     * Whether every record the leader had at last report has been applied
+     */
+    public boolean isCaughtUp() {
+        return caughtUp && unapplied.get() == 0;
+    }
+
+    public int getLeaderRecords() {
+        return leaderRecords;
+    }
+
+    public int getRecordsBehind() {
+        return Math.max(0, leaderRecords - blockchain.getReplicationLog().size());
+    }
+
+    /**
+     * Why replication stopped for good, or null while it runs
+     */
+    public String getFailure() {
+        return failure;
+    }
+
+    public LatencyHistogram getLagMicros() {
+        return lagMicros;
+    }
+
+    /**
+     * The last completed catch-up, or null if the follower has never been behind
+     */
+    public CatchUp getLastCatchUp() {
+        return lastCatchUp;
+    }
+
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        network.interrupt();
+        applier.interrupt();
+        SocketChannel current = channel;
+        if (current != null) current.close();
+    }
+
+    private void run() {
+        while (!closed && failure == null) {
+            try {
+                session();
+            } catch (IOException e) {
+                if (!closed) System.out.println("Replication from " + hostPort() + " interrupted: " + e.getMessage());
+            } catch (InterruptedException e) {
+                return;
+            } finally {
+                connected = false;
+                caughtUp = false;
+            }
+            if (closed || failure != null) return;
+            try {
+                Thread.sleep(retryMillis);
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * One connection to the leader, from HELLO until it fails
+     */
+    private void session() throws IOException, InterruptedException {
+        // Records already queued must be applied before the resume point is known
+        while (unapplied.get() > 0 && failure == null) {
+            Thread.sleep(10);
+        }
+        if (failure != null) return;
+
+        try (SocketChannel socket = SocketChannel.open(); Selector selector = Selector.open()) {
+            channel = socket;
+            socket.socket().setTcpNoDelay(true);
+            socket.socket().setReceiveBufferSize(1024 * 1024);
+            socket.connect(leader);
+            socket.configureBlocking(false);
+            socket.register(selector, SelectionKey.OP_READ);
+
+            List<Block> chain = blockchain.getChain();
+            int next = blockchain.getReplicationLog().size();
+            int height = chain.size() - 1;
+            byte[] tipHash = height < 0 ? null : chain.get(height).getHash().getBytes(StandardCharsets.UTF_8);
+            ByteBuffer hello = ByteBuffer.allocate(5 + 16 + (tipHash == null ? 0 : tipHash.length));
+            hello.putInt(hello.capacity() - 4).put(ReplicationServer.HELLO).putInt(ReplicationServer.VERSION)
+                 .putInt(next).putInt(height).putInt(tipHash == null ? -1 : tipHash.length);
+            if (tipHash != null) hello.put(tipHash);
+            send(socket, hello);
+
+            ByteBuffer in = ByteBuffer.allocate(64 * 1024);
+            int requestedTo = next;
+            boolean welcomed = false;
+            while (!closed && failure == null) {
+                selector.select(1000);
+                selector.selectedKeys().clear();
+                int read = socket.read(in);
+                if (read < 0) throw new IOException("leader closed the connection");
+                bytesReceived.add(read);
+
+                in.flip();
+                while (in.remaining() >= 4) {
+                    int length = in.getInt(in.position());
+                    if (length < 1) throw new IOException("bad frame length " + length);
+                    if (in.remaining() < 4 + length) {
+                        if (4 + length > in.capacity()) {
+                            in = grow(in, 4 + length);
+                        }
+                        break;
+                    }
+                    in.getInt();
+                    byte type = in.get();
+                    ByteBuffer body = in.slice();
+                    body.limit(length - 1);
+                    in.position(in.position() + length - 1);
+
+                    if (type == ReplicationServer.WELCOME) {
+                        leaderRecords = body.getInt();
+                        welcomedAtNanos = System.nanoTime();
+                        welcomed = true;
+                        connected = true;
+                        caughtUp = next >= leaderRecords;
+                        System.out.println("Replicating from " + hostPort() + " at record " + next + " of " + leaderRecords);
+                    } else if (type == ReplicationServer.RECORDS && welcomed) {
+                        next = receive(body, next);
+                    } else if (type == ReplicationServer.ERROR) {
+                        failure = "Leader refused replication: " + ReplicationServer.readString(body);
+                        System.out.println(failure);
+                        return;
+                    } else {
+                        throw new IOException("unexpected frame type " + type);
+                    }
+                }
+                if (in.hasRemaining()) {
+                    in.compact();
+                } else {
+                    in.clear();
+                }
+
+                // Keep the fetch window full; fetches past the leader's tip are answered as it grows
+                if (welcomed) {
+                    while (requestedTo - next < window * batch) {
+                        ByteBuffer fetch = ByteBuffer.allocate(13);
+                        fetch.putInt(9).put(ReplicationServer.FETCH).putInt(requestedTo).putInt(batch);
+                        send(socket, fetch);
+                        requestedTo += batch;
+                    }
+                }
+            }
+        } finally {
+            channel = null;
+        }
+    }
+
+    /**
+     * Queue one RECORDS frame for the apply thread
+     *
+     * @return the number of the record after the frame's last
+     */
+    private int receive(ByteBuffer body, int next) throws IOException, InterruptedException {
+        int from = body.getInt();
+        int available = body.getInt();
+        int count = body.getInt();
+        if (from != next) {
+            throw new IOException("leader sent records from " + from + ", expected " + next);
+        }
+        ReplicationLog.Record[] records = new ReplicationLog.Record[count];
+        for (int i = 0; i < count; i++) {
+            byte type = body.get();
+            long appendedAt = body.getLong();
+            byte[] payload = new byte[body.getInt()];
+            body.get(payload);
+            records[i] = new ReplicationLog.Record(type, payload, appendedAt, 0);
+        }
+
+        boolean live = caughtUp;
+        leaderRecords = Math.max(leaderRecords, available);
+        int end = from + count;
+        if (!caughtUp && end >= leaderRecords) {
+            caughtUp = true;
+        }
+        unapplied.incrementAndGet();
+        applyQueue.put(new Batch(records, live, !live && caughtUp));
+        return end;
+    }
+
+    private void applyLoop() {
+        while (!closed) {
+            Batch next;
+            try {
+                next = applyQueue.take();
+            } catch (InterruptedException e) {
+                return;
+            }
+            try {
+                apply(next);
+            } catch (RuntimeException e) {
+                failure = "Replication stopped: " + e.getMessage();
+                System.out.println(failure);
+                applyQueue.clear();
+                unapplied.set(0);
+                SocketChannel current = channel;
+                try {
+                    if (current != null) current.close();
+                } catch (IOException ignored) {
+                }
+                return;
+            }
+            unapplied.decrementAndGet();
+        }
+    }
+
+    private void apply(Batch batch) {
+        if (!batch.live && catchUpStartNanos == 0) {
+            catchUpStartNanos = welcomedAtNanos;
+        }
+        int transactions = blockchain.applyReplicated(Arrays.asList(batch.records));
+        recordsApplied.add(batch.records.length);
+        transactionsApplied.add(transactions);
+        if (batch.live) {
+            long now = ReplicationLog.now();
+            for (ReplicationLog.Record record : batch.records) {
+                if (record.getAppendedAt() > 0) {
+                    lagMicros.record(Math.max(0, now - record.getAppendedAt()));
+                }
+            }
+        } else {
+            catchUpRecords += batch.records.length;
+            catchUpTransactions += transactions;
+            for (ReplicationLog.Record record : batch.records) {
+                catchUpBytes += record.getPayload().length;
+            }
+        }
+        if (batch.completesCatchUp) {
+            lastCatchUp = new CatchUp(catchUpRecords, catchUpTransactions, catchUpBytes,
+                                      System.nanoTime() - catchUpStartNanos);
+            System.out.println("Caught up with " + hostPort() + ": " + lastCatchUp);
+            catchUpStartNanos = 0;
+            catchUpRecords = 0;
+            catchUpTransactions = 0;
+            catchUpBytes = 0;
+        }
+    }
+
+    private static void send(SocketChannel socket, ByteBuffer frame) throws IOException {
+        frame.flip();
+        while (frame.hasRemaining()) {
+            if (socket.write(frame) == 0) Thread.onSpinWait();
+        }
+    }
+
+    private static ByteBuffer grow(ByteBuffer in, int capacity) {
+        ByteBuffer larger = ByteBuffer.allocate(Math.max(capacity, in.capacity() * 2));
+        larger.put(in);
+        larger.flip();
+        return larger;
+    }
+
+    private String hostPort() {
+        return leader.getHostString() + ":" + leader.getPort();
+    }
+
+    /**
+     * Records the leader sent together, and whether they arrived after the follower caught up
+     */
+    private static final class Batch {
+        final ReplicationLog.Record[] records;
+        final boolean live;
+        final boolean completesCatchUp;
+
+        Batch(ReplicationLog.Record[] records, boolean live, boolean completesCatchUp) {
+            this.records = records;
+            this.live = live;
+            this.completesCatchUp = completesCatchUp;
+        }
+    }
+
+    /**
+     * Throughput of one catch-up, from the leader's welcome until its last record is applied
+     */
+    public static final class CatchUp {
+        private final long records;
+        private final long transactions;
+        private final long bytes;
+        private final long elapsedNanos;
+
+        CatchUp(long records, long transactions, long bytes, long elapsedNanos) {
+            this.records = records;
+            this.transactions = transactions;
+            this.bytes = bytes;
+            this.elapsedNanos = Math.max(1, elapsedNanos);
+        }
+
+        public long getRecords() {
+            return records;
+        }
+
+        public long getTransactions() {
+            return transactions;
+        }
+
+        public long getBytes() {
+            return bytes;
+        }
+
+        public double getSeconds() {
+            return elapsedNanos / 1e9;
+        }
+
+        public double getRecordsPerSecond() {
+            return records * 1e9 / elapsedNanos;
+        }
+
+        public double getTransactionsPerSecond() {
+            return transactions * 1e9 / elapsedNanos;
+        }
+
+        public double getBytesPerSecond() {
+            return bytes * 1e9 / elapsedNanos;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%d records, %d transactions in %.2fs (%.0f records/s, %.0f tx/s, %.1f MB/s)",
+                                 records, transactions, getSeconds(), getRecordsPerSecond(),
+                                 getTransactionsPerSecond(), getBytesPerSecond() / (1024 * 1024));
+        }
+    }
+}
@@ -0,0 +1,126 @@
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * The ordered stream of ledger records a node serves to its followers.
+ *
+ * Every block, in the {@link BlockCodec} encoding with its miner, and every
+ * deposit is kept in ledger log order and numbered from 0, so a follower
+ * that has applied n records asks for record n next and applying the
+ * stream rebuilds the chain and balances exactly. Records of a node with a
+ * ledger log become available to followers only once fsynced, so no
+ * follower ever holds a record its leader could lose in a crash.
+ */
+public class ReplicationLog {
+    private final LedgerLog log;
+    private final List<Record> records = new ArrayList<>();
+    private final List<Runnable> listeners = new CopyOnWriteArrayList<>();
+    private long bytes;
+
+    /**
+     * @param log the node's ledger log, or null for an in-memory chain
+     */
+    public ReplicationLog(LedgerLog log) {
+        this.log = log;
+    }
+
+    /**
+     * Microseconds since the epoch, the unit of {@link Record#getAppendedAt}
+     */
+    public static long now() {
+        Instant now = Instant.now();
+        return now.getEpochSecond() * 1_000_000 + now.getNano() / 1000;
+    }
+
+    synchronized void append(Record record) {
+        records.add(record);
+        bytes += record.payload.length;
+    }
+
+    /**
+     * Number of records followers may read: all of them, less any tail not
+     * yet flushed to the ledger log
+     */
+    public int available() {
+        long flushed = log == null ? Long.MAX_VALUE : log.getFlushedBytes();
+        synchronized (this) {
+            int count = records.size();
+            while (count > 0 && records.get(count - 1).logEnd > flushed) {
+                count--;
+            }
+            return count;
+        }
+    }
+
+    public synchronized int size() {
+        return records.size();
+    }
+
+    public synchronized Record get(int index) {
+        return records.get(index);
+    }
+
+    /**
+     * Encoded size of every record held
+     */
+    public synchronized long getBytes() {
+        return bytes;
+    }
+
+    /**
+     * How often a record that is written but not yet available must be
+     * checked for, since flushes are not reported
+     */
+    long getPollMillis() {
+        return log == null ? 0 : Math.max(1, log.getFlushIntervalMillis());
+    }
+
+    /**
+     * Register a callback run after each record is appended, on the appending thread
+     */
+    public void addListener(Runnable listener) {
+        listeners.add(listener);
+    }
+
+    void notifyAppended() {
+        for (Runnable listener : listeners) {
+            try {
+                listener.run();
+            } catch (RuntimeException e) {
+                System.out.println("Replication listener failed: " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * One ledger record: a {@link LedgerLog#CODEC_BLOCK} or {@link LedgerLog#DEPOSIT}
+     * payload, with the time the chain's first node appended it
+     */
+    public static final class Record {
+        private final byte type;
+        private final byte[] payload;
+        private final long appendedAt;  // epoch micros, 0 if unknown, e.g. replayed from the log
+        private final long logEnd;      // ledger log position after the record, 0 if already durable
+
+        Record(byte type, byte[] payload, long appendedAt, long logEnd) {
+            this.type = type;
+            this.payload = payload;
+            this.appendedAt = appendedAt;
+            this.logEnd = logEnd;
+        }
+
+        public byte getType() {
+            return type;
+        }
+
+        public byte[] getPayload() {
+            return payload;
+        }
+
+        public long getAppendedAt() {
+            return appendedAt;
+        }
+    }
+}
@@ -0,0 +1,385 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Serves a node's {@link ReplicationLog} to followers over TCP.
+ *
+ * One selector thread handles every follower. A follower sends FETCH
+ * requests for ranges of record numbers, several at a time; they are
+ * answered in order with RECORDS frames of up to frameBytes each. A fetch
+ * reaching past the records available is parked and answered as records
+ * are appended, so a follower that keeps fetches outstanding beyond its
+ * leader's tip has new blocks pushed to it the moment they are durable,
+ * and catch-up and live replication are the same exchange. No more than
+ * maxQueuedBytes are queued for a follower that reads slowly.
+ *
+ * Frames are [int length][byte type][body], length covering type and body:
+ *   HELLO   follower -> leader  int version, int records, int height, string tip hash
+ *   WELCOME leader -> follower  int records available
+ *   FETCH   follower -> leader  int first record, int count
+ *   RECORDS leader -> follower  int first record, int records available, int count,
+ *                               count x (byte type, long appendedAt, int length, payload)
+ *   ERROR   leader -> follower  string message, then the leader closes the connection
+ * Strings are an int UTF-8 length, -1 for null, and the bytes.
+ */
+public class ReplicationServer implements Closeable {
+    static final int VERSION = 1;
+    static final byte HELLO = 1;
+    static final byte WELCOME = 2;
+    static final byte FETCH = 3;
+    static final byte RECORDS = 4;
+    static final byte ERROR = 5;
+    static final int MAX_REQUEST_BYTES = 4096;
+
+    private static final int RECORDS_HEADER = 4 + 1 + 12;
+    private static final int RECORD_HEADER = 1 + 8 + 4;
+
+    private final Blockchain blockchain;
+    private final ReplicationLog records;
+    private final int frameBytes;
+    private final long maxQueuedBytes;
+    private final ServerSocketChannel serverChannel;
+    private final Selector selector;
+    private final Thread thread;
+    private final Set<Follower> followers = ConcurrentHashMap.newKeySet();
+    private final MetricsRegistry.Counter recordsSent;
+    private final MetricsRegistry.Counter bytesSent;
+    private volatile boolean closed;
+
+    public ReplicationServer(Blockchain blockchain, InetSocketAddress address) throws IOException {
+        this(blockchain, address,
+             Integer.getInteger("crosspay.replication.frameBytes", 1024 * 1024),
+             Long.getLong("crosspay.replication.maxQueuedBytes", 8L * 1024 * 1024));
+    }
+
+    public ReplicationServer(Blockchain blockchain, InetSocketAddress address, int frameBytes, long maxQueuedBytes)
+            throws IOException {
+        this.blockchain = blockchain;
+        this.records = blockchain.getReplicationLog();
+        this.frameBytes = frameBytes;
+        this.maxQueuedBytes = maxQueuedBytes;
+        this.selector = Selector.open();
+        this.serverChannel = ServerSocketChannel.open();
+        serverChannel.bind(address);
+        serverChannel.configureBlocking(false);
+        serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+
+        MetricsRegistry registry = blockchain.getMetrics().getRegistry();
+        registry.gauge("crosspay_replication_followers", "Followers connected to this node", followers::size);
+        recordsSent = registry.counter("crosspay_replication_records_sent_total", "Ledger records sent to followers");
+        bytesSent = registry.counter("crosspay_replication_bytes_sent_total", "Replication bytes sent to followers");
+
+        this.thread = new Thread(this::run, "replication-server");
+        this.thread.setDaemon(true);
+        records.addListener(selector::wakeup);
+    }
+
+    public void start() {
+        thread.start();
+        System.out.println("Replication server listening on port " + getPort());
+    }
+
+    public int getPort() {
+        return serverChannel.socket().getLocalPort();
+    }
+
+    /**
+     * Connected followers, with the next record each will be sent
+     */
+    public List<FollowerStatus> getFollowers() {
+        List<FollowerStatus> result = new ArrayList<>();
+        for (Follower follower : followers) {
+            result.add(new FollowerStatus(follower.address, follower.next, follower.requestedTo));
+        }
+        return result;
+    }
+
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        selector.wakeup();
+        try {
+            thread.join(1000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        serverChannel.close();
+        selector.close();
+    }
+
+    private void run() {
+        while (!closed) {
+            try {
+                int available = records.available();
+                boolean unflushed = false;
+                for (Follower follower : followers) {
+                    serve(follower, available);
+                    unflushed |= follower.requestedTo > available && records.size() > available;
+                }
+
+                // Flushes are not reported, so poll while a waiting fetch is held back by one
+                selector.select(unflushed ? records.getPollMillis() : 0);
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    if (!key.isValid()) continue;
+                    if (key.isAcceptable()) {
+                        accept();
+                        continue;
+                    }
+                    Follower follower = (Follower) key.attachment();
+                    try {
+                        if (key.isReadable()) read(follower);
+                        if (key.isValid() && key.isWritable()) write(follower);
+                    } catch (IOException | RuntimeException e) {
+                        disconnect(follower, e.getMessage());
+                    }
+                }
+            } catch (IOException e) {
+                if (!closed) System.out.println("Replication server error: " + e.getMessage());
+            }
+        }
+        for (Follower follower : followers) {
+            disconnect(follower, null);
+        }
+    }
+
+    private void accept() throws IOException {
+        SocketChannel channel = serverChannel.accept();
+        if (channel == null) return;
+        channel.configureBlocking(false);
+        channel.socket().setTcpNoDelay(true);
+        Follower follower = new Follower(channel, String.valueOf(channel.getRemoteAddress()));
+        follower.key = channel.register(selector, SelectionKey.OP_READ, follower);
+        followers.add(follower);
+    }
+
+    private void disconnect(Follower follower, String reason) {
+        if (!followers.remove(follower)) return;
+        follower.key.cancel();
+        try {
+            follower.channel.close();
+        } catch (IOException ignored) {
+        }
+        if (reason != null) {
+            System.out.println("Follower " + follower.address + " disconnected: " + reason);
+        }
+    }
+
+    private void read(Follower follower) throws IOException {
+        ByteBuffer in = follower.in;
+        if (follower.channel.read(in) < 0) {
+            throw new IOException("connection closed");
+        }
+        in.flip();
+        while (in.remaining() >= 5) {
+            int length = in.getInt(in.position());
+            if (length < 1 || length > MAX_REQUEST_BYTES - 4) {
+                throw new IOException("bad frame length " + length);
+            }
+            if (in.remaining() < 4 + length) break;
+            in.getInt();
+            byte type = in.get();
+            ByteBuffer body = in.slice();
+            body.limit(length - 1);
+            in.position(in.position() + length - 1);
+            handle(follower, type, body);
+        }
+        in.compact();
+    }
+
+    private void handle(Follower follower, byte type, ByteBuffer body) throws IOException {
+        if (type == HELLO) {
+            int version = body.getInt();
+            int count = body.getInt();
+            int height = body.getInt();
+            String tipHash = readString(body);
+            String problem = checkHello(version, count, height, tipHash);
+            if (problem != null) {
+                byte[] message = problem.getBytes(StandardCharsets.UTF_8);
+                ByteBuffer frame = frame(ERROR, 4 + message.length);
+                frame.putInt(message.length).put(message);
+                follower.closeAfterWrite = true;
+                queue(follower, frame);
+                System.out.println("Refused follower " + follower.address + ": " + problem);
+                return;
+            }
+            follower.next = count;
+            follower.requestedTo = count;
+            follower.welcomed = true;
+            ByteBuffer frame = frame(WELCOME, 4);
+            frame.putInt(records.available());
+            queue(follower, frame);
+            System.out.println("Follower " + follower.address + " connected at record " + count);
+        } else if (follower.closeAfterWrite) {
+            return;
+        } else if (type == FETCH && follower.welcomed) {
+            int from = body.getInt();
+            int count = body.getInt();
+            if (from != follower.requestedTo || count < 1) {
+                throw new IOException("fetch of " + count + " from " + from + " does not follow " + follower.requestedTo);
+            }
+            follower.requestedTo += count;
+        } else {
+            throw new IOException("unexpected frame type " + type);
+        }
+    }
+
+    /**
+     * @return why a follower may not continue from where it is, or null if it may
+     */
+    private String checkHello(int version, int count, int height, String tipHash) {
+        if (version != VERSION) {
+            return "replication protocol version " + version + " is not " + VERSION;
+        }
+        if (count < 0 || count > records.available()) {
+            return "follower has " + count + " records, more than the leader's " + records.available();
+        }
+        List<Block> chain = blockchain.getChain();
+        if (height >= 0 && (height >= chain.size() || !chain.get(height).getHash().equals(tipHash))) {
+            return "follower's block at height " + height + " is not on the leader's chain";
+        }
+        return null;
+    }
+
+    /**
+     * Answer as much of a follower's outstanding fetches as is available,
+     * until its output queue is full
+     */
+    private void serve(Follower follower, int available) {
+        while (follower.welcomed && follower.next < Math.min(follower.requestedTo, available) &&
+               follower.queued < maxQueuedBytes) {
+            int from = follower.next;
+            int to = Math.min(follower.requestedTo, available);
+            int size = RECORDS_HEADER;
+            int end = from;
+            while (end < to) {
+                int recordSize = RECORD_HEADER + records.get(end).getPayload().length;
+                if (end > from && size + recordSize > frameBytes) break;
+                size += recordSize;
+                end++;
+            }
+
+            ByteBuffer frame = frame(RECORDS, size - 5);
+            frame.putInt(from).putInt(available).putInt(end - from);
+            for (int i = from; i < end; i++) {
+                ReplicationLog.Record record = records.get(i);
+                frame.put(record.getType()).putLong(record.getAppendedAt())
+                     .putInt(record.getPayload().length).put(record.getPayload());
+            }
+            follower.next = end;
+            recordsSent.add(end - from);
+            queue(follower, frame);
+        }
+    }
+
+    private void queue(Follower follower, ByteBuffer frame) {
+        frame.flip();
+        follower.out.add(frame);
+        follower.queued += frame.remaining();
+        try {
+            write(follower);
+        } catch (IOException e) {
+            disconnect(follower, e.getMessage());
+        }
+    }
+
+    private void write(Follower follower) throws IOException {
+        while (!follower.out.isEmpty()) {
+            ByteBuffer head = follower.out.peek();
+            int written = follower.channel.write(head);
+            follower.queued -= written;
+            bytesSent.add(written);
+            if (head.hasRemaining()) break;
+            follower.out.poll();
+        }
+        if (follower.out.isEmpty() && follower.closeAfterWrite) {
+            disconnect(follower, null);
+            return;
+        }
+        if (follower.key.isValid()) {
+            follower.key.interestOps(follower.out.isEmpty() ? SelectionKey.OP_READ :
+                                     SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+        }
+    }
+
+    private static ByteBuffer frame(byte type, int bodyBytes) {
+        ByteBuffer frame = ByteBuffer.allocate(5 + bodyBytes);
+        frame.putInt(1 + bodyBytes).put(type);
+        return frame;
+    }
+
+    static String readString(ByteBuffer in) {
+        int length = in.getInt();
+        if (length < 0) return null;
+        if (length > in.remaining()) throw new IllegalArgumentException("String runs past the frame");
+        byte[] bytes = new byte[length];
+        in.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * One follower's position in the replication stream
+     */
+    public static final class FollowerStatus {
+        private final String address;
+        private final int nextRecord;
+        private final int requestedTo;
+
+        FollowerStatus(String address, int nextRecord, int requestedTo) {
+            this.address = address;
+            this.nextRecord = nextRecord;
+            this.requestedTo = requestedTo;
+        }
+
+        public String getAddress() {
+            return address;
+        }
+
+        /**
+         * Number of the next record to send, i.e. records sent since the follower's first
+         */
+        public int getNextRecord() {
+            return nextRecord;
+        }
+
+        /**
+         * End of the range the follower has fetched; beyond the tip, the fetch is parked
+         */
+        public int getRequestedTo() {
+            return requestedTo;
+        }
+    }
+
+    private static final class Follower {
+        final SocketChannel channel;
+        final String address;
+        final ByteBuffer in = ByteBuffer.allocate(MAX_REQUEST_BYTES);
+        final ArrayDeque<ByteBuffer> out = new ArrayDeque<>();
+        SelectionKey key;
+        long queued;
+        boolean welcomed;
+        boolean closeAfterWrite;
+        volatile int next;
+        volatile int requestedTo;
+
+        Follower(SocketChannel channel, String address) {
+            this.channel = channel;
+            this.address = address;
+        }
+    }
+}
@@ -0,0 +1,197 @@
+import com.sun.net.httpserver.Filter;
+import com.sun.net.httpserver.HttpExchange;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.reflect.Method;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Request executors for BlockchainServer.
+ *
+ * Modes, selected with -Dcrosspay.executor:
+ *   serial - the JDK default, one exchange at a time on the dispatcher thread
+ *   pool   - bounded platform thread pool (default)
+ *
+ * In pool mode at most threads + queue requests are admitted at once; the rest are answered with 503 by a separate rejection thread, so
+ * the dispatcher never blocks. Mining and chain validation run on their own
+ * small executor so they cannot starve cheap queries.
+ */
+public class ServerExecutors {
+    public enum Mode { SERIAL, POOL }
+
+    private static final ThreadLocal<Boolean> REJECTED = ThreadLocal.withInitial(() -> Boolean.FALSE);
+    private static final byte[] OVERLOADED =
+        "{\"error\":\"Server overloaded, retry later\"}".getBytes(StandardCharsets.UTF_8);
+
+    private final Mode mode;
+    private final Executor requestExecutor;
+    private final ThreadPoolExecutor longOperations;
+
+    public ServerExecutors() {
+        this(Mode.valueOf(System.getProperty("crosspay.executor", "pool").toUpperCase()),
+             Integer.getInteger("crosspay.executor.threads", 2 * Runtime.getRuntime().availableProcessors()),
+             Integer.getInteger("crosspay.executor.queue", 1000),
+             Integer.getInteger("crosspay.longops.threads", 1),
+             Integer.getInteger("crosspay.longops.queue", 16));
+    }
+
+    public ServerExecutors(Mode mode, int threads, int queue, int longOpThreads, int longOpQueue) {
+        ExecutorService delegate = null;
+        if (mode == Mode.POOL) {
+            delegate = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+                                              new LinkedBlockingQueue<>(), daemonThreads("http-worker"));
+        }
+
+        this.mode = mode;
+        this.requestExecutor = delegate == null ? null : new AdmissionExecutor(delegate, threads + queue);
+        this.longOperations = new ThreadPoolExecutor(longOpThreads, longOpThreads, 60, TimeUnit.SECONDS,
+                                                     new ArrayBlockingQueue<>(longOpQueue),
+                                                     daemonThreads("long-op"));
+    }
+
+    /**
+     * Executor to install on the HttpServer; null selects the JDK's serial dispatcher
+     */
+    public Executor getRequestExecutor() {
+        return requestExecutor;
+    }
+
+    public Mode getMode() {
+        return mode;
+    }
+
+    /**
+     * Filter answering requests that were not admitted with 503
+     */
+    public Filter admissionFilter() {
+        return new Filter() {
+            @Override
+            public void doFilter(HttpExchange exchange, Chain chain) throws IOException {
+                if (!REJECTED.get()) {
+                    chain.doFilter(exchange);
+                    return;
+                }
+                exchange.getResponseHeaders().set("Content-Type", "application/json");
+                exchange.getResponseHeaders().set("Retry-After", "1");
+                exchange.sendResponseHeaders(503, OVERLOADED.length);
+                try (OutputStream os = exchange.getResponseBody()) {
+                    os.write(OVERLOADED);
+                }
+            }
+
+            @Override
+            public String description() {
+                return "Admission control";
+            }
+        };
+    }
+
+    /**
+     * Run a long operation on the dedicated executor and wait for its result
+     *
+     * @throws RejectedExecutionException if the long-operation queue is full
+     */
+    public <T> T runLong(Callable<T> operation) throws Exception {
+        Future<T> future = longOperations.submit(operation);
+        try {
+            return future.get();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof Exception) throw (Exception) cause;
+            throw e;
+        } catch (InterruptedException e) {
+            future.cancel(true);
+            Thread.currentThread().interrupt();
+            throw e;
+        }
+    }
+
+    /**
+     * Executor for long-lived response streams, one thread each so a client
+     * that reads slowly blocks only its own stream: virtual threads on Java
+     * 21+, otherwise daemon platform threads
+     */
+    public static ExecutorService streamExecutor(String name) {
+        ExecutorService virtual = newVirtualThreadExecutor();
+        return virtual != null ? virtual : Executors.newCachedThreadPool(daemonThreads(name));
+    }
+
+    private static ExecutorService newVirtualThreadExecutor() {
+        try {
+            Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) factory.invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return null;
+        }
+    }
+
+    private static ThreadFactory daemonThreads(String name) {
+        AtomicInteger counter = new AtomicInteger();
+        return runnable -> {
+            Thread thread = new Thread(runnable, name + "-" + counter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+
+    /**
+     * Executor that admits a bounded number of exchanges and hands the rest
+     * to a single thread which only runs the 503 path of the admission filter
+     */
+    private static class AdmissionExecutor implements Executor {
+        private final Executor delegate;
+        private final Semaphore permits;
+        private final ExecutorService rejections;
+
+        AdmissionExecutor(Executor delegate, int maxInFlight) {
+            this.delegate = delegate;
+            this.permits = new Semaphore(maxInFlight);
+            this.rejections = Executors.newSingleThreadExecutor(daemonThreads("http-reject"));
+        }
+
+        @Override
+        public void execute(Runnable exchange) {
+            if (permits.tryAcquire()) {
+                try {
+                    delegate.execute(() -> {
+                        try {
+                            exchange.run();
+                        } finally {
+                            permits.release();
+                        }
+                    });
+                } catch (RejectedExecutionException e) {
+                    permits.release();
+                    reject(exchange);
+                }
+            } else {
+                reject(exchange);
+            }
+        }
+
+        private void reject(Runnable exchange) {
+            rejections.execute(() -> {
+                REJECTED.set(Boolean.TRUE);
+                try {
+                    exchange.run();
+                } finally {
+                    REJECTED.set(Boolean.FALSE);
+                }
+            });
+        }
+    }
+}
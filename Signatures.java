@@ -0,0 +1,192 @@
+import java.security.GeneralSecurityException;
+import java.security.KeyFactory;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.PrivateKey;
+import java.security.PublicKey;
+import java.security.Signature;
+import java.security.interfaces.ECPublicKey;
+import java.security.spec.ECGenParameterSpec;
+import java.security.spec.X509EncodedKeySpec;
+import java.util.Base64;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * ECDSA signatures over transaction hashes.
+ *
+ * A sender signs the 32 raw bytes of {@link Transaction#getHash()}, which
+ * covers every field of the transaction, with
+ * SHA256withECDSA on the NIST P-256 curve; the signature is carried as
+ * base64 DER and the public key as base64 X.509 SubjectPublicKeyInfo.
+ *
+ * Verification is the costly part of admission, so each signature found
+ * valid is remembered in a bounded LRU cache, under a digest of the public
+ * key, the signature and the hash together, so a hit vouches for exactly
+ * that key having signed that hash: validating a block whose transactions
+ * this node admitted is a run of lookups.
+ * Invalid signatures are not cached, since such transactions never get
+ * past admission, and caching them would let bad input evict good
+ * entries. Decoded public keys are cached the same way, as a sender signs
+ * many transactions with one key. Signature and key factory instances are
+ * kept per thread, so batch workers verify in parallel without sharing.
+ */
+public final class Signatures {
+    public static final String ALGORITHM = "SHA256withECDSA";
+    public static final String CURVE = "secp256r1";
+
+    private static final int CACHE_SIZE = Integer.getInteger("crosspay.signatures.cacheSize", 100_000);
+    private static final int KEY_CACHE_SIZE = Integer.getInteger("crosspay.signatures.keyCacheSize", 10_000);
+    private static final int P256_FIELD_BITS = 256;
+
+    private static final Map<String, Boolean> verified = lruMap(CACHE_SIZE);      // digest of key, signature and hash
+    private static final Map<String, PublicKey> publicKeys = lruMap(KEY_CACHE_SIZE);
+    private static final ThreadLocal<Signature> signatures = ThreadLocal.withInitial(() -> {
+        try {
+            return Signature.getInstance(ALGORITHM);
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(ALGORITHM + " is not available", e);
+        }
+    });
+    private static final ThreadLocal<KeyFactory> keyFactories = ThreadLocal.withInitial(() -> {
+        try {
+            return KeyFactory.getInstance("EC");
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("EC keys are not available", e);
+        }
+    });
+
+    private Signatures() {
+    }
+
+    private static <V> Map<String, V> lruMap(int capacity) {
+        return new LinkedHashMap<String, V>(1024, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, V> eldest) {
+                return size() > capacity;
+            }
+        };
+    }
+
+    /**
+     * A new P-256 key pair
+     */
+    public static KeyPair generateKeyPair() {
+        try {
+            KeyPairGenerator generator = KeyPairGenerator.getInstance("EC");
+            generator.initialize(new ECGenParameterSpec(CURVE));
+            return generator.generateKeyPair();
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("Cannot generate " + CURVE + " keys", e);
+        }
+    }
+
+    /**
+     * Base64 X.509 encoding of a public key, the form transactions and the key registry hold
+     */
+    public static String encodePublicKey(PublicKey key) {
+        return Base64.getEncoder().encodeToString(key.getEncoded());
+    }
+
+    /**
+     * @throws IllegalArgumentException if the text is not a base64 X.509 P-256 public key
+     */
+    public static PublicKey decodePublicKey(String encoded) {
+        synchronized (publicKeys) {
+            PublicKey key = publicKeys.get(encoded);
+            if (key != null) return key;
+        }
+        PublicKey key;
+        try {
+            key = keyFactories.get().generatePublic(new X509EncodedKeySpec(Base64.getDecoder().decode(encoded)));
+        } catch (GeneralSecurityException e) {
+            throw new IllegalArgumentException("Invalid public key: " + e.getMessage(), e);
+        }
+        if (!(key instanceof ECPublicKey) ||
+            ((ECPublicKey) key).getParams().getCurve().getField().getFieldSize() != P256_FIELD_BITS) {
+            throw new IllegalArgumentException("Public key must be an EC key on " + CURVE);
+        }
+        synchronized (publicKeys) {
+            publicKeys.put(encoded, key);
+        }
+        return key;
+    }
+
+    /**
+     * Sign a transaction hash
+     *
+     * @return the base64 DER signature
+     */
+    public static String sign(String hash, PrivateKey key) {
+        try {
+            Signature signer = signatures.get();
+            signer.initSign(key);
+            signer.update(hashBytes(hash));
+            return Base64.getEncoder().encodeToString(signer.sign());
+        } catch (GeneralSecurityException e) {
+            throw new IllegalArgumentException("Cannot sign with this key: " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Whether the transaction's signature is its public key's over its
+     * hash, answered from the cache if this key, signature and hash were
+     * verified together before
+     */
+    public static boolean verify(Transaction transaction) {
+        if (transaction.getSignature() == null || transaction.getPublicKey() == null) return false;
+        String entry = HashEngine.sha256Hex(transaction.getPublicKey() + '\n' + transaction.getSignature() + '\n' +
+                                            transaction.getHash());
+        synchronized (verified) {
+            if (verified.get(entry) != null) return true;
+        }
+        if (!verifyUncached(transaction)) return false;
+        synchronized (verified) {
+            verified.put(entry, Boolean.TRUE);
+        }
+        return true;
+    }
+
+    /**
+     * Verify the signature without consulting or filling the cache
+     */
+    public static boolean verifyUncached(Transaction transaction) {
+        if (transaction.getSignature() == null || transaction.getPublicKey() == null) return false;
+        try {
+            Signature verifier = signatures.get();
+            verifier.initVerify(decodePublicKey(transaction.getPublicKey()));
+            verifier.update(hashBytes(transaction.getHash()));
+            return verifier.verify(Base64.getDecoder().decode(transaction.getSignature()));
+        } catch (GeneralSecurityException | IllegalArgumentException e) {
+            return false; // Malformed key, signature or hash
+        }
+    }
+
+    /**
+     * Forget every verified signature, so the next checks verify again
+     */
+    static void clearCache() {
+        synchronized (verified) {
+            verified.clear();
+        }
+    }
+
+    /**
+     * @throws IllegalArgumentException if the hash is not 64 hex digits
+     */
+    private static byte[] hashBytes(String hash) {
+        if (hash == null || hash.length() != 64) {
+            throw new IllegalArgumentException("Transaction hash must be 64 hex digits");
+        }
+        byte[] bytes = new byte[32];
+        for (int i = 0; i < 32; i++) {
+            int high = Character.digit(hash.charAt(2 * i), 16);
+            int low = Character.digit(hash.charAt(2 * i + 1), 16);
+            if (high < 0 || low < 0) {
+                throw new IllegalArgumentException("Transaction hash must be 64 hex digits");
+            }
+            bytes[i] = (byte) (high << 4 | low);
+        }
+        return bytes;
+    }
+}
@@ -1,21 +1,45 @@
-import java.security.MessageDigest;
+import java.math.BigDecimal;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.KeyPair;
 import java.util.Date;
 import java.util.UUID;
 
 /**
- * Transaction class representing a cross-border payment
+ * Transaction class representing a cross-border payment.
+ * The amount is held as long minor units of the transaction currency,
+ * which is what the receiver gets; the sender pays from its balance in
+ * the funding currency at the rate quoted on admission. A transaction may
+ * carry the sender's ECDSA signature over its hash, with the public key
+ * that made it; see {@link Signatures}.
+ *
+ * The hash is SHA-256 of {@link #hashPayload()}, a versioned encoding of
+ * every field with each string length-prefixed, so no two transactions
+ * share one by moving characters between fields. Transactions stored
+ * before that keep hash version 1, which hashes the fields run together
+ * and leaves out the countries.
  */
 public class Transaction {
+    public static final int HASH_VERSION = 2;
+    public static final int HASH_VERSION_CONCATENATED = 1;
+    private static final byte[] HASH_DOMAIN = "crosspay-tx".getBytes(StandardCharsets.UTF_8);
+    
     private String transactionId;
     private String sender;
     private String receiver;
-    private double amount;
+    private long amount;
     private String currency;
+    private String fundingCurrency;
     private String senderCountry;
     private String receiverCountry;
     private long timestamp;
     private String hash;
-    private TransactionStatus status;
+    private int hashVersion = HASH_VERSION;
+    private String publicKey;  // base64 X.509, null if unsigned
+    private String signature;  // base64 DER, null if unsigned
+    private volatile TransactionStatus status;
+    private volatile FxEngine.Quote quote;
+    private volatile long admittedAt; // this node's clock when its mempool admitted it, 0 if it never did
     
     public enum TransactionStatus {
         PENDING, PROCESSING, COMPLETED, FAILED
@@ -23,61 +47,173 @@ public class Transaction {
     
     public Transaction(String sender, String receiver, double amount, 
                       String currency, String senderCountry, String receiverCountry) {
-        this.transactionId = UUID.randomUUID().toString();
+        this(sender, receiver, BigDecimal.valueOf(amount), currency, senderCountry, receiverCountry);
+    }
+    
+    /**
+     * @throws ArithmeticException if the amount has more decimals than the currency allows
+     */
+    public Transaction(String sender, String receiver, BigDecimal amount, 
+                      String currency, String senderCountry, String receiverCountry) {
+        this(sender, receiver, amount, currency, senderCountry, receiverCountry, null);
+    }
+    
+    /**
+     * @param fundingCurrency currency the sender pays in, the base currency if null
+     * @throws ArithmeticException if the amount has more decimals than the currency allows
+     */
+    public Transaction(String sender, String receiver, BigDecimal amount, String currency,
+                      String senderCountry, String receiverCountry, String fundingCurrency) {
+        this(UUID.randomUUID().toString(), new Date().getTime(), sender, receiver, amount, currency,
+             senderCountry, receiverCountry, fundingCurrency);
+    }
+    
+    /**
+     * A transaction whose id and timestamp the client chose, so that it
+     * could compute the hash and sign it before submitting
+     *
+     * @param fundingCurrency currency the sender pays in, the base currency if null
+     * @throws ArithmeticException if the amount has more decimals than the currency allows
+     */
+    public Transaction(String transactionId, long timestamp, String sender, String receiver, BigDecimal amount,
+                      String currency, String senderCountry, String receiverCountry, String fundingCurrency) {
+        this.transactionId = transactionId;
         this.sender = sender;
         this.receiver = receiver;
-        this.amount = amount;
+        this.amount = Money.toMinor(amount, currency);
         this.currency = currency;
+        this.fundingCurrency = fundingCurrency == null ? Money.BASE_CURRENCY : fundingCurrency;
         this.senderCountry = senderCountry;
         this.receiverCountry = receiverCountry;
-        this.timestamp = new Date().getTime();
+        this.timestamp = timestamp;
         this.status = TransactionStatus.PENDING;
         this.hash = calculateHash();
     }
     
+    /**
+     * Restore a transaction read back from storage, hashed with the given version
+     */
+    Transaction(String transactionId, String sender, String receiver, long amount, String currency,
+                String fundingCurrency, String senderCountry, String receiverCountry, long timestamp, String hash,
+                int hashVersion, TransactionStatus status) {
+        this.hashVersion = hashVersion;
+        this.transactionId = transactionId;
+        this.sender = sender;
+        this.receiver = receiver;
+        this.amount = amount;
+        this.currency = currency;
+        this.fundingCurrency = fundingCurrency;
+        this.senderCountry = senderCountry;
+        this.receiverCountry = receiverCountry;
+        this.timestamp = timestamp;
+        this.hash = hash;
+        this.status = status;
+    }
+    
     /**
      * Calculate the hash of this transaction
      */
     public String calculateHash() {
-        try {
-            String data = transactionId + sender + receiver + 
-                         Double.toString(amount) + currency + 
-                         Long.toString(timestamp);
-            
-            MessageDigest digest = MessageDigest.getInstance("SHA-256");
-            byte[] hashBytes = digest.digest(data.getBytes("UTF-8"));
-            
-            StringBuilder hexString = new StringBuilder();
-            for (byte b : hashBytes) {
-                String hex = Integer.toHexString(0xff & b);
-                if (hex.length() == 1) hexString.append('0');
-                hexString.append(hex);
-            }
-            return hexString.toString();
-        } catch (Exception e) {
-            throw new RuntimeException(e);
+        if (hashVersion != HASH_VERSION_CONCATENATED) {
+            return HashEngine.sha256Hex(hashPayload());
+        }
+        StringBuilder data = HashEngine.builder()
+            .append(transactionId).append(sender).append(receiver)
+            .append(amount).append(currency).append(timestamp);
+        if (!Money.BASE_CURRENCY.equals(fundingCurrency)) {
+            data.append(fundingCurrency); // left out for base funding, as before funding currencies existed
         }
+        return HashEngine.sha256Hex(data);
     }
     
     /**
-     * Validate the transaction
+     * Bytes the hash, and so the signature, covers: "crosspay-tx", the hash
+     * version byte, then transactionId, sender, receiver, amount (minor
+     * units), currency, fundingCurrency, senderCountry, receiverCountry and
+     * timestamp (epoch millis). Strings are a 4-byte big-endian length, -1
+     * for null, and their UTF-8 bytes; numbers are 8-byte big-endian.
+     */
+    public byte[] hashPayload() {
+        String[] strings = {transactionId, sender, receiver, currency, fundingCurrency, senderCountry,
+                            receiverCountry};
+        byte[][] encoded = new byte[strings.length][];
+        int size = HASH_DOMAIN.length + 1 + 2 * Long.BYTES;
+        for (int i = 0; i < strings.length; i++) {
+            encoded[i] = strings[i] == null ? null : strings[i].getBytes(StandardCharsets.UTF_8);
+            size += Integer.BYTES + (encoded[i] == null ? 0 : encoded[i].length);
+        }
+        
+        ByteBuffer out = ByteBuffer.allocate(size);
+        out.put(HASH_DOMAIN).put((byte) HASH_VERSION);
+        putString(out, encoded[0]);
+        putString(out, encoded[1]);
+        putString(out, encoded[2]);
+        out.putLong(amount);
+        for (int i = 3; i < strings.length; i++) {
+            putString(out, encoded[i]);
+        }
+        out.putLong(timestamp);
+        return out.array();
+    }
+    
+    private static void putString(ByteBuffer out, byte[] bytes) {
+        if (bytes == null) {
+            out.putInt(-1);
+        } else {
+            out.putInt(bytes.length).put(bytes);
+        }
+    }
+    
+    /**
+     * Validate the transaction, and its signature if it is signed. Whether
+     * the signing key may send for the sender is up to the
+     * {@link KeyRegistry}.
      */
     public boolean isValid() {
         // Basic validation
-        if (sender == null || receiver == null) return false;
+        if (transactionId == null || sender == null || receiver == null) return false;
         if (amount <= 0) return false;
         if (currency == null || currency.isEmpty()) return false;
         
         // Verify hash integrity
-        return hash.equals(calculateHash());
+        if (!hash.equals(calculateHash())) return false;
+        
+        // Verify the signature over that hash; repeated checks hit the cache
+        if (signature == null && publicKey == null) return true;
+        return signature != null && publicKey != null && Signatures.verify(this);
+    }
+    
+    /**
+     * Sign the hash with the sender's key pair
+     */
+    public void sign(KeyPair keys) {
+        this.signature = Signatures.sign(hash, keys.getPrivate());
+        this.publicKey = Signatures.encodePublicKey(keys.getPublic());
+    }
+    
+    /**
+     * Attach a signature made elsewhere, checked by {@link #isValid()}
+     *
+     * @param publicKey base64 X.509 public key
+     * @param signature base64 DER signature over the hash
+     */
+    public void setSignature(String publicKey, String signature) {
+        this.publicKey = publicKey;
+        this.signature = signature;
     }
     
     /**
      * Calculate transaction fee (0.1% of amount, minimum 0.01)
      */
-    public double calculateFee() {
-        double fee = amount * 0.001; // 0.1% fee
-        return Math.max(fee, 0.01); // Minimum fee of 0.01
+    public BigDecimal calculateFee() {
+        return Money.toDecimal(calculateFeeMinor(), currency);
+    }
+    
+    /**
+     * Calculate transaction fee in minor units of the transaction currency
+     */
+    public long calculateFeeMinor() {
+        return Money.fee(amount, currency);
     }
     
     @Override
@@ -98,7 +234,11 @@ public class Transaction {
         return receiver;
     }
     
-    public double getAmount() {
+    public BigDecimal getAmount() {
+        return Money.toDecimal(amount, currency);
+    }
+    
+    public long getAmountMinor() {
         return amount;
     }
     
@@ -106,6 +246,13 @@ public class Transaction {
         return currency;
     }
     
+    /**
+     * Currency the sender pays in
+     */
+    public String getFundingCurrency() {
+        return fundingCurrency;
+    }
+    
     public String getSenderCountry() {
         return senderCountry;
     }
@@ -122,6 +269,24 @@ public class Transaction {
         return hash;
     }
     
+    public int getHashVersion() {
+        return hashVersion;
+    }
+    
+    /**
+     * Public key of the signature, or null if unsigned
+     */
+    public String getPublicKey() {
+        return publicKey;
+    }
+    
+    /**
+     * Signature over the hash, or null if unsigned
+     */
+    public String getSignature() {
+        return signature;
+    }
+    
     public TransactionStatus getStatus() {
         return status;
     }
@@ -129,4 +294,28 @@ public class Transaction {
     public void setStatus(TransactionStatus status) {
         this.status = status;
     }
+    
+    /**
+     * Pricing locked in when the transaction was admitted, null before
+     */
+    public FxEngine.Quote getQuote() {
+        return quote;
+    }
+    
+    public void setQuote(FxEngine.Quote quote) {
+        this.quote = quote;
+    }
+    
+    /**
+     * Epoch millis, by this node's clock, at which the mempool last admitted
+     * the transaction, or 0 if it never did, e.g. for a replicated block.
+     * Unlike the timestamp, the client cannot set it.
+     */
+    public long getAdmittedAt() {
+        return admittedAt;
+    }
+    
+    void setAdmittedAt(long admittedAt) {
+        this.admittedAt = admittedAt;
+    }
 }
@@ -0,0 +1,305 @@
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.json.JSONTokener;
+
+/**
+ * Bulk transaction ingest.
+ *
+ * Reads a JSON array or newline-delimited JSON (one transaction object per
+ * line) in chunks. Each chunk is parsed, built and validated across a
+ * worker pool, so signature verification, the costliest step, runs on
+ * every core; it is then admitted to the mempool in a single pass, and
+ * one result per record is reported in input order before the next chunk
+ * is read, so memory stays bounded however large the upload is.
+ */
+public class TransactionBatchProcessor {
+    public static final int DEFAULT_CHUNK = Integer.getInteger("crosspay.batch.chunk", 2048);
+
+    private static final int MIN_PARALLEL = 64;
+
+    private final Blockchain blockchain;
+    private final int workers;
+    private final int chunkSize;
+    private final ExecutorService pool;
+
+    public TransactionBatchProcessor(Blockchain blockchain) {
+        this(blockchain, Integer.getInteger("crosspay.batch.threads", Runtime.getRuntime().availableProcessors()),
+             DEFAULT_CHUNK);
+    }
+
+    public TransactionBatchProcessor(Blockchain blockchain, int workers, int chunkSize) {
+        if (workers < 1 || chunkSize < 1) {
+            throw new IllegalArgumentException("Batch processor needs at least one worker and a positive chunk size");
+        }
+        this.blockchain = blockchain;
+        this.workers = workers;
+        this.chunkSize = chunkSize;
+        this.pool = Executors.newFixedThreadPool(workers, runnable -> {
+            Thread thread = new Thread(runnable, "batch-worker");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Ingest every record from the reader, reporting each one to the sink
+     *
+     * @throws JSONException if a JSON array body is malformed; records
+     *         reported before the error stay admitted
+     */
+    public Summary process(BufferedReader in, ResultSink sink) throws IOException {
+        long start = System.nanoTime();
+        Summary summary = new Summary();
+        Chunk chunk = new Chunk(chunkSize);
+
+        // Peek at the first significant character to tell an array from NDJSON
+        int lineNumber = 1;
+        int first;
+        while (true) {
+            in.mark(1);
+            first = in.read();
+            if (first == '\n') lineNumber++;
+            if (first == -1 || !Character.isWhitespace(first)) break;
+        }
+        if (first == '[') {
+            readArray(new JSONTokener(in), chunk, sink, summary);
+        } else if (first != -1) {
+            in.reset();
+            readLines(in, lineNumber, chunk, sink, summary);
+        }
+        summary.elapsedNanos = System.nanoTime() - start;
+        return summary;
+    }
+
+    private void readArray(JSONTokener tokener, Chunk chunk, ResultSink sink, Summary summary) throws IOException {
+        if (tokener.nextClean() == ']') return;
+        tokener.back();
+
+        int index = 0;
+        while (true) {
+            chunk.add(index++, tokener.nextValue());
+            if (chunk.isFull()) flush(chunk, sink, summary);
+
+            char separator = tokener.nextClean();
+            if (separator == ']') break;
+            if (separator != ',') throw tokener.syntaxError("Expected ',' or ']'");
+        }
+        flush(chunk, sink, summary);
+    }
+
+    private void readLines(BufferedReader in, int lineNumber, Chunk chunk, ResultSink sink, Summary summary)
+            throws IOException {
+        String line;
+        for (; (line = in.readLine()) != null; lineNumber++) {
+            if (line.isBlank()) continue;
+            chunk.add(lineNumber, line);
+            if (chunk.isFull()) flush(chunk, sink, summary);
+        }
+        flush(chunk, sink, summary);
+    }
+
+    /**
+     * Parse and validate the chunk in parallel, admit it in one pass, report, and clear it
+     */
+    private void flush(Chunk chunk, ResultSink sink, Summary summary) throws IOException {
+        int size = chunk.size;
+        if (size == 0) return;
+
+        if (size < MIN_PARALLEL || workers == 1) {
+            chunk.prepare(0, size);
+        } else {
+            int slice = (size + workers - 1) / workers;
+            List<Future<?>> futures = new ArrayList<>(workers);
+            for (int from = 0; from < size; from += slice) {
+                final int start = from;
+                final int end = Math.min(size, from + slice);
+                futures.add(pool.submit(() -> chunk.prepare(start, end)));
+            }
+            for (Future<?> future : futures) {
+                try {
+                    future.get();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("Interrupted while processing batch", e);
+                } catch (ExecutionException e) {
+                    throw new RuntimeException(e.getCause());
+                }
+            }
+        }
+
+        // Admit everything that validated with one pass over the balances
+        List<Transaction> valid = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            if (chunk.transactions[i] != null) valid.add(chunk.transactions[i]);
+        }
+        Mempool.Admission[] admissions = blockchain.createTransactions(valid);
+
+        for (int i = 0, v = 0; i < size; i++) {
+            Transaction transaction = chunk.transactions[i];
+            String error = chunk.errors[i];
+            if (transaction != null) {
+                error = describe(admissions[v++]);
+            }
+            if (error == null) {
+                summary.accepted++;
+            } else {
+                summary.rejected++;
+            }
+            sink.result(chunk.positions[i], transaction, error);
+        }
+        chunk.clear();
+    }
+
+    private static String describe(Mempool.Admission admission) {
+        switch (admission) {
+            case ADMITTED: return null;
+            case DUPLICATE: return "Duplicate transaction";
+            case INSUFFICIENT_BALANCE: return "Insufficient balance";
+            case POOL_FULL: return "Mempool full, fee too low";
+            case UNSUPPORTED_CURRENCY: return "No exchange rate for currency";
+            case UNAUTHORIZED: return "Not signed with the sender's registered key";
+            case AMOUNT_TOO_LARGE: return "Amount too large to convert";
+            default: return admission.name();
+        }
+    }
+
+    /**
+     * Build a transaction from its JSON form. A signed transaction names
+     * the id and timestamp it was hashed and signed with; otherwise both
+     * are assigned here.
+     */
+    static Transaction toTransaction(JSONObject json) {
+        String signature = json.optString("signature", null);
+        String transactionId = json.optString("transactionId", null);
+        if (signature != null && transactionId == null) {
+            throw new JSONException("A signed transaction needs the transactionId and timestamp it was signed with");
+        }
+        Transaction transaction;
+        if (transactionId == null) {
+            transaction = new Transaction(
+                json.getString("sender"),
+                json.getString("receiver"),
+                json.getBigDecimal("amount"),
+                json.getString("currency"),
+                json.getString("senderCountry"),
+                json.getString("receiverCountry"),
+                json.optString("fundingCurrency", null)
+            );
+        } else {
+            transaction = new Transaction(
+                transactionId,
+                json.getLong("timestamp"),
+                json.getString("sender"),
+                json.getString("receiver"),
+                json.getBigDecimal("amount"),
+                json.getString("currency"),
+                json.getString("senderCountry"),
+                json.getString("receiverCountry"),
+                json.optString("fundingCurrency", null)
+            );
+        }
+        if (signature != null || json.has("publicKey")) {
+            transaction.setSignature(json.optString("publicKey", null), signature);
+        }
+        return transaction;
+    }
+
+    /**
+     * Records of one chunk and what became of them; workers fill disjoint index ranges
+     */
+    private static class Chunk {
+        final int[] positions;
+        final Object[] records;
+        final Transaction[] transactions;
+        final String[] errors;
+        int size;
+
+        Chunk(int capacity) {
+            positions = new int[capacity];
+            records = new Object[capacity];
+            transactions = new Transaction[capacity];
+            errors = new String[capacity];
+        }
+
+        void add(int position, Object record) {
+            positions[size] = position;
+            records[size] = record;
+            size++;
+        }
+
+        boolean isFull() {
+            return size == records.length;
+        }
+
+        void prepare(int from, int to) {
+            for (int i = from; i < to; i++) {
+                try {
+                    Object record = records[i];
+                    JSONObject json = record instanceof JSONObject ? (JSONObject) record :
+                                      new JSONObject(record.toString());
+                    Transaction transaction = toTransaction(json);
+                    if (transaction.isValid()) {
+                        transactions[i] = transaction;
+                    } else {
+                        errors[i] = "Invalid transaction or signature";
+                    }
+                } catch (JSONException | ArithmeticException e) {
+                    errors[i] = e.getMessage();
+                }
+            }
+        }
+
+        void clear() {
+            Arrays.fill(records, 0, size, null);
+            Arrays.fill(transactions, 0, size, null);
+            Arrays.fill(errors, 0, size, null);
+            size = 0;
+        }
+    }
+
+    /**
+     * Receives one result per record, in input order, on the calling thread
+     */
+    public interface ResultSink {
+        /**
+         * @param position line number (1-based) for NDJSON, element index (0-based) for an array
+         * @param transaction the parsed transaction, or null if the record could not be parsed
+         * @param error why the record was rejected, or null if it was admitted
+         */
+        void result(int position, Transaction transaction, String error) throws IOException;
+    }
+
+    /**
+     * Counts for a whole batch
+     */
+    public static class Summary {
+        private int accepted;
+        private int rejected;
+        private long elapsedNanos;
+
+        public int getAccepted() {
+            return accepted;
+        }
+
+        public int getRejected() {
+            return rejected;
+        }
+
+        public int getReceived() {
+            return accepted + rejected;
+        }
+
+        public double getElapsedMillis() {
+            return elapsedNanos / 1_000_000.0;
+        }
+    }
+}
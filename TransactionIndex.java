@@ -0,0 +1,193 @@
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Hash indexes over mined and pending transactions.
+ * Mined transactions are located by (block height, position in block),
+ * packed into a single long; each address keeps a posting list of the
+ * positions it appears in, in chain order. Lookups are safe from any
+ * thread; blocks are indexed by a single writer at a time.
+ *
+ * Chain order is also settlement-time order: each block's settlement time
+ * is its timestamp, raised if need be to that of the block before, so a
+ * posting list is sorted by time as well as by position and either can
+ * be found by binary search.
+ */
+public class TransactionIndex {
+    private final Map<String, Long> locations;
+    private final Map<String, PostingList> postings;
+    private final Map<String, Transaction> pending;
+    private final Map<String, Integer> pendingAddresses; // pending transactions naming each address
+    private volatile long[] blockTimes = new long[1024]; // settlement time by height, non-decreasing
+
+    public TransactionIndex() {
+        this.locations = new ConcurrentHashMap<>();
+        this.postings = new ConcurrentHashMap<>();
+        this.pending = new ConcurrentHashMap<>();
+        this.pendingAddresses = new ConcurrentHashMap<>();
+    }
+
+    /**
+     * Index every transaction of a block appended at the given height
+     */
+    public void indexBlock(int height, Block block) {
+        long[] times = blockTimes;
+        if (height >= times.length) {
+            times = Arrays.copyOf(times, Math.max(times.length * 2, height + 1));
+        }
+        times[height] = height == 0 ? block.getTimestamp() : Math.max(block.getTimestamp(), times[height - 1]);
+        blockTimes = times; // Published before the postings that refer to it
+        
+        int index = 0;
+        for (Transaction transaction : block.getTransactions()) {
+            long position = position(height, index++);
+            locations.put(transaction.getTransactionId(), position);
+            postingList(transaction.getSender()).add(position);
+            if (!transaction.getReceiver().equals(transaction.getSender())) {
+                postingList(transaction.getReceiver()).add(position);
+            }
+            removePending(transaction.getTransactionId());
+        }
+    }
+
+    /**
+     * Index a transaction as pending, unless one with its id already is
+     *
+     * @return false if the id was already pending, whose entry is kept
+     */
+    public boolean addPending(Transaction transaction) {
+        countAddresses(transaction, 1); // Before the entry is visible, so its removal never comes first
+        if (pending.putIfAbsent(transaction.getTransactionId(), transaction) == null) return true;
+        countAddresses(transaction, -1);
+        return false;
+    }
+
+    public void removePending(String transactionId) {
+        Transaction removed = pending.remove(transactionId);
+        if (removed != null) countAddresses(removed, -1);
+    }
+
+    /**
+     * Whether a pending transaction sends from or pays the address
+     */
+    public boolean hasPending(String address) {
+        return pendingAddresses.containsKey(address);
+    }
+
+    private void countAddresses(Transaction transaction, int delta) {
+        pendingAddresses.merge(transaction.getSender(), delta, (count, change) -> count + change == 0 ? null : count + change);
+        if (!transaction.getReceiver().equals(transaction.getSender())) {
+            pendingAddresses.merge(transaction.getReceiver(), delta,
+                                   (count, change) -> count + change == 0 ? null : count + change);
+        }
+    }
+
+    public Transaction getPending(String transactionId) {
+        return pending.get(transactionId);
+    }
+
+    /**
+     * Packed (height, position) of a mined transaction, or -1 if it is not in the chain
+     */
+    public long locate(String transactionId) {
+        Long position = locations.get(transactionId);
+        return position == null ? -1 : position;
+    }
+
+    /**
+     * Packed positions of every mined transaction sent or received by the address
+     */
+    public PostingList getPostings(String address) {
+        PostingList list = postings.get(address);
+        return list == null ? PostingList.EMPTY : list;
+    }
+
+    /**
+     * Settlement time of the block at a height, in epoch millis
+     */
+    public long getBlockTime(int height) {
+        return blockTimes[height];
+    }
+    
+    /**
+     * Index in the posting list of the first transaction settled at or after the time
+     */
+    public int seekTime(PostingList postings, long time) {
+        int low = 0;
+        int high = postings.size();
+        long[] times = blockTimes; // Read after the size, so it covers every posting counted
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (times[heightOf(postings.get(mid))] < time) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    private PostingList postingList(String address) {
+        return postings.computeIfAbsent(address, a -> new PostingList());
+    }
+
+    public static long position(int height, int index) {
+        return ((long) height << 32) | (index & 0xffffffffL);
+    }
+
+    public static int heightOf(long position) {
+        return (int) (position >>> 32);
+    }
+
+    public static int indexOf(long position) {
+        return (int) position;
+    }
+
+    /**
+     * Append-only list of packed transaction positions. Readers see a
+     * consistent prefix: the array is published before the volatile size.
+     */
+    public static class PostingList {
+        static final PostingList EMPTY = new PostingList();
+
+        private long[] positions = new long[4];
+        private volatile int size;
+
+        void add(long position) {
+            int n = size;
+            if (n == positions.length) {
+                long[] grown = new long[n * 2];
+                System.arraycopy(positions, 0, grown, 0, n);
+                positions = grown;
+            }
+            positions[n] = position;
+            size = n + 1;
+        }
+
+        public long get(int i) {
+            return positions[i];
+        }
+
+        public int size() {
+            return size;
+        }
+
+        /**
+         * Index of the first position after the given one, or size() if there is none
+         */
+        public int indexAfter(long position) {
+            int low = 0;
+            int high = size;
+            while (low < high) {
+                int mid = (low + high) >>> 1;
+                if (positions[mid] <= position) {
+                    low = mid + 1;
+                } else {
+                    high = mid;
+                }
+            }
+            return low;
+        }
+    }
+}
@@ -47,7 +47,7 @@ echo.
 echo Compiling Java files...
 
 REM Compile Java files
-javac -cp json-20230227.jar;. Block.java Transaction.java Blockchain.java BlockchainServer.java
+javac -cp json-20230227.jar;. *.java
 
 if %errorlevel% neq 0 (
     echo [ERROR] Compilation failed
@@ -54,7 +54,7 @@ echo ""
 echo -e "${YELLOW}Compiling Java files...${NC}"
 
 # Compile Java files
-javac -cp json-20230227.jar:. Block.java Transaction.java Blockchain.java BlockchainServer.java
+javac -cp json-20230227.jar:. *.java
 
 if [ $? -eq 0 ]; then
     echo -e "${GREEN}✓ Compilation successful${NC}"
@@ -1,11 +1,16 @@
 package com.crosspay.blockchain;
 
+import io.micrometer.core.instrument.Meter;
+import io.micrometer.core.instrument.config.MeterFilter;
+import io.micrometer.core.instrument.distribution.DistributionStatisticConfig;
 import org.springframework.boot.SpringApplication;
 import org.springframework.boot.autoconfigure.SpringBootApplication;
 import org.springframework.context.annotation.Bean;
 import org.springframework.web.servlet.config.annotation.CorsRegistry;
 import org.springframework.web.servlet.config.annotation.WebMvcConfigurer;
 
+import java.util.Map;
+
 /**
  * Main Spring Boot Application for CrossPay Blockchain
  */
@@ -13,14 +18,40 @@ import org.springframework.web.servlet.config.annotation.WebMvcConfigurer;
 public class CrossPayApplication {
 
     public static void main(String[] args) {
-        SpringApplication.run(CrossPayApplication.class, args);
+        SpringApplication application = new SpringApplication(CrossPayApplication.class);
+        application.setDefaultProperties(Map.of(
+            "management.endpoints.web.exposure.include", "health,info,metrics,prometheus"
+        ));
+        application.run(args);
         System.out.println("╔════════════════════════════════════════════════╗");
         System.out.println("║   CrossPay Blockchain Server Started!         ║");
         System.out.println("║   API: http://localhost:8080/api              ║");
         System.out.println("║   Health: http://localhost:8080/actuator/health ║");
+        System.out.println("║   Metrics: http://localhost:8080/actuator/prometheus ║");
         System.out.println("╚════════════════════════════════════════════════╝");
     }
 
+    /**
+     * Publish percentiles and histogram buckets for API latency and the
+     * CrossPay mining and mempool meters
+     */
+    @Bean
+    public MeterFilter latencyPercentiles() {
+        return new MeterFilter() {
+            @Override
+            public DistributionStatisticConfig configure(Meter.Id id, DistributionStatisticConfig config) {
+                if (id.getName().startsWith("http.server.requests") || id.getName().startsWith("crosspay.")) {
+                    return DistributionStatisticConfig.builder()
+                            .percentiles(0.5, 0.9, 0.99, 0.999)
+                            .percentilesHistogram(true)
+                            .build()
+                            .merge(config);
+                }
+                return config;
+            }
+        };
+    }
+
     /**
      * Configure CORS for frontend access
      */
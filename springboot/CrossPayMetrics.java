@@ -0,0 +1,131 @@
+package com.crosspay.blockchain.metrics;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import org.springframework.stereotype.Component;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Micrometer meters for mining, the mempool and block sizes.
+ *
+ * Meters are registered once, with one rejection counter per reason, so
+ * the blockchain service records through fields and never looks a meter
+ * up by name and tags on a hot path. Gauges read atomics the service
+ * updates. API latency comes from Spring's own http.server.requests timer,
+ * which {@code CrossPayApplication} configures with percentiles.
+ */
+@Component
+public class CrossPayMetrics {
+
+    public static final String[] REJECTION_REASONS = {
+        "duplicate", "insufficient_balance", "pool_full", "unsupported_currency", "invalid"
+    };
+
+    private final Counter admitted;
+    private final Map<String, Counter> rejected = new HashMap<>();
+    private final Counter evicted;
+    private final Counter blocksMined;
+    private final Counter hashes;
+    private final Timer miningTime;
+    private final Timer mempoolWait;
+    private final DistributionSummary blockTransactions;
+    private final DistributionSummary blockBytes;
+    private final AtomicLong hashRate = new AtomicLong();
+    private final AtomicLong mempoolTransactions = new AtomicLong();
+    private final AtomicLong mempoolOldestTimestamp = new AtomicLong();
+    private final AtomicLong chainHeight = new AtomicLong();
+
+    public CrossPayMetrics(MeterRegistry registry) {
+        admitted = Counter.builder("crosspay.transactions.admitted")
+                .description("Transactions admitted to the mempool")
+                .register(registry);
+        for (String reason : REJECTION_REASONS) {
+            rejected.put(reason, Counter.builder("crosspay.transactions.rejected")
+                    .description("Transactions turned away at admission, by reason")
+                    .tag("reason", reason)
+                    .register(registry));
+        }
+        evicted = Counter.builder("crosspay.transactions.evicted")
+                .description("Pending transactions pushed out of the mempool by better-paying ones")
+                .register(registry);
+
+        blocksMined = Counter.builder("crosspay.blocks.mined")
+                .description("Blocks mined by this node")
+                .register(registry);
+        hashes = Counter.builder("crosspay.mining.hashes")
+                .description("Proof-of-work hashes computed for mined blocks")
+                .register(registry);
+        miningTime = Timer.builder("crosspay.block.mining")
+                .description("Proof-of-work time per block")
+                .register(registry);
+        blockTransactions = DistributionSummary.builder("crosspay.block.transactions")
+                .description("Transactions per mined block")
+                .register(registry);
+        blockBytes = DistributionSummary.builder("crosspay.block.size")
+                .description("Encoded size of each mined block")
+                .baseUnit("bytes")
+                .register(registry);
+        mempoolWait = Timer.builder("crosspay.mempool.wait")
+                .description("Time from creation until a transaction is taken into a block")
+                .register(registry);
+
+        registry.gauge("crosspay.mining.hash.rate", hashRate);
+        registry.gauge("crosspay.chain.height", chainHeight);
+        registry.gauge("crosspay.mempool.transactions", mempoolTransactions);
+        registry.gauge("crosspay.mempool.oldest.age", mempoolOldestTimestamp, oldest -> {
+            long timestamp = oldest.get();
+            return timestamp == 0 ? 0 : Math.max(0, System.currentTimeMillis() - timestamp) / 1000.0;
+        });
+    }
+
+    public void admitted() {
+        admitted.increment();
+    }
+
+    /**
+     * @param reason one of {@link #REJECTION_REASONS}
+     */
+    public void rejected(String reason) {
+        Counter counter = rejected.get(reason);
+        if (counter == null) {
+            throw new IllegalArgumentException("Unknown rejection reason: " + reason);
+        }
+        counter.increment();
+    }
+
+    public void evicted(int count) {
+        evicted.increment(count);
+    }
+
+    /**
+     * Record a transaction leaving the mempool for a block
+     */
+    public void selected(long transactionTimestamp) {
+        mempoolWait.record(Math.max(0, System.currentTimeMillis() - transactionTimestamp), TimeUnit.MILLISECONDS);
+    }
+
+    public void blockMined(long hashCount, long elapsedNanos, int transactions, int encodedBytes, long height) {
+        blocksMined.increment();
+        hashes.increment(hashCount);
+        hashRate.set(elapsedNanos == 0 ? 0 : hashCount * 1_000_000_000L / elapsedNanos);
+        miningTime.record(elapsedNanos, TimeUnit.NANOSECONDS);
+        blockTransactions.record(transactions);
+        blockBytes.record(encodedBytes);
+        chainHeight.set(height);
+    }
+
+    /**
+     * Publish the mempool's current depth and the creation time of its
+     * oldest transaction (0 when empty)
+     */
+    public void mempool(int transactions, long oldestTimestamp) {
+        mempoolTransactions.set(transactions);
+        mempoolOldestTimestamp.set(oldestTimestamp);
+    }
+}
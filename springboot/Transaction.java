@@ -4,6 +4,8 @@ import lombok.Data;
 import lombok.NoArgsConstructor;
 import com.fasterxml.jackson.annotation.JsonFormat;
 
+import java.math.BigDecimal;
+import java.math.RoundingMode;
 import java.security.MessageDigest;
 import java.util.Date;
 import java.util.UUID;
@@ -18,7 +20,7 @@ public class Transaction {
     private String transactionId;
     private String sender;
     private String receiver;
-    private double amount;
+    private BigDecimal amount;
     private String currency;
     private String senderCountry;
     private String receiverCountry;
@@ -33,7 +35,7 @@ public class Transaction {
         PENDING, PROCESSING, COMPLETED, FAILED
     }
     
-    public Transaction(String sender, String receiver, double amount, 
+    public Transaction(String sender, String receiver, BigDecimal amount, 
                       String currency, String senderCountry, String receiverCountry) {
         this.transactionId = UUID.randomUUID().toString();
         this.sender = sender;
@@ -53,7 +55,7 @@ public class Transaction {
     public String calculateHash() {
         try {
             String data = transactionId + sender + receiver + 
-                         Double.toString(amount) + currency + 
+                         amount.toPlainString() + currency + 
                          Long.toString(timestamp);
             
             MessageDigest digest = MessageDigest.getInstance("SHA-256");
@@ -76,7 +78,7 @@ public class Transaction {
      */
     public boolean isValid() {
         if (sender == null || receiver == null) return false;
-        if (amount <= 0) return false;
+        if (amount == null || amount.signum() <= 0) return false;
         if (currency == null || currency.isEmpty()) return false;
         return hash.equals(calculateHash());
     }
@@ -84,9 +86,9 @@ public class Transaction {
     /**
      * Calculate transaction fee (0.1% of amount, minimum 0.01)
      */
-    public double calculateFee() {
-        double fee = amount * 0.001;
-        return Math.max(fee, 0.01);
+    public BigDecimal calculateFee() {
+        BigDecimal fee = amount.multiply(new BigDecimal("0.001")).setScale(2, RoundingMode.HALF_UP);
+        return fee.max(new BigDecimal("0.01"));
     }
     
     @Override